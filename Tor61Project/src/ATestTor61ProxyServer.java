@@ -7,6 +7,7 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Collections;
 
 public class ATestTor61ProxyServer extends Thread{
 
@@ -63,15 +64,10 @@ public class ATestTor61ProxyServer extends Thread{
 		System.out.println("Testing extend");
 		System.out.println("Starting Extend Thread");
 
-		try {
-			if (!ps.extend(e)) {
-				System.out.println("Failed to extend");
-			} else
-				System.out.println("Test done extending");
-		} catch (Exception e1) { 
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
+		if (ps.buildCircuit(Collections.singletonList(e)) == null) {
+			System.out.println("Failed to extend");
+		} else
+			System.out.println("Test done extending");
 		
 		System.out.println("Testing Proxy quit()");
 
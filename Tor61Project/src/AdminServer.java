@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * Small HTTP server on the loopback address for looking inside a running router and proxy
+ *
+ *    /tables     the router's ROUTER_TABLE, CONNECTIONS, OPENER and STREAMS
+ *    /traces     the router's sampled cell latencies per stage, /traces?sample=N traces one cell in N from then on
+ *    /circuits   the proxy's circuits
+ *    /streams    the proxy's streams
+ *    /metrics    every counter and gauge, in the Prometheus text format
+ *
+ * Every page is a snapshot read from the concurrent maps the router and proxy already use,
+ * so serving one never blocks a thread routing cells. Requests are answered one at a time
+ * on a thread of their own, away from the data path. Only the loopback address is bound,
+ * so the pages can't be read from another machine.
+ *
+ */
+public class AdminServer {
+	private static final Log LOG = Log.get("admin");
+	private static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private HttpServer SERVER;
+	private ExecutorService EXECUTOR;
+	private TorRouter ROUTER;					// Null when there is no router to show
+	private Tor61ProxyServer PROXY;				// Null when there is no proxy to show
+	private List<Metrics> METRICS;
+
+	/**
+	 * @param port port to listen on, 0 for any free port
+	 * @param router router whose tables are served, or null
+	 * @param proxy proxy whose circuits and streams are served, or null
+	 * @param metrics metrics served at /metrics
+	 * @throws IOException if port can't be bound
+	 */
+	public AdminServer(int port, TorRouter router, Tor61ProxyServer proxy, Metrics... metrics) throws IOException {
+		ROUTER = router;
+		PROXY = proxy;
+		METRICS = new ArrayList<Metrics>(Arrays.asList(metrics));
+		SERVER = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "AdminServer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		SERVER.setExecutor(EXECUTOR);
+		SERVER.createContext("/", new Page() {
+			String render() {
+				return "/tables\n/traces\n/circuits\n/streams\n/metrics\n";
+			}
+		});
+		SERVER.createContext("/tables", new Page() {
+			String render() {
+				return ROUTER == null ? "No router\n" : ROUTER.getTables();
+			}
+		});
+		SERVER.createContext("/traces", new Page() {
+			String render(HttpExchange exchange) {
+				String query = exchange.getRequestURI().getQuery();
+				if (ROUTER != null && query != null && query.startsWith("sample=")) {
+					try {
+						ROUTER.getTracer().setSampleEvery(Integer.parseInt(query.substring("sample=".length())));
+					} catch (IllegalArgumentException e) {
+						return "sample must be a whole number, 0 or more\n";
+					}
+				}
+				return render();
+			}
+			String render() {
+				return ROUTER == null ? "No router\n" : ROUTER.getTracer().toString();
+			}
+		});
+		SERVER.createContext("/circuits", new Page() {
+			String render() {
+				if (PROXY == null)
+					return "No proxy\n";
+				StringBuilder sb = new StringBuilder();
+				for (Circuit circuit: PROXY.getCircuits()) {
+					sb.append(circuit).append(" built in: ").append(circuit.getBuildTime())
+						.append(" ms active for: ").append(circuit.getActiveTime()).append(" ms\n");
+				}
+				return sb.toString();
+			}
+		});
+		SERVER.createContext("/streams", new Page() {
+			String render() {
+				if (PROXY == null)
+					return "No proxy\n";
+				StringBuilder sb = new StringBuilder();
+				for (Tor61ProxyThread stream: PROXY.getStreams())
+					sb.append(stream).append('\n');
+				return sb.toString();
+			}
+		});
+		SERVER.createContext("/metrics", new Page() {
+			String contentType() {
+				return PROMETHEUS_CONTENT_TYPE;
+			}
+			String render() {
+				return renderPrometheus();
+			}
+		});
+	}
+
+	public void start() {
+		SERVER.start();
+		LOG.info("Admin server listening on http://" + SERVER.getAddress().getHostString() + ":" + getPort() + "/");
+	}
+
+	public void quit() {
+		SERVER.stop(0);
+		EXECUTOR.shutdownNow();
+	}
+
+	/**
+	 * Returns the port the server listens on
+	 */
+	public int getPort() {
+		return SERVER.getAddress().getPort();
+	}
+
+	// Each metric becomes the family tor61_<type>_<name>, with _total after counters, such as
+	// tor61_tor_router_extends_total, and a sample per instance. Samples of one family have to
+	// be together under one TYPE line
+	private String renderPrometheus() {
+		Map<String,StringBuilder> families = new TreeMap<String,StringBuilder>();
+		for (Metrics metrics: METRICS) {
+			String prefix = "tor61_" + toSnakeCase(metrics.getType()).replaceFirst("^tor61_", "") + "_";
+			String instance = metrics.getInstance() == null ? "" : metrics.getInstance();
+			for (Map.Entry<String,Long> e: metrics.getValues().entrySet()) {
+				boolean counter = metrics.isCounter(e.getKey());
+				String family = prefix + e.getKey() + (counter ? "_total" : "");
+				StringBuilder samples = families.get(family);
+				if (samples == null) {
+					samples = new StringBuilder("# TYPE " + family + (counter ? " counter\n" : " gauge\n"));
+					families.put(family, samples);
+				}
+				samples.append(family).append("{instance=\"").append(escape(instance)).append("\"} ")
+					.append(e.getValue()).append('\n');
+			}
+		}
+		StringBuilder sb = new StringBuilder();
+		for (StringBuilder samples: families.values())
+			sb.append(samples);
+		return sb.toString();
+	}
+
+	// TorRouter becomes tor_router
+	private static String toSnakeCase(String name) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < name.length(); i++) {
+			char c = name.charAt(i);
+			if (Character.isUpperCase(c) && i > 0 && !Character.isUpperCase(name.charAt(i - 1)))
+				sb.append('_');
+			sb.append(Character.toLowerCase(c));
+		}
+		return sb.toString();
+	}
+
+	// Escapes a Prometheus label value
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * One page, rendered fresh for every GET
+	 */
+	private abstract class Page implements HttpHandler {
+		abstract String render();
+
+		// Pages that depend on the request override this instead
+		String render(HttpExchange exchange) {
+			return render();
+		}
+
+		String contentType() {
+			return "text/plain; charset=utf-8";
+		}
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!exchange.getRequestMethod().equals("GET")) {
+					exchange.sendResponseHeaders(405, -1);
+					return;
+				}
+				byte[] body = render(exchange).getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", contentType());
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			} catch (RuntimeException e) {
+				LOG.warn("Admin server failed rendering " + exchange.getRequestURI(), e);
+				exchange.sendResponseHeaders(500, -1);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Latency histograms for each stage of building a circuit, per router and overall
+ *
+ * The router times connecting to the next router, OPEN to OPENED and CREATE to CREATED.
+ * The proxy times CREATE to CREATED with our own router, and EXTEND to EXTENDED for each
+ * router it extends to, which covers every hop of the circuit on the way there. Only
+ * stages that succeeded are timed, failures are left to PeerScorer. Comparing the stages
+ * and routers shows which hop and which router a slow build spends its time on.
+ *
+ * The timings also decide how long to wait for each stage: a high percentile of how long
+ * it took before, times a safety factor, so a dead router is given up on quickly where
+ * routers answer fast and slow routers still get the time they need. A router's own
+ * timings are used once there are enough of them, and the timings of every router until then.
+ *
+ */
+public class BuildTimings {
+	public static final String CONNECT = "connect";
+	public static final String OPEN = "open";
+	public static final String CREATE = "create";
+	public static final String EXTEND = "extend";
+	private static final String[] STAGES = {CONNECT, OPEN, CREATE, EXTEND};
+	public static final long DEFAULT_TIMEOUT = 5000;		// milliseconds, until a stage was timed MIN_SAMPLES times
+	private static final int MIN_SAMPLES = 5;
+	private static final double TIMEOUT_PERCENTILE = 99;
+	private static final double SAFETY_FACTOR = 3;
+	private static final long MIN_TIMEOUT = Long.getLong("tor61.timeout.min", 50);		// milliseconds
+	private static final long MAX_TIMEOUT = Long.getLong("tor61.timeout.max", 10000);	// milliseconds
+
+	private Map<String,LatencyHistogram> OVERALL;								// stage -> every router
+	private Map<String,Map<InetSocketAddress,LatencyHistogram>> BY_PEER;		// stage -> router -> histogram
+
+	public BuildTimings() {
+		OVERALL = new ConcurrentHashMap<String,LatencyHistogram>();
+		BY_PEER = new ConcurrentHashMap<String,Map<InetSocketAddress,LatencyHistogram>>();
+		for (String stage: STAGES) {
+			OVERALL.put(stage, new LatencyHistogram());
+			BY_PEER.put(stage, new ConcurrentHashMap<InetSocketAddress,LatencyHistogram>());
+		}
+	}
+
+	/**
+	 * Records how long a stage took with peer
+	 * @param stage one of CONNECT, OPEN, CREATE or EXTEND
+	 * @param peer router the stage was done with
+	 * @param nanos time taken in nanoseconds
+	 */
+	public void record(String stage, InetSocketAddress peer, long nanos) {
+		Map<InetSocketAddress,LatencyHistogram> peers = BY_PEER.get(stage);
+		if (peers == null)
+			throw new IllegalArgumentException("Unknown build stage: " + stage);
+		LatencyHistogram histogram = peers.get(peer);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = peers.putIfAbsent(peer, created);
+			if (histogram == null)
+				histogram = created;
+		}
+		histogram.record(nanos);
+		OVERALL.get(stage).record(nanos);
+	}
+
+	/**
+	 * Returns the histogram of stage over every router
+	 */
+	public LatencyHistogram getHistogram(String stage) {
+		return OVERALL.get(stage);
+	}
+
+	/**
+	 * Returns the histogram of stage with peer, or null if it was never timed with peer
+	 */
+	public LatencyHistogram getHistogram(String stage, InetSocketAddress peer) {
+		Map<InetSocketAddress,LatencyHistogram> peers = BY_PEER.get(stage);
+		return peers == null ? null : peers.get(peer);
+	}
+
+	/**
+	 * Returns how long to wait for stage with peer before giving up on it
+	 * @param stage one of CONNECT, OPEN, CREATE or EXTEND
+	 * @param peer router the stage is done with
+	 * @return timeout in milliseconds, between MIN_TIMEOUT and MAX_TIMEOUT
+	 */
+	public long getTimeout(String stage, InetSocketAddress peer) {
+		LatencyHistogram histogram = getHistogram(stage, peer);
+		if (histogram == null || histogram.getCount() < MIN_SAMPLES)
+			histogram = getHistogram(stage);
+		if (histogram.getCount() < MIN_SAMPLES)
+			return DEFAULT_TIMEOUT;
+		long timeout = (long) Math.ceil(histogram.getPercentile(TIMEOUT_PERCENTILE) * SAFETY_FACTOR / 1000);
+		return Math.min(Math.max(timeout, MIN_TIMEOUT), MAX_TIMEOUT);
+	}
+
+	/**
+	 * Returns a line per stage, each followed by a line per router it was timed with
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (String stage: STAGES) {
+			sb.append(stage).append(": ").append(OVERALL.get(stage)).append('\n');
+			for (Map.Entry<InetSocketAddress,LatencyHistogram> e: BY_PEER.get(stage).entrySet())
+				sb.append("    ").append(e.getKey()).append(": ").append(e.getValue())
+					.append(" timeout=").append(getTimeout(stage, e.getKey())).append(" ms\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,58 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Counts cells by cell type, and relay cells by relay command, into Metrics
+ *
+ * The counters are looked up by the command byte of the cell, so counting a cell costs
+ * two array reads and a LongAdder increment. A cell of a type we don't know is counted
+ * as unknown. Counters are named prefix_type, such as cells_in_relay_data.
+ *
+ */
+public class CellCounters {
+	private LongAdder[] BY_TYPE;
+	private LongAdder[] BY_RELAY_COMMAND;
+	private LongAdder UNKNOWN;
+
+	public CellCounters(Metrics metrics, String prefix) {
+		BY_TYPE = new LongAdder[256];
+		BY_RELAY_COMMAND = new LongAdder[256];
+		for (int cmd = 0; cmd < 256; cmd++) {
+			String type = TorCellConverter.getCellTypeName(cmd);
+			if (type != null && !type.equals("relay"))
+				BY_TYPE[cmd] = metrics.counter(prefix + "_" + type.replace(' ', '_'));
+			String relay_type = TorCellConverter.getRelayTypeName(cmd);
+			if (relay_type != null)
+				BY_RELAY_COMMAND[cmd] = metrics.counter(prefix + "_relay_" + relay_type.replace(' ', '_'));
+		}
+		UNKNOWN = metrics.counter(prefix + "_unknown");
+	}
+
+	/**
+	 * Counts the cell starting at offset in b
+	 */
+	public void count(byte[] b, int offset) {
+		int cmd = b[offset + TorCellConverter.CELL_TYPE_INDEX] & 0xff;
+		LongAdder counter = BY_TYPE[cmd];
+		if (counter == null && TorCellConverter.getCellTypeName(cmd) != null)
+			counter = BY_RELAY_COMMAND[b[offset + TorCellConverter.RELAY_TYPE_INDEX] & 0xff];
+		(counter == null ? UNKNOWN : counter).increment();
+	}
+
+	/**
+	 * Returns a stream that writes to out, and counts every whole cell written through it
+	 */
+	public OutputStream wrap(OutputStream out) {
+		return new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				if (len == TorCellConverter.CELL_LENGTH)
+					count(b, off);
+			}
+		};
+	}
+}
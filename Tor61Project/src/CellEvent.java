@@ -0,0 +1,46 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ *
+ * JFR event for a cell handled by a router, for the cells CellTracer samples
+ *
+ * The event lasts from when a write thread started on the cell until it was written on,
+ * and carries how long the cell waited for that thread after it was read.
+ *
+ */
+@Name("tor61.Cell")
+@Label("Tor61 Cell")
+@Category({"Tor61", "Cells"})
+@Description("A sampled cell handled by a router")
+@StackTrace(false)
+public class CellEvent extends jdk.jfr.Event {
+	@Label("Command")
+	@Description("Cell type, and relay command for relay cells")
+	public String command;
+
+	@Label("Circuit Id")
+	public int circuitId;
+
+	@Label("Peer")
+	@Description("Router or proxy the cell came from")
+	public String peer;
+
+	@Label("Forwarded")
+	@Description("True if the cell was passed on to the next router")
+	public boolean forwarded;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+
+	@Label("Dispatch Wait")
+	@Description("Time from the cell being read until a write thread started on it")
+	@Timespan
+	public long dispatchWait;
+}
@@ -0,0 +1,121 @@
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * Sampled tracing of how long a router takes to pass a cell on, split into stages
+ *
+ * A sampled cell is timestamped when its read thread has read all of it, when a write
+ * thread starts handling it, when the routing table told it where the cell goes, and
+ * when the cell was written to the next router or the destination. The time between
+ * each pair goes into a histogram per stage, so a slow hop shows whether the time goes
+ * to waiting for a write thread, to the table lookup or to the write itself.
+ *
+ * Whether a cell is sampled is decided once, when it is read, and costs one random
+ * number. Unsampled cells take no timestamps at all, so tracing a small share of cells
+ * can stay on. The share can be changed at any time with setSampleEvery.
+ *
+ */
+public class CellTracer {
+	public static final String READ_TO_DISPATCH = "read_to_dispatch";		// Cell read until a write thread handles it
+	public static final String DISPATCH_TO_LOOKUP = "dispatch_to_lookup";	// Until the routing table was looked up
+	public static final String LOOKUP_TO_WRITE = "lookup_to_write";		// Until the cell was written and flushed
+	public static final String READ_TO_WRITE = "read_to_write";			// The whole way through the router
+	private static final String[] STAGES = {READ_TO_DISPATCH, DISPATCH_TO_LOOKUP, LOOKUP_TO_WRITE, READ_TO_WRITE};
+
+	private volatile int SAMPLE_EVERY;			// One cell in this many is traced, 0 for none
+	private LatencyHistogram TO_DISPATCH;
+	private LatencyHistogram TO_LOOKUP;
+	private LatencyHistogram TO_WRITE;
+	private LatencyHistogram TOTAL;
+
+	public CellTracer() {
+		this(Integer.getInteger("tor61.trace.sample", 0));
+	}
+
+	public CellTracer(int sample_every) {
+		setSampleEvery(sample_every);
+		TO_DISPATCH = new LatencyHistogram();
+		TO_LOOKUP = new LatencyHistogram();
+		TO_WRITE = new LatencyHistogram();
+		TOTAL = new LatencyHistogram();
+	}
+
+	/**
+	 * Traces one cell in sample_every from now on, 1 traces every cell and 0 none
+	 */
+	public void setSampleEvery(int sample_every) {
+		if (sample_every < 0)
+			throw new IllegalArgumentException("Sampling rate must be 0 or more: " + sample_every);
+		SAMPLE_EVERY = sample_every;
+	}
+
+	public int getSampleEvery() {
+		return SAMPLE_EVERY;
+	}
+
+	/**
+	 * Called when a cell was read. Returns the time in nanoseconds if the cell is traced, 0 if it is not
+	 */
+	public long start() {
+		int every = SAMPLE_EVERY;
+		if (every == 0 || (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0))
+			return 0;
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records the stages of a traced cell. Times are from System.nanoTime, 0 for stages the cell never reached
+	 * @param read_at from start
+	 * @param dispatched_at when a write thread started handling the cell
+	 * @param looked_up_at when the routing table was looked up
+	 * @param written_at when the cell was written, 0 if it was not forwarded or delivered
+	 */
+	public void record(long read_at, long dispatched_at, long looked_up_at, long written_at) {
+		if (read_at == 0 || dispatched_at == 0)
+			return;
+		TO_DISPATCH.record(dispatched_at - read_at);
+		if (looked_up_at == 0)
+			return;
+		TO_LOOKUP.record(looked_up_at - dispatched_at);
+		if (written_at == 0)
+			return;
+		TO_WRITE.record(written_at - looked_up_at);
+		TOTAL.record(written_at - read_at);
+	}
+
+	/**
+	 * Returns the histogram of one of the stages
+	 */
+	public LatencyHistogram getHistogram(String stage) {
+		switch (stage) {
+			case READ_TO_DISPATCH:
+				return TO_DISPATCH;
+			case DISPATCH_TO_LOOKUP:
+				return TO_LOOKUP;
+			case LOOKUP_TO_WRITE:
+				return TO_WRITE;
+			case READ_TO_WRITE:
+				return TOTAL;
+			default:
+				throw new IllegalArgumentException("Unknown trace stage: " + stage);
+		}
+	}
+
+	/**
+	 * Returns the names of the stages, in the order a cell goes through them
+	 */
+	public static String[] getStages() {
+		return STAGES.clone();
+	}
+
+	/**
+	 * Returns the sampling rate and a line per stage
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(SAMPLE_EVERY == 0 ? "sampling off\n" : "sampling 1 in " + SAMPLE_EVERY + " cells\n");
+		for (String stage: STAGES)
+			sb.append(stage).append(": ").append(getHistogram(stage)).append('\n');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,146 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * One circuit the proxy built on its connection to our Tor router
+ *
+ * A circuit starts out BUILDING while it is created and extended hop by hop, waits in
+ * the proxy's pool as READY, becomes ACTIVE when the proxy starts sending new streams on
+ * it, is DRAINING once it is retired and only its remaining streams use it, and is CLOSED
+ * once it fails or is torn down. Replies to the create and extend cells sent while
+ * building are handed to the circuit by cid, in the order they arrive.
+ *
+ */
+public class Circuit {
+	public enum State { BUILDING, READY, ACTIVE, DRAINING, CLOSED }
+
+	private final short CID;
+	private volatile State STATE;
+	private volatile List<Entry> HOPS;					// Routers after our own, in order
+	private BlockingQueue<byte[]> REPLIES;				// Created, extended and their failures
+	private long CREATED_AT;							// milliseconds
+	private volatile long READY_AT;						// milliseconds, 0 while building
+	private volatile long ACTIVE_AT;					// milliseconds, 0 until new streams were sent on it
+	private int STREAMS;								// Streams started and not yet finished, guarded by this
+	private volatile int UNANSWERED;					// Streams in a row whose begin was never answered
+
+	public Circuit(short cid) {
+		CID = cid;
+		STATE = State.BUILDING;
+		HOPS = Collections.<Entry>emptyList();
+		REPLIES = new LinkedBlockingQueue<byte[]>();
+		CREATED_AT = System.currentTimeMillis();
+	}
+
+	public short getCid() {
+		return CID;
+	}
+
+	public State getState() {
+		return STATE;
+	}
+
+	/**
+	 * Returns the routers the circuit was extended through, after our own router
+	 */
+	public List<Entry> getHops() {
+		return HOPS;
+	}
+
+	/**
+	 * Returns how long building took in milliseconds, or -1 if the circuit was never built
+	 */
+	public long getBuildTime() {
+		return READY_AT == 0 ? -1 : READY_AT - CREATED_AT;
+	}
+
+	/**
+	 * Returns how long new streams have been sent on the circuit in milliseconds, 0 if they never were
+	 */
+	public long getActiveTime() {
+		return ACTIVE_AT == 0 ? 0 : System.currentTimeMillis() - ACTIVE_AT;
+	}
+
+	/**
+	 * Returns the number of streams on the circuit
+	 */
+	public synchronized int getStreamCount() {
+		return STREAMS;
+	}
+
+	/**
+	 * Returns how many streams in a row never got an answer to their begin
+	 */
+	public int getUnanswered() {
+		return UNANSWERED;
+	}
+
+	/**
+	 * Returns true while new streams may be sent on the circuit
+	 */
+	public boolean isUsable() {
+		return STATE == State.READY || STATE == State.ACTIVE;
+	}
+
+	// Records that the circuit now also goes through hop
+	void addHop(Entry hop) {
+		List<Entry> hops = new ArrayList<Entry>(HOPS);
+		hops.add(hop);
+		HOPS = Collections.unmodifiableList(hops);
+	}
+
+	// Moves the circuit to state, unless it is already closed. Returns false if it was closed
+	synchronized boolean setState(State state) {
+		if (STATE == State.CLOSED)
+			return false;
+		if (state == State.READY && READY_AT == 0)
+			READY_AT = System.currentTimeMillis();
+		if (state == State.ACTIVE && ACTIVE_AT == 0)
+			ACTIVE_AT = System.currentTimeMillis();
+		STATE = state;
+		return true;
+	}
+
+	// Counts a new stream on the circuit, returns false if the circuit no longer takes new streams
+	synchronized boolean addStream() {
+		if (!isUsable())
+			return false;
+		STREAMS++;
+		return true;
+	}
+
+	// Counts a stream as finished, returns true if it was the last one on a draining circuit
+	synchronized boolean streamFinished(boolean answered) {
+		UNANSWERED = answered ? 0 : UNANSWERED + 1;
+		STREAMS--;
+		return STATE == State.DRAINING && STREAMS == 0;
+	}
+
+	// Stops new streams from using the circuit, returns true if no stream is left on it
+	synchronized boolean retire() {
+		if (STATE == State.CLOSED)
+			return false;
+		STATE = State.DRAINING;
+		return STREAMS == 0;
+	}
+
+	// Called by the proxy's input thread with a reply to a cell sent while building
+	void receive(byte[] cell) {
+		REPLIES.add(cell);
+	}
+
+	// Waits up to timeout milliseconds for the next reply, returns null if none came
+	byte[] awaitReply(long timeout) throws InterruptedException {
+		return REPLIES.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public String toString() {
+		return "Circuit " + CID + " " + STATE + " streams: " + getStreamCount() + " hops: " + HOPS;
+	}
+}
@@ -0,0 +1,45 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * JFR event for a circuit being created, extended or destroyed at a router
+ *
+ * The event lasts as long as the router took, so an extend covers connecting and
+ * opening to the next router when needed, and waiting for its created.
+ *
+ * Like the other tor61 events it is recorded with -XX:StartFlightRecording and read
+ * with jfr print --events tor61.Circuit, and costs nothing when no recording runs.
+ *
+ */
+@Name("tor61.Circuit")
+@Label("Tor61 Circuit")
+@Category({"Tor61", "Circuits"})
+@Description("A circuit created, extended or destroyed at a router")
+@StackTrace(false)
+public class CircuitEvent extends jdk.jfr.Event {
+	public static final String CREATE = "create";
+	public static final String EXTEND = "extend";
+	public static final String DESTROY = "destroy";
+
+	@Label("Action")
+	@Description("create, extend or destroy")
+	public String action;
+
+	@Label("Circuit Id")
+	public int circuitId;
+
+	@Label("Peer")
+	@Description("Router or proxy at the other end of the circuit, the router extended to for an extend")
+	public String peer;
+
+	@Label("Next Circuit Id")
+	@Description("Circuit id on the connection to the next router, 0 if the circuit ends here")
+	public int nextCircuitId;
+
+	@Label("Succeeded")
+	public boolean succeeded;
+}
@@ -0,0 +1,665 @@
+import java.io.BufferedInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ *
+ * Runs a whole Tor61 network on loopback in one JVM, and measures fetches through it
+ *
+ * Starts a LocalRegistrationService, N TorRouters registered with it, a Tor61ProxyServer
+ * attached to the first router, and an HTTP origin whose /bytes/<n> answers with n bytes.
+ * The proxy builds its circuits through the routers like it would on the real network.
+ * Then clients fetch from the origin through the proxy, each on a stream of its own, and
+ * the harness records time to first byte, time to the last byte and the bytes received.
+ *
+ * Usage: java ClusterHarness [-routers n] [-length hops] [-size bytes] [-requests n]
+ *                            [-clients n] [-warmup n] [-out file]
+ *
+ *    -routers     routers to start, 3 by default
+ *    -length      routers in a circuit after the proxy's own, 2 by default
+ *    -size        bytes in each response, 1 MB by default
+ *    -requests    fetches to measure, 50 by default, after -warmup fetches that are not
+ *    -clients     fetches running at once, 1 by default
+ *    -out         where the results go as JSON, cluster-results.json by default
+ *
+ * It runs without a console, prints a summary line, and exits with 1 if any fetch failed.
+ * The ./cluster script compiles and runs it.
+ *
+ * With -soak the harness instead churns streams for that many seconds, hours for a real
+ * soak, and samples the heap, the thread count and the size of every table each -sample
+ * seconds. It exits with 1 if any of them kept growing, see soak.
+ *
+ */
+public class ClusterHarness {
+	private static final Log LOG = Log.get("harness");
+	private static final int GROUP = 9999;					// Registered names are Tor61Router-9999-<instance>
+	private static final String PREFIX = "Tor61Router-" + GROUP;
+	private static final int FETCH_TIMEOUT = 30 * 1000;		// milliseconds
+	private static final int MAX_BODY = 64 * 1024;			// Bytes the origin writes at once
+	private static final int ORIGIN_BACKLOG = 1024;			// Connections the origin queues, so load doesn't get refused
+	private static final int ABANDON_EVERY = 10;			// One soak fetch in this many hangs up early
+	private static final int MIN_TREND_SAMPLES = 4;			// Fewer samples than this say nothing about a trend
+	private static final long QUIESCE = 5000;				// milliseconds the cluster gets to go idle after a soak
+	private static final String[] ROUTER_TABLES = {"circuits", "connections", "streams", "openers", "pending_opens", "pending_creates"};
+	private static final String[] PROXY_TABLES = {"streams", "circuits"};
+	private static final Pattern STATUS_OK = Pattern.compile("^HTTP/1\\.[01] 200 ");
+	private static final Pattern CONTENT_LENGTH = Pattern.compile("(?im)^Content-Length:\\s*(\\d+)\\s*$");
+
+	private int ROUTER_COUNT;
+	private int CIRCUIT_LENGTH;
+	private LocalRegistrationService REGISTRY;
+	private List<TorRouter> ROUTERS = new ArrayList<TorRouter>();
+	private List<RegistrationAgent> AGENTS = new ArrayList<RegistrationAgent>();
+	private RouterDirectory DIRECTORY;
+	private Tor61ProxyServer PROXY;
+	private int PROXY_PORT;
+	private HttpServer ORIGIN;
+	private ExecutorService ORIGIN_THREADS;
+	private long CIRCUIT_BUILD_MS;				// Until the proxy's first circuit was ready
+
+	public static void main(String[] args) throws Exception {
+		Map<String,String> options = parseOptions(args, "-routers", "-length", "-size", "-requests", "-clients", "-warmup",
+				"-soak", "-sample", "-out");
+		if (options == null) {
+			System.out.println("Usage: java ClusterHarness [-routers n] [-length hops] [-size bytes] [-requests n] [-clients n] [-warmup n] [-out file]");
+			System.out.println("       java ClusterHarness -soak seconds [-sample seconds] [-routers n] [-length hops] [-size bytes] [-clients n] [-out file]");
+			System.exit(2);
+		}
+		boolean soak = options.containsKey("-soak");
+		int routers = option(options, "-routers", 3);
+		int length = option(options, "-length", 2);
+		int size = option(options, "-size", soak ? 64 * 1024 : 1024 * 1024);
+		int requests = option(options, "-requests", 50);
+		int clients = option(options, "-clients", soak ? 8 : 1);
+		int warmup = option(options, "-warmup", 5);
+		String out = options.containsKey("-out") ? options.get("-out") : "cluster-results.json";
+
+		ClusterHarness cluster = new ClusterHarness(routers, length);
+		cluster.start();
+		cluster.run(size, warmup, 1);
+		if (soak) {
+			Map<String,Object> results = cluster.soak(option(options, "-soak", 0) * 1000L, option(options, "-sample", 10) * 1000L, clients, size);
+			Map<String,Object> document = new LinkedHashMap<String,Object>();
+			document.put("routers", routers);
+			document.put("circuit_length", length);
+			document.put("max_response_bytes", size);
+			document.put("clients", clients);
+			document.putAll(results);
+			write(out, document);
+			List<?> growing = (List<?>) results.get("growing");
+			System.out.println(growing.isEmpty() ? "Nothing grew without bound. Results in " + out
+					: "Grew without bound: " + growing + ". Results in " + out);
+			Log.flush(1000);
+			System.exit(growing.isEmpty() ? 0 : 1);
+		}
+		Map<String,Object> results = cluster.run(size, requests, clients);
+		results.put("metrics", cluster.getMetrics());
+
+		Map<String,Object> document = new LinkedHashMap<String,Object>();
+		document.put("routers", routers);
+		document.put("circuit_length", length);
+		document.put("response_bytes", size);
+		document.put("clients", clients);
+		document.put("circuit_build_ms", cluster.CIRCUIT_BUILD_MS);
+		document.putAll(results);
+		write(out, document);
+
+		System.out.println(String.format("%d routers, %d hops, %d x %d bytes: %.2f MB/s, time to first byte p50 %d us p99 %d us, %d failed. Results in %s",
+				routers, length, requests, size, results.get("throughput_mb_per_s"), ((Map<?,?>) results.get("ttfb_us")).get("p50"),
+				((Map<?,?>) results.get("ttfb_us")).get("p99"), results.get("failed"), out));
+		Log.flush(1000);
+		System.exit(((Long) results.get("failed")) == 0 ? 0 : 1);
+	}
+
+	/**
+	 * @param routers routers to start
+	 * @param circuit_length routers in a circuit after the proxy's own
+	 */
+	public ClusterHarness(int routers, int circuit_length) {
+		if (routers < 1 || circuit_length < 1)
+			throw new IllegalArgumentException("Need at least one router and one hop");
+		ROUTER_COUNT = routers;
+		CIRCUIT_LENGTH = circuit_length;
+	}
+
+	/**
+	 * Starts the registry, routers, origin and proxy, and waits until the proxy has a circuit
+	 * @throws IOException if something could not be started
+	 */
+	public void start() throws IOException, InterruptedException {
+		// The proxy reads its circuit length once, when its class loads
+		if (System.getProperty("tor61.circuit.length") == null)
+			System.setProperty("tor61.circuit.length", Integer.toString(CIRCUIT_LENGTH));
+
+		REGISTRY = new LocalRegistrationService(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), LocalRegistrationService.DEFAULT_LIFETIME);
+		if (!REGISTRY.start())
+			throw new IOException("Registration service failed to start");
+
+		int first_port = 0;
+		for (int i = 1; i <= ROUTER_COUNT; i++) {
+			ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+			int service_data = GROUP << 16 | i;
+			TorRouter router = new TorRouter(socket, service_data);
+			if (!router.start())
+				throw new IOException("Router " + i + " failed to start");
+			RegistrationAgent agent = new RegistrationAgent("127.0.0.1", REGISTRY.getPort());
+			if (!agent.register(socket.getLocalPort(), service_data, String.format("%s-%04d", PREFIX, i)))
+				throw new IOException("Router " + i + " failed to register");
+			ROUTERS.add(router);
+			AGENTS.add(agent);
+			if (i == 1)
+				first_port = socket.getLocalPort();
+		}
+
+		startOrigin();
+
+		DIRECTORY = new RouterDirectory(AGENTS.get(0), PREFIX);
+		DIRECTORY.start();
+		try {
+			DIRECTORY.refresh().get();
+		} catch (Exception e) {
+			throw new IOException("Could not fetch the routers", e);
+		}
+
+		PROXY_PORT = freeProxyPort();
+		PROXY = new Tor61ProxyServer(PROXY_PORT, first_port, InetAddress.getLoopbackAddress(), GROUP << 16 | 1);
+		PROXY.start();
+		long started = System.currentTimeMillis();
+		PROXY.startPool(DIRECTORY);
+		if (PROXY.awaitCircuit(FETCH_TIMEOUT) == null)
+			throw new IOException("Proxy built no circuit in " + FETCH_TIMEOUT + " ms");
+		CIRCUIT_BUILD_MS = System.currentTimeMillis() - started;
+		LOG.info("Cluster of " + ROUTER_COUNT + " routers ready, proxy on " + PROXY_PORT + ", origin on " + getOriginPort());
+	}
+
+	/**
+	 * Fetches size bytes from the origin through the proxy, requests times over clients threads at once
+	 * @return the results: fetches that succeeded and failed, bytes, seconds, throughput, and time to
+	 * first byte and to the last byte in microseconds
+	 */
+	public Map<String,Object> run(final int size, int requests, int clients) throws InterruptedException {
+		final AtomicInteger remaining = new AtomicInteger(requests);
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final LatencyHistogram first_byte = new LatencyHistogram();
+		final LatencyHistogram last_byte = new LatencyHistogram();
+
+		Thread[] threads = new Thread[clients];
+		long started = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread("HarnessClient-" + i) {
+				public void run() {
+					while (remaining.getAndDecrement() > 0) {
+						Fetch fetch = fetch(size);
+						if (fetch.ok) {
+							bytes.addAndGet(fetch.bytes);
+							first_byte.record(fetch.first_byte);
+							last_byte.record(fetch.last_byte);
+						} else {
+							failed.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t: threads)
+			t.join();
+		double seconds = (System.nanoTime() - started) / 1e9;
+
+		Map<String,Object> results = new LinkedHashMap<String,Object>();
+		results.put("requests", requests);
+		results.put("succeeded", first_byte.getCount());
+		results.put("failed", failed.get());
+		results.put("bytes", bytes.get());
+		results.put("seconds", seconds);
+		results.put("throughput_mb_per_s", bytes.get() / seconds / (1024 * 1024));
+		results.put("ttfb_us", percentiles(first_byte));
+		results.put("latency_us", percentiles(last_byte));
+		return results;
+	}
+
+	/**
+	 * Churns streams for millis milliseconds and watches for anything growing without bound
+	 *
+	 * clients threads keep fetching up to size bytes, with and without CONNECT, and one fetch
+	 * in ABANDON_EVERY hangs up after the first bytes, the way a browser cancels a load. Every
+	 * sample_millis the heap in use after a collection, the thread count and every table size
+	 * are sampled. Something is reported as growing if, over the samples after the first
+	 * quarter, its trend adds more than its allowance, or if once the load stopped and the
+	 * cluster went idle it is more than its allowance above where it was idle before the load.
+	 *
+	 * @return the samples, and under "growing" whatever grew, empty if nothing did
+	 */
+	public Map<String,Object> soak(long millis, long sample_millis, int clients, final int size) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + millis;
+		final AtomicLong fetches = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		Map<String,Long> idle_before = sample();
+		long started = System.currentTimeMillis();
+
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread("SoakClient-" + i) {
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					while (System.currentTimeMillis() < deadline) {
+						int bytes = 1 + r.nextInt(size);
+						boolean ok;
+						if (r.nextInt(ABANDON_EVERY) == 0)
+							ok = abandon(bytes);
+						else
+							ok = fetch(bytes, r.nextBoolean()).ok;
+						fetches.incrementAndGet();
+						if (!ok)
+							failed.incrementAndGet();
+					}
+				}
+			};
+			threads[i].start();
+		}
+
+		List<Map<String,Long>> samples = new ArrayList<Map<String,Long>>();
+		while (System.currentTimeMillis() < deadline) {
+			Thread.sleep(Math.max(1, Math.min(sample_millis, deadline - System.currentTimeMillis())));
+			Map<String,Long> sample = sample();
+			sample.put("elapsed_ms", System.currentTimeMillis() - started);
+			sample.put("fetches", fetches.get());
+			samples.add(sample);
+			System.out.println(String.format("%6d s  heap %5d MB  threads %5d  router streams %5d  router circuits %5d  proxy streams %5d  fetches %8d",
+					sample.get("elapsed_ms") / 1000, sample.get("heap_bytes") >> 20, sample.get("threads"), sum(sample, "_streams", "router_"),
+					sum(sample, "_circuits", "router_"), sample.get("proxy_streams"), fetches.get()));
+		}
+		for (Thread t: threads)
+			t.join();
+		// Let streams that were cut off finish ending, and the routers' threads for them exit
+		Thread.sleep(QUIESCE);
+		Map<String,Long> idle_after = sample();
+
+		List<Object> growing = new ArrayList<Object>();
+		int from = samples.size() / 4;
+		for (String series: idle_before.keySet()) {
+			long allowance = allowance(series, clients, idle_before.get(series));
+			if (samples.size() - from >= MIN_TREND_SAMPLES) {
+				double growth = trend(samples.subList(from, samples.size()), series);
+				if (growth > allowance)
+					growing.add(series + " trended up by " + Math.round(growth) + " over the run, allowed " + allowance);
+			}
+			long left = idle_after.get(series) - idle_before.get(series);
+			if (left > allowance)
+				growing.add(series + " was " + idle_before.get(series) + " idle before the load and " + idle_after.get(series) + " after, allowed " + allowance);
+		}
+
+		Map<String,Object> results = new LinkedHashMap<String,Object>();
+		results.put("seconds", (System.currentTimeMillis() - started) / 1000.0);
+		results.put("fetches", fetches.get());
+		results.put("failed", failed.get());
+		results.put("growing", growing);
+		results.put("idle_before", idle_before);
+		results.put("idle_after", idle_after);
+		results.put("samples", samples);
+		return results;
+	}
+
+	// Heap in use after a collection, threads, and the size of every table of every router, the proxy and the registry
+	private Map<String,Long> sample() {
+		System.gc();
+		Map<String,Long> sample = new LinkedHashMap<String,Long>();
+		sample.put("heap_bytes", ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		sample.put("threads", (long) ManagementFactory.getThreadMXBean().getThreadCount());
+		for (int i = 0; i < ROUTERS.size(); i++) {
+			Map<String,Long> values = ROUTERS.get(i).getMetrics().getValues();
+			for (String table: ROUTER_TABLES)
+				sample.put("router_" + (i + 1) + "_" + table, values.get(table));
+		}
+		Map<String,Long> values = PROXY.getMetrics().getValues();
+		for (String table: PROXY_TABLES)
+			sample.put("proxy_" + table, values.get(table));
+		sample.put("registrations", (long) REGISTRY.size());
+		return sample;
+	}
+
+	// How much series may grow before it counts as unbounded. Tables may hold what the clients
+	// have open, threads come and go with streams, and the heap moves with the collector
+	private static long allowance(String series, int clients, long idle) {
+		if (series.equals("heap_bytes"))
+			return Math.max(16L << 20, idle / 4);
+		if (series.equals("threads"))
+			return 4L * clients + 16;
+		return 2L * clients + 4;
+	}
+
+	// Least squares slope of series against elapsed time, times the time the samples span
+	private static double trend(List<Map<String,Long>> samples, String series) {
+		double n = samples.size();
+		double sx = 0, sy = 0, sxx = 0, sxy = 0;
+		for (Map<String,Long> sample: samples) {
+			double x = sample.get("elapsed_ms");
+			double y = sample.get(series);
+			sx += x;
+			sy += y;
+			sxx += x * x;
+			sxy += x * y;
+		}
+		double denominator = n * sxx - sx * sx;
+		if (denominator == 0)
+			return 0;
+		double slope = (n * sxy - sx * sy) / denominator;
+		return slope * (samples.get(samples.size() - 1).get("elapsed_ms") - samples.get(0).get("elapsed_ms"));
+	}
+
+	private static long sum(Map<String,Long> sample, String suffix, String prefix) {
+		long total = 0;
+		for (Map.Entry<String,Long> e: sample.entrySet()) {
+			if (e.getKey().startsWith(prefix) && e.getKey().endsWith(suffix))
+				total += e.getValue();
+		}
+		return total;
+	}
+
+	// Asks for size bytes and hangs up after the first of them, returns false if nothing came
+	private boolean abandon(int size) {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), PROXY_PORT), FETCH_TIMEOUT);
+			socket.setSoTimeout(FETCH_TIMEOUT);
+			String host = "127.0.0.1:" + getOriginPort();
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET http://" + host + "/bytes/" + size + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n").getBytes());
+			out.flush();
+			return socket.getInputStream().read() != -1;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Fetches /bytes/size from the origin through the proxy, on a stream of its own
+	 */
+	public Fetch fetch(int size) {
+		return fetch(size, false);
+	}
+
+	/**
+	 * Fetches /bytes/size from the origin through the proxy, on a stream of its own
+	 * @param tunnel true to open the stream with CONNECT and send the GET through it, like
+	 * a browser does for https, false to send the GET to the proxy
+	 */
+	public Fetch fetch(int size, boolean tunnel) {
+		Fetch fetch = new Fetch();
+		long started = System.nanoTime();
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), PROXY_PORT), FETCH_TIMEOUT);
+			socket.setSoTimeout(FETCH_TIMEOUT);
+			String host = "127.0.0.1:" + getOriginPort();
+			OutputStream out = socket.getOutputStream();
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			if (tunnel) {
+				out.write(("CONNECT " + host + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes());
+				out.flush();
+				if (!readHeader(in).startsWith("HTTP/1.0 200"))
+					return fetch;
+				out.write(("GET /bytes/" + size + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n").getBytes());
+			} else {
+				out.write(("GET http://" + host + "/bytes/" + size + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n").getBytes());
+			}
+			out.flush();
+
+			// Time to first byte is to the first byte of the response, headers included
+			in.mark(1);
+			if (in.read() == -1)
+				return fetch;
+			fetch.first_byte = System.nanoTime() - started;
+			in.reset();
+			String header = readHeader(in);
+			if (!STATUS_OK.matcher(header).find())
+				return fetch;
+			Matcher length = CONTENT_LENGTH.matcher(header);
+			long expected = length.find() ? Long.parseLong(length.group(1)) : size;
+
+			// Only the body counts, and it has to be exactly what was asked for
+			byte[] buffer = new byte[16 * 1024];
+			long received = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				received += read;
+			fetch.last_byte = System.nanoTime() - started;
+			fetch.bytes = received;
+			fetch.ok = expected == size && received == size;
+		} catch (IOException e) {
+			LOG.debug("Fetch through the proxy failed: " + e.getMessage());
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+		return fetch;
+	}
+
+	// Reads a response header up to the blank line after it, one byte at a time so nothing after it is read
+	private static String readHeader(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int b;
+		while ((b = in.read()) != -1) {
+			sb.append((char) b);
+			if (sb.length() >= 4 && sb.lastIndexOf("\r\n\r\n") == sb.length() - 4)
+				break;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the counters and gauges of every router and the proxy, by MBean name
+	 */
+	public Map<String,Object> getMetrics() {
+		Map<String,Object> metrics = new LinkedHashMap<String,Object>();
+		for (int i = 0; i < ROUTERS.size(); i++)
+			metrics.put("router_" + (i + 1), ROUTERS.get(i).getMetrics().getValues());
+		metrics.put("proxy", PROXY.getMetrics().getValues());
+		return metrics;
+	}
+
+	public List<TorRouter> getRouters() {
+		return Collections.unmodifiableList(ROUTERS);
+	}
+
+	public Tor61ProxyServer getProxy() {
+		return PROXY;
+	}
+
+	public int getProxyPort() {
+		return PROXY_PORT;
+	}
+
+	public int getOriginPort() {
+		return ORIGIN.getAddress().getPort();
+	}
+
+	// Serves /bytes/<n> with n bytes of 'x', written in chunks so large responses use little memory
+	private void startOrigin() throws IOException {
+		final byte[] body = new byte[MAX_BODY];
+		Arrays.fill(body, (byte) 'x');
+		ORIGIN = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), ORIGIN_BACKLOG);
+		ORIGIN_THREADS = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "HarnessOrigin");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ORIGIN.setExecutor(ORIGIN_THREADS);
+		ORIGIN.createContext("/bytes/", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					long length = Long.parseLong(exchange.getRequestURI().getPath().substring("/bytes/".length()));
+					exchange.sendResponseHeaders(200, length == 0 ? -1 : length);
+					OutputStream out = exchange.getResponseBody();
+					while (length > 0) {
+						int chunk = (int) Math.min(length, body.length);
+						out.write(body, 0, chunk);
+						length -= chunk;
+					}
+					out.close();
+				} catch (NumberFormatException e) {
+					exchange.sendResponseHeaders(400, -1);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		ORIGIN.start();
+	}
+
+	// The proxy takes a fixed port from 1024 to 49151, so find one that is free right now
+	private static int freeProxyPort() throws IOException {
+		for (int port = 20000 + (int) (Math.random() * 20000), tries = 0; tries < 100; port++, tries++) {
+			try {
+				new ServerSocket(port).close();
+				return port;
+			} catch (IOException e) {
+				continue;
+			}
+		}
+		throw new IOException("No free port for the proxy");
+	}
+
+	/**
+	 * Returns the count, mean, percentiles and max of histogram, in microseconds
+	 */
+	static Map<String,Object> percentiles(LatencyHistogram histogram) {
+		Map<String,Object> values = new LinkedHashMap<String,Object>();
+		values.put("count", histogram.getCount());
+		values.put("mean", Math.round(histogram.getMean()));
+		values.put("p50", histogram.getPercentile(50));
+		values.put("p90", histogram.getPercentile(90));
+		values.put("p99", histogram.getPercentile(99));
+		values.put("max", histogram.getMax());
+		return values;
+	}
+
+	/**
+	 * Parses "-name value" pairs, returns null if an option is not one of names or has no value
+	 */
+	static Map<String,String> parseOptions(String[] args, String... names) {
+		Map<String,String> options = new LinkedHashMap<String,String>();
+		for (int i = 0; i < args.length; i += 2) {
+			if (!Arrays.asList(names).contains(args[i]) || i + 1 >= args.length)
+				return null;
+			options.put(args[i], args[i + 1]);
+		}
+		return options;
+	}
+
+	static int option(Map<String,String> options, String name, int value) {
+		return options.containsKey(name) ? Integer.parseInt(options.get(name)) : value;
+	}
+
+	/**
+	 * Writes value as JSON to file. Maps become objects, lists and arrays become arrays,
+	 * numbers and booleans stay as they are, and anything else becomes a string
+	 */
+	static void write(String file, Object value) throws FileNotFoundException {
+		StringBuilder sb = new StringBuilder();
+		toJson(value, sb, "");
+		PrintWriter out = new PrintWriter(file);
+		out.println(sb);
+		out.close();
+	}
+
+	static void toJson(Object value, StringBuilder sb, String indent) {
+		if (value instanceof Map) {
+			sb.append("{");
+			String separator = "\n";
+			for (Map.Entry<?,?> e: ((Map<?,?>) value).entrySet()) {
+				sb.append(separator).append(indent).append("  ");
+				quote(String.valueOf(e.getKey()), sb);
+				sb.append(": ");
+				toJson(e.getValue(), sb, indent + "  ");
+				separator = ",\n";
+			}
+			sb.append(separator.equals("\n") ? "}" : "\n" + indent + "}");
+		} else if (value != null && value.getClass().isArray()) {
+			List<Object> list = new ArrayList<Object>();
+			for (int i = 0; i < Array.getLength(value); i++)
+				list.add(Array.get(value, i));
+			toJson(list, sb, indent);
+		} else if (value instanceof List) {
+			sb.append("[");
+			String separator = "\n";
+			for (Object o: (List<?>) value) {
+				sb.append(separator).append(indent).append("  ");
+				toJson(o, sb, indent + "  ");
+				separator = ",\n";
+			}
+			sb.append(separator.equals("\n") ? "]" : "\n" + indent + "]");
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			sb.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.format(Locale.ROOT, "%.3f", d));
+		} else if (value instanceof Number || value instanceof Boolean) {
+			sb.append(value);
+		} else if (value == null) {
+			sb.append("null");
+		} else {
+			quote(value.toString(), sb);
+		}
+	}
+
+	private static void quote(String s, StringBuilder sb) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * How one fetch went, times in nanoseconds from connecting to the proxy
+	 */
+	public static class Fetch {
+		public boolean ok;				// A 200 with exactly the body asked for
+		public long first_byte;
+		public long last_byte;
+		public long bytes;				// Body bytes received, headers not counted
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ *
+ * Microbenchmarks for TorCellConverter, PackOutputStream and UnpackOutputStream
+ *
+ * Every benchmark is warmed up, then timed over several fixed-length iterations. For each
+ * one this prints operations per second with its error, and what -prof gc would: bytes
+ * allocated per operation, and the collections and collection time during measurement.
+ * Allocation is read from the thread's own allocation counter, so it is exact and does not
+ * depend on the machine, while throughput only compares between runs on the same machine.
+ *
+ * Usage: java CodecBenchmark [-save file] [-baseline file] [-tolerance percent] [regex]
+ *
+ *    regex        only runs benchmarks whose name contains a match, such as "pack|unpack"
+ *    -save        writes the results, in the format -baseline reads
+ *    -baseline    compares against results saved earlier, and exits with 1 if a benchmark
+ *                 got slower by more than the tolerance (10% by default) and the error of
+ *                 both runs, or allocates more
+ *
+ * The ./bench script compiles and runs this, and keeps its baseline in bench-baseline.txt.
+ *
+ */
+public class CodecBenchmark {
+	private static final int WARMUP_ITERATIONS = Integer.getInteger("tor61.bench.warmup", 5);
+	private static final int MEASURED_ITERATIONS = Integer.getInteger("tor61.bench.iterations", 5);
+	private static final long ITERATION_NANOS = Long.getLong("tor61.bench.millis", 500) * 1000000L;
+	private static final int[] DATA_SIZES = {100, 498, 4096, 65536};	// One cell, a full cell, a page, a large response
+
+	private static volatile Object SINK;	// Every result is stored here, so the JIT can't drop the work or its allocations
+
+	private Map<String,Bench> BENCHMARKS = new LinkedHashMap<String,Bench>();
+
+	public static void main(String[] args) throws IOException {
+		String save = null;
+		String baseline = null;
+		double tolerance = 10;
+		Pattern filter = Pattern.compile("");
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-save") && i + 1 < args.length) {
+				save = args[++i];
+			} else if (args[i].equals("-baseline") && i + 1 < args.length) {
+				baseline = args[++i];
+			} else if (args[i].equals("-tolerance") && i + 1 < args.length) {
+				tolerance = Double.parseDouble(args[++i]);
+			} else if (args[i].startsWith("-")) {
+				System.out.println("Usage: java CodecBenchmark [-save file] [-baseline file] [-tolerance percent] [regex]");
+				System.exit(2);
+			} else {
+				filter = Pattern.compile(args[i]);
+			}
+		}
+
+		CodecBenchmark benchmark = new CodecBenchmark();
+		Map<String,Result> results = new LinkedHashMap<String,Result>();
+		System.out.println(String.format("%-32s %14s %10s %12s %6s %8s", "Benchmark", "ops/s", "error", "B/op", "gc", "gc ms"));
+		for (Map.Entry<String,Bench> e: benchmark.BENCHMARKS.entrySet()) {
+			if (!filter.matcher(e.getKey()).find())
+				continue;
+			Result result = measure(e.getValue());
+			results.put(e.getKey(), result);
+			System.out.println(String.format("%-32s %14.0f %10.0f %12.1f %6d %8d", e.getKey(),
+					result.ops_per_second, result.error, result.bytes_per_op, result.gc_count, result.gc_millis));
+		}
+
+		if (save != null) {
+			PrintWriter out = new PrintWriter(save);
+			out.println("# CodecBenchmark results from " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+					+ " on " + Runtime.getRuntime().availableProcessors() + " cpus");
+			out.println("# benchmark ops_per_second error bytes_per_op");
+			for (Map.Entry<String,Result> e: results.entrySet()) {
+				Result result = e.getValue();
+				out.println(e.getKey() + " " + Math.round(result.ops_per_second) + " " + Math.round(result.error)
+						+ " " + String.format("%.1f", result.bytes_per_op));
+			}
+			out.close();
+			System.out.println("Saved results to " + save);
+		}
+		if (baseline != null && !compare(results, baseline, tolerance))
+			System.exit(1);
+	}
+
+	public CodecBenchmark() {
+		final short cid = 0x1234;
+		final short stream_id = 0x0567;
+		final byte[] create = TorCellConverter.getCreateCell(cid);
+		final byte[] open = TorCellConverter.getOpenCell(cid, 123123, 456456);
+		final byte[] begin = TorCellConverter.getBeginCell(cid, stream_id, "www.example.com:80", TorCellConverter.BEGIN_FLAG_COMPRESS);
+		final byte[] extend = TorCellConverter.getRelayCells("extend", cid, stream_id, "127.0.0.1:46000\0" + 123123).get(0);
+		final byte[] data = TorCellConverter.getRelayCells("data", cid, stream_id, "GET / HTTP/1.1").get(0);
+
+		add("create_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getCreateCell(cid);
+			}
+		});
+		add("create_cell_from", new Bench() {
+			Object run() {
+				return TorCellConverter.getCreateCell(create);
+			}
+		});
+		add("created_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getCreatedCell(cid);
+			}
+		});
+		add("create_fail_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getCreateFailCell(cid);
+			}
+		});
+		add("destroy_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getDestroyCell(cid);
+			}
+		});
+		add("open_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getOpenCell(cid, 123123, 456456);
+			}
+		});
+		add("opened_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getOpenedCell(open);
+			}
+		});
+		add("open_fail_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getOpenFailCell(open);
+			}
+		});
+		add("begin_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getBeginCell(cid, stream_id, "www.example.com:80", TorCellConverter.BEGIN_FLAG_COMPRESS);
+			}
+		});
+		add("connected_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getConnectedCell(cid, stream_id, TorCellConverter.BEGIN_FLAG_COMPRESS);
+			}
+		});
+		add("end_cell", new Bench() {
+			Object run() {
+				return TorCellConverter.getRelayCells("end", cid, stream_id, "").get(0);
+			}
+		});
+		add("cell_type", new Bench() {
+			Object run() {
+				return TorCellConverter.getCellType(data);
+			}
+		});
+		add("relay_subcell_type", new Bench() {
+			Object run() {
+				return TorCellConverter.getRelaySubcellType(data);
+			}
+		});
+		add("update_cid", new Bench() {
+			Object run() {
+				return TorCellConverter.updateCID(data, 0x4321);
+			}
+		});
+		add("extend_destination", new Bench() {
+			Object run() {
+				return TorCellConverter.getExtendDestination(extend);
+			}
+		});
+		add("begin_destination", new Bench() {
+			Object run() {
+				return TorCellConverter.getBeginDestination(begin);
+			}
+		});
+
+		for (final int size: DATA_SIZES) {
+			final String text = randomText(size);
+			final byte[] bytes = text.getBytes();
+			final List<byte[]> cells = TorCellConverter.getRelayCells("data", cid, stream_id, text);
+
+			add("relay_cells_" + size, new Bench() {
+				Object run() {
+					return TorCellConverter.getRelayCells("data", cid, stream_id, text);
+				}
+			});
+
+			// The streams are built once, like on a real stream, and write to a stream that discards everything
+			final PackOutputStream pack = new PackOutputStream(new DataOutputStream(new NullOutputStream()), cid, stream_id);
+			add("pack_" + size, new Bench() {
+				Object run() throws IOException {
+					pack.write(bytes, 0, bytes.length);
+					return pack;
+				}
+			});
+			final PackOutputStream compressing = new PackOutputStream(new DataOutputStream(new NullOutputStream()), cid, stream_id);
+			compressing.enableCompression();
+			add("pack_compressed_" + size, new Bench() {
+				Object run() throws IOException {
+					compressing.write(bytes, 0, bytes.length);
+					return compressing;
+				}
+			});
+			final UnpackOutputStream unpack = new UnpackOutputStream(new DataOutputStream(new NullOutputStream()));
+			add("unpack_" + size, new Bench() {
+				Object run() throws IOException {
+					for (int i = 0; i < cells.size(); i++)
+						unpack.write(cells.get(i));
+					return unpack;
+				}
+			});
+		}
+	}
+
+	private void add(String name, Bench bench) {
+		BENCHMARKS.put(name, bench);
+	}
+
+	// Warms bench up, then runs it for MEASURED_ITERATIONS iterations of ITERATION_NANOS each
+	private static Result measure(Bench bench) throws IOException {
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			iteration(bench);
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread_id = Thread.currentThread().getId();
+		long gc_count = gcCount();
+		long gc_millis = gcMillis();
+		long allocated = threads.getThreadAllocatedBytes(thread_id);
+		double[] rates = new double[MEASURED_ITERATIONS];
+		long total_ops = 0;
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			long start = System.nanoTime();
+			long ops = iteration(bench);
+			rates[i] = ops * 1e9 / (System.nanoTime() - start);
+			total_ops += ops;
+		}
+
+		Result result = new Result();
+		result.bytes_per_op = (double) (threads.getThreadAllocatedBytes(thread_id) - allocated) / total_ops;
+		result.gc_count = gcCount() - gc_count;
+		result.gc_millis = gcMillis() - gc_millis;
+		double sum = 0;
+		for (double rate: rates)
+			sum += rate;
+		result.ops_per_second = sum / rates.length;
+		double squares = 0;
+		for (double rate: rates)
+			squares += (rate - result.ops_per_second) * (rate - result.ops_per_second);
+		result.error = rates.length < 2 ? 0 : Math.sqrt(squares / (rates.length - 1));
+		return result;
+	}
+
+	// Runs bench in batches until ITERATION_NANOS have passed, returns how many times it ran
+	private static long iteration(Bench bench) throws IOException {
+		long ops = 0;
+		long end = System.nanoTime() + ITERATION_NANOS;
+		do {
+			for (int i = 0; i < 64; i++)
+				SINK = bench.run();
+			ops += 64;
+		} while (System.nanoTime() < end);
+		return ops;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			count += Math.max(0, gc.getCollectionCount());
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc: ManagementFactory.getGarbageCollectorMXBeans())
+			millis += Math.max(0, gc.getCollectionTime());
+		return millis;
+	}
+
+	// Prints how results differ from the baseline file, returns false if any benchmark regressed
+	private static boolean compare(Map<String,Result> results, String baseline, double tolerance) throws IOException {
+		Map<String,double[]> base = new LinkedHashMap<String,double[]>();
+		BufferedReader in = new BufferedReader(new FileReader(baseline));
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			String[] parts = line.split("\\s+");
+			base.put(parts[0], new double[] {Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3])});
+		}
+		in.close();
+
+		boolean ok = true;
+		System.out.println();
+		System.out.println(String.format("%-32s %10s %12s   against %s", "Benchmark", "ops/s", "B/op", baseline));
+		for (Map.Entry<String,Result> e: results.entrySet()) {
+			double[] before = base.get(e.getKey());
+			if (before == null) {
+				System.out.println(String.format("%-32s %10s %12s", e.getKey(), "new", "new"));
+				continue;
+			}
+			Result after = e.getValue();
+			double speed = (after.ops_per_second - before[0]) * 100 / before[0];
+			double bytes = after.bytes_per_op - before[2];
+			// Throughput only regressed if the drop is also more than both runs' error, since a
+			// busy machine easily moves it by the tolerance. Allocation is exact, but a few bytes
+			// per op come and go with where the JIT's counters land
+			boolean slower = speed < -tolerance && before[0] - after.ops_per_second > before[1] + after.error;
+			boolean regressed = slower || bytes > Math.max(8, before[2] * 0.01);
+			ok &= !regressed;
+			System.out.println(String.format("%-32s %+9.1f%% %+12.1f%s", e.getKey(), speed, bytes, regressed ? "   REGRESSED" : ""));
+		}
+		System.out.println(ok ? "No regressions" : "Some benchmarks regressed");
+		return ok;
+	}
+
+	private static String randomText(int size) {
+		Random random = new Random(size);
+		char[] text = new char[size];
+		for (int i = 0; i < size; i++)
+			text[i] = (char) ('a' + random.nextInt(26));
+		return new String(text);
+	}
+
+	/**
+	 * One benchmarked operation, returns its result
+	 */
+	private static abstract class Bench {
+		abstract Object run() throws IOException;
+	}
+
+	private static class Result {
+		private double ops_per_second;
+		private double error;			// Standard deviation of ops_per_second between iterations
+		private double bytes_per_op;
+		private long gc_count;
+		private long gc_millis;
+	}
+
+	/**
+	 * Discards everything written to it, so only the streams themselves are measured
+	 */
+	private static class NullOutputStream extends OutputStream {
+		public void write(int b) {
+		}
+
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -1,9 +1,9 @@
 import java.net.InetAddress;
 
 public class Entry {
-	public InetAddress ip;
-	public int port;
-	public int serviceData;
+	public final InetAddress ip;
+	public final int port;
+	public final int serviceData;
 	
 	public Entry(InetAddress ip, int port, int serviceData) {
 		this.ip = ip;
@@ -0,0 +1,259 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * Opens TCP connections to stream destinations for streams exiting at this router
+ *
+ * All connects run non-blocking on a single selector thread, so a destination that
+ * never answers holds no thread while it is pending. Each connect is abandoned once
+ * its deadline passes, and only a limited number of connects to the same destination
+ * may be pending at once so one slow destination cannot crowd out the others.
+ *
+ * Deadline and per-destination limit can be set with the system properties
+ * tor61.exit.connectTimeout (milliseconds) and tor61.exit.maxPendingPerDestination
+ *
+ */
+public class ExitConnector {
+	private static final Log LOG = Log.get("exit");
+	private static final int DEFAULT_CONNECT_TIMEOUT = 3000;		// milliseconds
+	private static final int DEFAULT_MAX_PENDING_PER_DESTINATION = 8;
+
+	private int CONNECT_TIMEOUT;
+	private int MAX_PENDING_PER_DESTINATION;
+	private volatile boolean RUNNING;
+	private Selector SELECTOR;
+	private ConnectThread CONNECTOR;
+	private Queue<PendingConnect> NEW_CONNECTS;						// Connects waiting to be handed to the selector
+	private Map<InetSocketAddress,AtomicInteger> PENDING;			// destination -> connects in progress
+
+	public ExitConnector() {
+		this(Integer.getInteger("tor61.exit.connectTimeout", DEFAULT_CONNECT_TIMEOUT),
+				Integer.getInteger("tor61.exit.maxPendingPerDestination", DEFAULT_MAX_PENDING_PER_DESTINATION));
+	}
+
+	public ExitConnector(int connect_timeout, int max_pending_per_destination) {
+		CONNECT_TIMEOUT = connect_timeout;
+		MAX_PENDING_PER_DESTINATION = max_pending_per_destination;
+		NEW_CONNECTS = new ConcurrentLinkedQueue<PendingConnect>();
+		PENDING = new ConcurrentHashMap<InetSocketAddress,AtomicInteger>();
+		try {
+			SELECTOR = Selector.open();
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not open selector for exit connects", e);
+		}
+		RUNNING = true;
+		CONNECTOR = new ConnectThread();
+		CONNECTOR.setDaemon(true);
+		CONNECTOR.start();
+	}
+
+	/**
+	 * Starts connecting to address
+	 * @param address resolved destination
+	 * @return future completed with a connected blocking socket, or exceptionally if the connect
+	 * 		failed, passed its deadline, or too many connects to address are already pending
+	 */
+	public CompletableFuture<Socket> connect(InetSocketAddress address) {
+		CompletableFuture<Socket> future = new CompletableFuture<Socket>();
+		if (!RUNNING) {
+			future.completeExceptionally(new IOException("Exit connector has been stopped"));
+			return future;
+		}
+
+		AtomicInteger pending = PENDING.get(address);
+		if (pending == null) {
+			AtomicInteger created = new AtomicInteger();
+			pending = PENDING.putIfAbsent(address, created);
+			if (pending == null)
+				pending = created;
+		}
+		if (pending.incrementAndGet() > MAX_PENDING_PER_DESTINATION) {
+			pending.decrementAndGet();
+			future.completeExceptionally(new IOException("Too many pending connects to " + address));
+			return future;
+		}
+
+		NEW_CONNECTS.add(new PendingConnect(address, pending, future, System.currentTimeMillis() + CONNECT_TIMEOUT));
+		SELECTOR.wakeup();
+		return future;
+	}
+
+	/**
+	 * Stops the selector thread and fails every connect still pending
+	 */
+	public void quit() {
+		RUNNING = false;
+		SELECTOR.wakeup();
+	}
+
+	/**
+	 * Runs every pending connect on one selector
+	 */
+	private class ConnectThread extends Thread {
+
+		public ConnectThread() {
+			super("ExitConnector");
+		}
+
+		public void run() {
+			List<SelectionKey> done = new ArrayList<SelectionKey>();
+			while (RUNNING) {
+				try {
+					registerNewConnects();
+
+					long wait = nextDeadline() - System.currentTimeMillis();
+					if (wait <= 0)
+						SELECTOR.selectNow();
+					else
+						SELECTOR.select(wait);
+
+					// Connects that finished, successfully or not
+					Iterator<SelectionKey> it = SELECTOR.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						PendingConnect connect = (PendingConnect) key.attachment();
+						try {
+							if (connect.channel.finishConnect()) {
+								key.cancel();
+								done.add(key);
+							}
+						} catch (IOException e) {
+							key.cancel();
+							connect.fail(e);
+						}
+					}
+
+					// Connects that ran out of time
+					long now = System.currentTimeMillis();
+					for (SelectionKey key: SELECTOR.keys()) {
+						PendingConnect connect = (PendingConnect) key.attachment();
+						if (key.isValid() && now >= connect.deadline) {
+							key.cancel();
+							connect.fail(new SocketTimeoutException("Connect to " + connect.address
+									+ " timed out after " + CONNECT_TIMEOUT + " ms"));
+						}
+					}
+
+					// Cancelled keys are only released by the next select, and a channel
+					// cannot go back to blocking mode while it is still registered
+					if (!done.isEmpty()) {
+						SELECTOR.selectNow();
+						for (SelectionKey key: done)
+							((PendingConnect) key.attachment()).succeed();
+						done.clear();
+					}
+				} catch (IOException e) {
+					LOG.warn("Error in exit connector selector loop", e);
+				}
+			}
+
+			// Being here means we were stopped
+			PendingConnect connect;
+			while ((connect = NEW_CONNECTS.poll()) != null)
+				connect.fail(new IOException("Exit connector has been stopped"));
+			for (SelectionKey key: SELECTOR.keys()) {
+				if (key.isValid())
+					((PendingConnect) key.attachment()).fail(new IOException("Exit connector has been stopped"));
+			}
+			try {
+				SELECTOR.close();
+			} catch (IOException e) {
+				LOG.warn("IOException: Exit connector stopped, but failed to close selector");
+			}
+		}
+
+		// Hands connects queued by other threads to the selector
+		private void registerNewConnects() {
+			PendingConnect connect;
+			while ((connect = NEW_CONNECTS.poll()) != null) {
+				try {
+					connect.channel = SocketChannel.open();
+					connect.channel.configureBlocking(false);
+					if (connect.channel.connect(connect.address))
+						connect.succeed();
+					else
+						connect.channel.register(SELECTOR, SelectionKey.OP_CONNECT, connect);
+				} catch (IOException e) {
+					connect.fail(e);
+				}
+			}
+		}
+
+		// Earliest deadline of any connect on the selector, or a second from now if there are none
+		private long nextDeadline() {
+			long next = System.currentTimeMillis() + 1000;
+			for (SelectionKey key: SELECTOR.keys()) {
+				if (key.isValid())
+					next = Math.min(next, ((PendingConnect) key.attachment()).deadline);
+			}
+			return next;
+		}
+	}
+
+	/**
+	 * One connect in progress
+	 */
+	private class PendingConnect {
+		private InetSocketAddress address;
+		private AtomicInteger pending;			// connects in progress to the same destination
+		private CompletableFuture<Socket> future;
+		private long deadline;
+		private SocketChannel channel;
+
+		public PendingConnect(InetSocketAddress address, AtomicInteger pending, CompletableFuture<Socket> future, long deadline) {
+			this.address = address;
+			this.pending = pending;
+			this.future = future;
+			this.deadline = deadline;
+		}
+
+		public void succeed() {
+			release();
+			try {
+				channel.configureBlocking(true);
+				future.complete(channel.socket());
+			} catch (IOException e) {
+				close();
+				future.completeExceptionally(e);
+			}
+		}
+
+		public void fail(IOException e) {
+			release();
+			close();
+			future.completeExceptionally(e);
+		}
+
+		// Gives back this connect's slot, forgetting the destination once nothing is pending
+		private void release() {
+			if (pending.decrementAndGet() == 0)
+				PENDING.remove(address, pending);
+		}
+
+		private void close() {
+			if (channel == null)
+				return;
+			try {
+				channel.close();
+			} catch (IOException e) {
+				LOG.warn("Failed to close channel of failed exit connect to " + address);
+			}
+		}
+	}
+}
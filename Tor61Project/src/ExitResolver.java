@@ -0,0 +1,141 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ *
+ * Caches host name lookups for streams that exit at this router
+ *
+ * Successful lookups are kept for POSITIVE_TTL, failed lookups for NEGATIVE_TTL.
+ * Concurrent lookups of the same name share a single resolution, and all
+ * resolutions run on the resolver's own threads, never on the thread asking.
+ *
+ */
+public class ExitResolver {
+	private static final Log LOG = Log.get("exit");
+	private static final long POSITIVE_TTL = 60 * 1000;	// Keep resolved addresses for 60 seconds
+	private static final long NEGATIVE_TTL = 10 * 1000;	// Keep failed lookups for 10 seconds
+	private static final int MAX_ENTRIES = 4096;			// Upper bound on cached names
+	private static final int RESOLVER_THREADS = 4;
+
+	private Map<String,CachedAddress> CACHE;						// host -> last lookup result
+	private Map<String,CompletableFuture<InetAddress>> IN_FLIGHT;	// host -> lookup currently running
+	private ExecutorService RESOLVERS;
+
+	public ExitResolver() {
+		CACHE = new ConcurrentHashMap<String,CachedAddress>();
+		IN_FLIGHT = new ConcurrentHashMap<String,CompletableFuture<InetAddress>>();
+		RESOLVERS = Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ExitResolver");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Resolves host, using the cache when the previous answer has not expired
+	 * @param host host name or literal ip address
+	 * @return future completed with the address, or exceptionally with UnknownHostException
+	 */
+	public CompletableFuture<InetAddress> resolve(final String host) {
+		CachedAddress cached = CACHE.get(host);
+		if (cached != null && !cached.isExpired(System.currentTimeMillis()))
+			return cached.toFuture(host);
+
+		// Only the caller that installs the future starts a lookup, everyone else waits on it
+		CompletableFuture<InetAddress> future = new CompletableFuture<InetAddress>();
+		CompletableFuture<InetAddress> existing = IN_FLIGHT.putIfAbsent(host, future);
+		if (existing != null)
+			return existing;
+
+		RESOLVERS.execute(new Lookup(host, future));
+		return future;
+	}
+
+	/**
+	 * Stops the resolver threads. Lookups already running are allowed to finish
+	 */
+	public void quit() {
+		RESOLVERS.shutdown();
+	}
+
+	// Drops expired entries, and everything if the cache is still too big
+	private void evict() {
+		long now = System.currentTimeMillis();
+		Iterator<CachedAddress> it = CACHE.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().isExpired(now))
+				it.remove();
+		}
+		if (CACHE.size() >= MAX_ENTRIES)
+			CACHE.clear();
+	}
+
+	/**
+	 * Runs one lookup and publishes the result to the cache and to everyone waiting on it
+	 */
+	private class Lookup implements Runnable {
+		private String host;
+		private CompletableFuture<InetAddress> future;
+
+		public Lookup(String host, CompletableFuture<InetAddress> future) {
+			this.host = host;
+			this.future = future;
+		}
+
+		public void run() {
+			InetAddress address = null;
+			try {
+				address = InetAddress.getByName(host);
+			} catch (UnknownHostException e) {
+				LOG.info("ExitResolver failed to resolve: " + host);
+			}
+
+			if (CACHE.size() >= MAX_ENTRIES)
+				evict();
+			long ttl = address != null ? POSITIVE_TTL : NEGATIVE_TTL;
+			CachedAddress cached = new CachedAddress(address, System.currentTimeMillis() + ttl);
+			CACHE.put(host, cached);
+			IN_FLIGHT.remove(host);
+
+			if (address != null)
+				future.complete(address);
+			else
+				future.completeExceptionally(new UnknownHostException(host));
+		}
+	}
+
+	/**
+	 * Result of a lookup. A null address means the lookup failed
+	 */
+	private static class CachedAddress {
+		private InetAddress address;
+		private long expires;
+
+		public CachedAddress(InetAddress address, long expires) {
+			this.address = address;
+			this.expires = expires;
+		}
+
+		public boolean isExpired(long now) {
+			return now >= expires;
+		}
+
+		public CompletableFuture<InetAddress> toFuture(String host) {
+			CompletableFuture<InetAddress> future = new CompletableFuture<InetAddress>();
+			if (address != null)
+				future.complete(address);
+			else
+				future.completeExceptionally(new UnknownHostException(host));
+			return future;
+		}
+	}
+}
@@ -0,0 +1,117 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * Lock-free histogram of latencies, in the style of HdrHistogram
+ *
+ * Latencies are counted in microsecond buckets that grow with the value: below
+ * SUB_BUCKETS microseconds each value has its own bucket, and above that every
+ * doubling is split into SUB_BUCKETS buckets, so any value is known to within
+ * 1 / SUB_BUCKETS of itself. Recording is one atomic increment per counter and
+ * never blocks, so it can be done on the data path from any number of threads.
+ * Percentiles read while others record are approximate, but never off by more
+ * than the samples recorded meanwhile.
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;		// Buckets per doubling, values within 12.5%
+	private static final int MAX_MAGNITUDE = 40;						// Largest value is 2^40 microseconds, about 12 days
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private AtomicLongArray COUNTS;
+	private AtomicLong COUNT;
+	private AtomicLong SUM;					// microseconds
+	private AtomicLong MAX;					// microseconds
+
+	public LatencyHistogram() {
+		COUNTS = new AtomicLongArray(BUCKETS);
+		COUNT = new AtomicLong();
+		SUM = new AtomicLong();
+		MAX = new AtomicLong();
+	}
+
+	/**
+	 * Records one latency
+	 * @param nanos latency in nanoseconds, negative values count as 0
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		COUNTS.incrementAndGet(indexOf(micros));
+		SUM.addAndGet(micros);
+		long max;
+		while (micros > (max = MAX.get()) && !MAX.compareAndSet(max, micros));
+		COUNT.incrementAndGet();
+	}
+
+	/**
+	 * Returns the number of latencies recorded
+	 */
+	public long getCount() {
+		return COUNT.get();
+	}
+
+	/**
+	 * Returns the mean latency in microseconds, 0 if nothing was recorded
+	 */
+	public double getMean() {
+		long count = COUNT.get();
+		return count == 0 ? 0 : (double) SUM.get() / count;
+	}
+
+	/**
+	 * Returns the largest latency recorded in microseconds
+	 */
+	public long getMax() {
+		return MAX.get();
+	}
+
+	/**
+	 * Returns the latency that percentile percent of the recorded latencies are at or below,
+	 * rounded up to the top of its bucket, in microseconds. 0 if nothing was recorded
+	 * @param percentile 0 to 100
+	 */
+	public long getPercentile(double percentile) {
+		long count = COUNT.get();
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += COUNTS.get(i);
+			if (seen >= rank)
+				return Math.min(highestInBucket(i), MAX.get());
+		}
+		return MAX.get();
+	}
+
+	/**
+	 * Returns count, mean and the usual percentiles in milliseconds, on one line
+	 */
+	public String toString() {
+		return String.format("n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f ms", getCount(), getMean() / 1000,
+				getPercentile(50) / 1000.0, getPercentile(90) / 1000.0, getPercentile(99) / 1000.0, getMax() / 1000.0);
+	}
+
+	// Bucket holding micros
+	private static int indexOf(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) micros;
+		int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+		if (magnitude >= MAX_MAGNITUDE)
+			return BUCKETS - 1;
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+	}
+
+	// Largest value that lands in bucket index
+	private static long highestInBucket(int index) {
+		if (index < SUB_BUCKETS)
+			return index;
+		int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+		int sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+	}
+}
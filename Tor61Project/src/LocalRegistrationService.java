@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Stand-in for the well-known registration service, for running routers on a machine
+ * that cannot reach it, such as for local tests and benchmarks
+ *
+ * Speaks the same P1P register, fetch, unregister and probe messages over UDP. Everything
+ * is handled on one thread from one non-blocking channel, and each message is answered
+ * straight from memory, so it keeps up with thousands of registrations a second.
+ * Registrations expire after LIFETIME seconds unless they are renewed, and a fetch
+ * returns at most P1PMessage.MAX_FETCH_ENTRIES entries.
+ *
+ * Point a RegistrationAgent at it with the system properties tor61.registration.host
+ * and tor61.registration.port, or run it on its own with
+ * 		java LocalRegistrationService [port]
+ *
+ */
+public class LocalRegistrationService {
+	private static final Log LOG = Log.get("registry");
+	public static final int DEFAULT_LIFETIME = 60;				// seconds
+	private static final int DATA_BUFFER_SIZE = 65507;			// Largest UDP payload
+
+	private InetSocketAddress ADDRESS;
+	private int LIFETIME;
+	private volatile boolean LISTENING;
+	private DatagramChannel CHANNEL;
+	private Selector SELECTOR;
+	private ServiceThread SERVICE;
+	private Map<Long,Registration> REGISTRATIONS;				// ip and port -> registration
+
+	// Listens on the loopback address
+	public LocalRegistrationService(int port) {
+		this(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), DEFAULT_LIFETIME);
+	}
+
+	public LocalRegistrationService(InetSocketAddress address, int lifetime) {
+		ADDRESS = address;
+		LIFETIME = lifetime;
+		LISTENING = false;
+		REGISTRATIONS = new ConcurrentHashMap<Long,Registration>();
+	}
+
+	/**
+	 * Starts the service if it is not already started
+	 * @return true if successfully started, and false otherwise
+	 */
+	public boolean start() {
+		if (LISTENING)
+			return false;
+		try {
+			SELECTOR = Selector.open();
+			CHANNEL = DatagramChannel.open();
+			CHANNEL.bind(ADDRESS);
+			CHANNEL.configureBlocking(false);
+			CHANNEL.register(SELECTOR, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			LOG.error("Local registration service failed to bind to " + ADDRESS, e);
+			return false;
+		}
+		LISTENING = true;
+		SERVICE = new ServiceThread();
+		SERVICE.setDaemon(true);
+		SERVICE.start();
+		return true;
+	}
+
+	/**
+	 * Returns the port the service listens on, which is useful when it was started on port 0
+	 */
+	public int getPort() {
+		try {
+			return ((InetSocketAddress) CHANNEL.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Returns the number of registrations held, including any that expired but were not yet removed
+	 */
+	public int size() {
+		return REGISTRATIONS.size();
+	}
+
+	/**
+	 * Stops the service
+	 * @return true if successfully stopped, and false otherwise
+	 */
+	public boolean quit() {
+		if (!LISTENING)
+			return false;
+		LISTENING = false;
+		SELECTOR.wakeup();
+		try {
+			SERVICE.join();
+			return true;
+		} catch (InterruptedException e) {
+			LOG.warn("Interrupted when waiting for the local registration service to stop", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Handles every message sent to the service
+	 */
+	private class ServiceThread extends Thread {
+		private ByteBuffer request = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+		private ByteBuffer response = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+
+		public ServiceThread() {
+			super("LocalRegistrationService");
+		}
+
+		public void run() {
+			long next_sweep = System.currentTimeMillis() + LIFETIME * 1000L;
+			while (LISTENING) {
+				try {
+					SELECTOR.select(LIFETIME * 1000L);
+					SELECTOR.selectedKeys().clear();
+
+					SocketAddress from;
+					while ((from = CHANNEL.receive(request)) != null) {
+						request.flip();
+						response.clear();
+						if (handle(request, response)) {
+							response.flip();
+							CHANNEL.send(response, from);
+						}
+						request.clear();
+					}
+
+					long now = System.currentTimeMillis();
+					if (now >= next_sweep) {
+						removeExpired(now);
+						next_sweep = now + LIFETIME * 1000L;
+					}
+				} catch (IOException e) {
+					if (LISTENING) {
+						LOG.warn("Error in local registration service loop", e);
+					}
+				}
+			}
+
+			try {
+				CHANNEL.close();
+				SELECTOR.close();
+			} catch (IOException e) {
+				LOG.warn("Local registration service stopped, but failed to close channel", e);
+			}
+		}
+
+		// Writes the answer to message into response, returns false if there is nothing to answer
+		private boolean handle(ByteBuffer message, ByteBuffer response) {
+			int seq = P1PMessage.getSequence(message);
+			if (seq == -1)
+				return false;
+
+			switch (P1PMessage.getCommand(message)) {
+				case P1PMessage.REGISTER_COMMAND: {
+					if (!P1PMessage.isCompleteRegister(message))
+						return false;
+					int ip = P1PMessage.getAddress(message);
+					int port = P1PMessage.getPort(message);
+					REGISTRATIONS.put(key(ip, port), new Registration(ip, port, P1PMessage.getServiceData(message),
+							P1PMessage.getName(message), System.currentTimeMillis() + LIFETIME * 1000L));
+					P1PMessage.putRegistered(response, seq, LIFETIME);
+					return true;
+				}
+				case P1PMessage.FETCH_COMMAND: {
+					String prefix = P1PMessage.getPrefix(message);
+					if (prefix == null)
+						return false;
+					int start = P1PMessage.putFetchResponse(response, seq);
+					long now = System.currentTimeMillis();
+					for (Registration r: REGISTRATIONS.values()) {
+						if (r.expires > now && r.name.startsWith(prefix)
+								&& !P1PMessage.putFetchEntry(response, start, r.ip, r.port, r.data))
+							break;
+					}
+					return true;
+				}
+				case P1PMessage.UNREGISTER_COMMAND: {
+					int port = P1PMessage.getPort(message);
+					if (port == -1)
+						return false;
+					REGISTRATIONS.remove(key(P1PMessage.getAddress(message), port));
+					P1PMessage.putAck(response, seq);
+					return true;
+				}
+				case P1PMessage.PROBE_COMMAND:
+					P1PMessage.putAck(response, seq);
+					return true;
+				default:
+					return false;
+			}
+		}
+
+		private void removeExpired(long now) {
+			Iterator<Registration> it = REGISTRATIONS.values().iterator();
+			while (it.hasNext()) {
+				if (it.next().expires <= now)
+					it.remove();
+			}
+		}
+	}
+
+	private static long key(int ip, int port) {
+		return ((long) ip << 16) | port;
+	}
+
+	/**
+	 * One registered service
+	 */
+	private static class Registration {
+		private final int ip;
+		private final int port;
+		private final int data;
+		private final String name;
+		private final long expires;
+
+		public Registration(int ip, int port, int data, String name, long expires) {
+			this.ip = ip;
+			this.port = port;
+			this.data = data;
+			this.name = name;
+			this.expires = expires;
+		}
+	}
+
+	public static void main(String[] args) {
+		int port = 46101;
+		if (args.length == 1) {
+			try {
+				port = Integer.parseInt(args[0]);
+			} catch (NumberFormatException e) {
+				System.out.println("Usage: java LocalRegistrationService [port]");
+				System.exit(1);
+			}
+		}
+		LocalRegistrationService service = new LocalRegistrationService(port);
+		if (!service.start())
+			System.exit(1);
+		System.out.println("Local registration service listening on port " + service.getPort());
+		try {
+			service.SERVICE.join();
+		} catch (InterruptedException e) {
+			service.quit();
+		}
+	}
+}
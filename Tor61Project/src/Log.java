@@ -0,0 +1,265 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * Asynchronous leveled logger, with a level per subsystem such as router, proxy or agent
+ *
+ * Logging a line only puts it in a bounded ring buffer, and one writer thread formats and
+ * prints everything in the buffer in batches, so threads on the data path never wait on
+ * the console. When the buffer is full lines are dropped and counted rather than blocking.
+ * Checking a disabled level is a single volatile read, and code on the data path checks it
+ * with isEnabled before building its message, so disabled lines cost nothing else.
+ *
+ * Levels start from the system property tor61.log, such as "info" or "warn,router=debug",
+ * and can be changed at runtime with setLevel.
+ *
+ */
+public class Log {
+	public enum Level { OFF, ERROR, WARN, INFO, DEBUG, TRACE }
+
+	private static final int CAPACITY = Integer.getInteger("tor61.log.buffer", 8192);	// Lines waiting to be printed
+	private static final int BATCH = 256;				// Lines printed per flush of the console
+	private static final Map<String,Log> LOGS = new ConcurrentHashMap<String,Log>();
+	private static final Map<String,Level> CONFIGURED = new ConcurrentHashMap<String,Level>();	// subsystem -> level from tor61.log
+	private static volatile Level DEFAULT_LEVEL = Level.INFO;
+	private static final BlockingQueue<Line> BUFFER = new ArrayBlockingQueue<Line>(CAPACITY);
+	private static final LongAdder DROPPED = new LongAdder();
+	private static final PrintStream OUT = System.out;
+
+	static {
+		configure(System.getProperty("tor61.log", "info"));
+		Thread writer = new Thread(new Writer(), "LogWriter");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				flush(1000);
+			}
+		});
+	}
+
+	private final String SUBSYSTEM;
+	private volatile Level LEVEL;
+
+	private Log(String subsystem, Level level) {
+		SUBSYSTEM = subsystem;
+		LEVEL = level;
+	}
+
+	/**
+	 * Returns the logger of subsystem, creating it at its configured level if there is none
+	 */
+	public static Log get(String subsystem) {
+		Log log = LOGS.get(subsystem);
+		if (log == null) {
+			Level level = CONFIGURED.get(subsystem);
+			Log created = new Log(subsystem, level == null ? DEFAULT_LEVEL : level);
+			log = LOGS.putIfAbsent(subsystem, created);
+			if (log == null)
+				log = created;
+		}
+		return log;
+	}
+
+	/**
+	 * Sets the level of subsystem, or of every subsystem without a level of its own if subsystem is null
+	 */
+	public static void setLevel(String subsystem, Level level) {
+		if (subsystem == null) {
+			DEFAULT_LEVEL = level;
+			for (Log log: LOGS.values()) {
+				if (!CONFIGURED.containsKey(log.SUBSYSTEM))
+					log.LEVEL = level;
+			}
+		} else {
+			CONFIGURED.put(subsystem, level);
+			get(subsystem).LEVEL = level;
+		}
+	}
+
+	/**
+	 * Sets levels from a list such as "warn,router=debug,proxy=trace"
+	 * @throws IllegalArgumentException if a level is not one of Level
+	 */
+	public static void configure(String levels) {
+		for (String part: levels.split(",")) {
+			part = part.trim();
+			if (part.isEmpty())
+				continue;
+			int equals = part.indexOf('=');
+			if (equals == -1)
+				setLevel(null, Level.valueOf(part.toUpperCase()));
+			else
+				setLevel(part.substring(0, equals).trim(), Level.valueOf(part.substring(equals + 1).trim().toUpperCase()));
+		}
+	}
+
+	/**
+	 * Returns every subsystem that logged so far, with its level
+	 */
+	public static String getLevels() {
+		StringBuilder sb = new StringBuilder("default=" + DEFAULT_LEVEL);
+		for (Log log: LOGS.values())
+			sb.append(' ').append(log.SUBSYSTEM).append('=').append(log.LEVEL);
+		return sb.toString();
+	}
+
+	/**
+	 * Returns how many lines were dropped because the buffer was full
+	 */
+	public static long getDropped() {
+		return DROPPED.sum();
+	}
+
+	/**
+	 * Waits up to timeout milliseconds for every line logged so far to be printed
+	 * @return true if they all were
+	 */
+	public static boolean flush(long timeout) {
+		Line marker = new Line(null, null, null, null, null);
+		marker.flushed = new CountDownLatch(1);
+		try {
+			if (!BUFFER.offer(marker, timeout, TimeUnit.MILLISECONDS))
+				return false;
+			return marker.flushed.await(timeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	public boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) <= 0 && level != Level.OFF;
+	}
+
+	public Level getLevel() {
+		return LEVEL;
+	}
+
+	public void error(String message) {
+		log(Level.ERROR, message, null);
+	}
+
+	public void error(String message, Throwable thrown) {
+		log(Level.ERROR, message, thrown);
+	}
+
+	public void warn(String message) {
+		log(Level.WARN, message, null);
+	}
+
+	public void warn(String message, Throwable thrown) {
+		log(Level.WARN, message, thrown);
+	}
+
+	public void info(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	public void debug(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	public void trace(String message) {
+		log(Level.TRACE, message, null);
+	}
+
+	/**
+	 * Queues message to be printed if level is enabled, never waits for the console
+	 */
+	public void log(Level level, String message, Throwable thrown) {
+		if (!isEnabled(level))
+			return;
+		Line line = new Line(level, SUBSYSTEM, Thread.currentThread().getName(), message, thrown);
+		if (!BUFFER.offer(line))
+			DROPPED.increment();
+	}
+
+	/**
+	 * One logged line, formatted only once the writer prints it
+	 */
+	private static class Line {
+		private final long time = System.currentTimeMillis();
+		private final Level level;
+		private final String subsystem;
+		private final String thread;
+		private final String message;
+		private final Throwable thrown;
+		private CountDownLatch flushed;			// Set on markers put by flush
+
+		public Line(Level level, String subsystem, String thread, String message, Throwable thrown) {
+			this.level = level;
+			this.subsystem = subsystem;
+			this.thread = thread;
+			this.message = message;
+			this.thrown = thrown;
+		}
+	}
+
+	/**
+	 * Prints lines from the buffer in batches, and reports lines that were dropped
+	 */
+	private static class Writer implements Runnable {
+		private SimpleDateFormat FORMAT = new SimpleDateFormat("HH:mm:ss.SSS");
+		private Date DATE = new Date();
+		private long REPORTED_DROPPED = 0;
+
+		public void run() {
+			List<Line> batch = new ArrayList<Line>(BATCH);
+			StringBuilder sb = new StringBuilder();
+			while (true) {
+				try {
+					batch.add(BUFFER.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				BUFFER.drainTo(batch, BATCH - 1);
+				for (Line line: batch) {
+					if (line.flushed != null) {
+						printBatch(sb);
+						line.flushed.countDown();
+					} else {
+						format(line, sb);
+					}
+				}
+				batch.clear();
+				long dropped = DROPPED.sum();
+				if (dropped != REPORTED_DROPPED) {
+					sb.append("Log dropped ").append(dropped - REPORTED_DROPPED).append(" lines, buffer was full\n");
+					REPORTED_DROPPED = dropped;
+				}
+				printBatch(sb);
+			}
+		}
+
+		private void format(Line line, StringBuilder sb) {
+			DATE.setTime(line.time);
+			sb.append(FORMAT.format(DATE)).append(' ').append(line.level).append(" [").append(line.subsystem)
+				.append("] ").append(line.thread).append(": ").append(line.message).append('\n');
+			if (line.thrown != null) {
+				sb.append("    ").append(line.thrown).append('\n');
+				for (StackTraceElement e: line.thrown.getStackTrace())
+					sb.append("        at ").append(e).append('\n');
+			}
+		}
+
+		private void printBatch(StringBuilder sb) {
+			if (sb.length() == 0)
+				return;
+			OUT.print(sb);
+			OUT.flush();
+			sb.setLength(0);
+		}
+	}
+}
@@ -0,0 +1,173 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ *
+ * Counters and gauges of one part of Tor61, such as a router, proxy or registration agent
+ *
+ * Counters are LongAdders, so counting an event from any number of threads is a single
+ * uncontended add of a few nanoseconds. Code on the data path looks its counters up once
+ * and keeps them in fields. Gauges are read only when someone asks for them, from
+ * whatever they measure, so they cost nothing in between. Every metric is exported as a
+ * read-only attribute of a JMX MBean once register is called, so jconsole or any other
+ * JMX client can watch a running router.
+ *
+ */
+public class Metrics implements DynamicMBean {
+	private static final Log LOG = Log.get("metrics");
+	private String TYPE;								// What these metrics measure, such as TorRouter
+	private Map<String,LongAdder> COUNTERS;
+	private Map<String,LongSupplier> GAUGES;
+	private ObjectName NAME;							// Null until registered with JMX
+	private volatile String INSTANCE;					// Name given to register, tells apart metrics of the same type
+
+	public Metrics(String type) {
+		TYPE = type;
+		COUNTERS = new ConcurrentHashMap<String,LongAdder>();
+		GAUGES = new ConcurrentHashMap<String,LongSupplier>();
+	}
+
+	public String getType() {
+		return TYPE;
+	}
+
+	/**
+	 * Returns the name the metrics were registered under, or null if they never were
+	 */
+	public String getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Returns true if name is a counter, which only goes up, and false if it is a gauge
+	 */
+	public boolean isCounter(String name) {
+		return COUNTERS.containsKey(name);
+	}
+
+	/**
+	 * Returns the counter called name, adding it at 0 if there is none
+	 */
+	public LongAdder counter(String name) {
+		LongAdder counter = COUNTERS.get(name);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = COUNTERS.putIfAbsent(name, created);
+			if (counter == null)
+				counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * Adds a gauge called name, whose value is read from value each time it is asked for
+	 */
+	public void gauge(String name, LongSupplier value) {
+		GAUGES.put(name, value);
+	}
+
+	/**
+	 * Returns the current value of every counter and gauge, sorted by name
+	 */
+	public Map<String,Long> getValues() {
+		Map<String,Long> values = new TreeMap<String,Long>();
+		for (Map.Entry<String,LongAdder> e: COUNTERS.entrySet())
+			values.put(e.getKey(), e.getValue().sum());
+		for (Map.Entry<String,LongSupplier> e: GAUGES.entrySet())
+			values.put(e.getKey(), e.getValue().getAsLong());
+		return values;
+	}
+
+	/**
+	 * Exports the metrics as the MBean Tor61:type=TYPE,name=name
+	 * @param name tells apart several of the same type in one process, such as a port
+	 * @return true if registered, false if JMX refused it
+	 */
+	public boolean register(String name) {
+		INSTANCE = name;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName object_name = new ObjectName("Tor61:type=" + TYPE + ",name=" + ObjectName.quote(name));
+			server.registerMBean(this, object_name);
+			NAME = object_name;
+			return true;
+		} catch (JMException e) {
+			LOG.warn("Failed to register " + TYPE + " metrics with JMX: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the MBean added by register, if any
+	 */
+	public void unregister() {
+		if (NAME == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(NAME);
+		} catch (JMException e) {
+			LOG.warn("Failed to unregister " + NAME + ": " + e.getMessage());
+		}
+		NAME = null;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		LongAdder counter = COUNTERS.get(attribute);
+		if (counter != null)
+			return counter.sum();
+		LongSupplier gauge = GAUGES.get(attribute);
+		if (gauge != null)
+			return gauge.getAsLong();
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute: attributes) {
+			try {
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// Left out, as the JMX contract asks
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(action), "Metrics have no operations: " + action);
+	}
+
+	// Lists every metric there is right now, counters added later show up the next time it is asked
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name: getValues().keySet())
+			attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+		return new MBeanInfo(Metrics.class.getName(), TYPE + " metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+	}
+}
@@ -1,342 +1,361 @@
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
 
+/**
+ *
+ * Encodes and decodes P1P registration messages
+ *
+ * Encoders write a whole message at the buffer's position and advance it, and decoders
+ * read the message that starts at the buffer's position without moving it. Both work on
+ * buffers the caller provides and take and return primitives, so nothing is allocated per
+ * message. Decoders return -1 (or false) for a message that is too short, or has the wrong
+ * magic number, command or sequence number.
+ *
+ */
 public class P1PMessage {
 	private static final int MAGIC_NUMBER = 50273;
-	
-	private static final int REGISTER_COMMAND = 1;
-	private static final int REGISTERED_COMMAND = 2;
-	private static final int FETCH_COMMAND = 3;
-	private static final int FETCH_RESPONSE_COMMAND = 4;
-	private static final int UNREGISTER_COMMAND = 5;
-	private static final int PROBE_COMMAND = 6;
-	private static final int ACK_COMMAND = 7;
-	
-	private static final int REGISTER_HEADER_SIZE = 15;
-	private static final int UNREGISTER_HEADER_SIZE = 10;
-	private static final int FETCH_HEADER_SIZE = 5;
-	private static final int PROBE_HEADER_SIZE = 4;
-	private static final int ACK_HEADER_SIZE = 4;
-	
-	private static ByteBuffer bb;
-	
-	/**
-	 * constructing P1PMessage register message against 
-	 * the user's input, sequence number, and user's IP
-	 * @param input		user's stdin input
-	 * @param seq		the current sequence number					
-	 * @param hostIP	user's host IP address
-	 * @throws Exception	if the user's inputs are invalid for creating a register message
-	 * @return 	byte array of register P1PMessage that is ready to be sent to the server
-	 * @return	null if port or servicedata are not integers
-	 */
-	public static byte[] getRegRequest(String[] input, int seq, InetAddress hostIP) {
-		if (input.length != 4 || !input[0].equals("r"))
-			throw new IllegalArgumentException("Call to "
-					+ "getRegRequest(String[] input, int seq, InetAddress hostIP)"
-					+ " with invalid user input");
 
-		if (!isValidPort(input[1]))
-			return null;
+	public static final int REGISTER_COMMAND = 1;
+	public static final int REGISTERED_COMMAND = 2;
+	public static final int FETCH_COMMAND = 3;
+	public static final int FETCH_RESPONSE_COMMAND = 4;
+	public static final int UNREGISTER_COMMAND = 5;
+	public static final int PROBE_COMMAND = 6;
+	public static final int ACK_COMMAND = 7;
 
-		int port;
-		int serviceData;
-		try {
-			port = Integer.parseInt(input[1]);
-			serviceData = Integer.parseInt(input[2]);
-		} catch (NumberFormatException e) {
-			return null;
-		}
+	public static final int MAX_FETCH_ENTRIES = 127;	// Entry count is a signed byte
 
-		byte[] serviceName = input[3].getBytes();
-		byte[] address = hostIP.getAddress();
+	private static final int HEADER_SIZE = 4;
+	private static final int REGISTER_HEADER_SIZE = 15;
+	private static final int REGISTERED_SIZE = 6;
+	private static final int UNREGISTER_SIZE = 10;
+	private static final int FETCH_HEADER_SIZE = 5;
+	private static final int FETCH_ENTRY_SIZE = 10;
 
-		bb = ByteBuffer.allocate(REGISTER_HEADER_SIZE + serviceName.length);
-		bb.putShort((short) MAGIC_NUMBER);
-		bb.put((byte) seq);
-		bb.put((byte) REGISTER_COMMAND);
-		bb.put(address);
+	// Offsets from the start of a message
+	private static final int SEQUENCE_OFFSET = 2;
+	private static final int COMMAND_OFFSET = 3;
+	private static final int ADDRESS_OFFSET = 4;		// register and unregister
+	private static final int PORT_OFFSET = 8;			// register and unregister
+	private static final int DATA_OFFSET = 10;			// register
+	private static final int NAME_LENGTH_OFFSET = 14;	// register
+	private static final int LIFETIME_OFFSET = 4;		// registered
+	private static final int PREFIX_LENGTH_OFFSET = 4;	// fetch
+	private static final int ENTRY_COUNT_OFFSET = 4;	// fetch response
+
+	/**
+	 * writes a register message
+	 * @param bb			buffer to write to
+	 * @param seq			sequence number
+	 * @param ip			IPv4 address of the service, as an int
+	 * @param port			port of the service
+	 * @param serviceData	service data
+	 * @param name			service name, at most 255 characters
+	 */
+	public static void putRegister(ByteBuffer bb, int seq, int ip, int port, int serviceData, CharSequence name) {
+		putHeader(bb, seq, REGISTER_COMMAND);
+		bb.putInt(ip);
 		bb.putShort((short) port);
 		bb.putInt(serviceData);
-		bb.put((byte) serviceName.length);
-		bb.put(serviceName);
-		
-		byte[] ret = bb.array();
-		bb.clear();
-		return ret;
+		putName(bb, name);
 	}
 
 	/**
-	 * constructing P1PMessage unregister message against 
-	 * the user's input, sequence number, and user's IP
-	 * @param input		user's stdin input
-	 * @param seq		the current sequence number					
-	 * @param hostIP	user's host IP address
-	 * @throws Exception	if the user's inputs are invalid for creating an unregister message
-	 * @return 	byte array of unregister P1PMessage that is ready to be sent to the server
-	 * @return	null if portnum is not valid
+	 * writes an unregister message
+	 * @param bb	buffer to write to
+	 * @param seq	sequence number
+	 * @param ip	IPv4 address of the service, as an int
+	 * @param port	port of the service
 	 */
-	public static byte[] getURegRequest(String[] input, int seq, InetAddress hostIP) {
-		if (input.length != 2 || !input[0].equals("u"))
-			throw new IllegalArgumentException("Call to "
-					+ "getURegRequest(String[] input, int seq, InetAddress hostIP)"
-					+ " with invalid user input");
-		if (!isValidPort(input[1]))
-			return null;
-		int port;
-		try {
-			port = Integer.parseInt(input[1]);
-		} catch (NumberFormatException e) {
-			return null;
-		}
-		byte[] address = hostIP.getAddress();
-
-		bb = ByteBuffer.allocate(UNREGISTER_HEADER_SIZE);
-		bb.putShort((short) MAGIC_NUMBER);
-		bb.put((byte) seq);
-		bb.put((byte) UNREGISTER_COMMAND);
-		bb.put(address);
+	public static void putUnregister(ByteBuffer bb, int seq, int ip, int port) {
+		putHeader(bb, seq, UNREGISTER_COMMAND);
+		bb.putInt(ip);
 		bb.putShort((short) port);
-		
-		byte[] ret = bb.array();
-		bb.clear();
-		
-		return ret;
 	}
-	
+
 	/**
-	 * constructing P1PMessage fetch request message against 
-	 * the user's input, sequence number, and service name
-	 * @param input		user's stdin input
-	 * @param seq		the current sequence number					
-	 * @throws Exception	if the user's inputs are invalid for creating a fetch request message
-	 * @return 	byte array of fetch request P1PMessage that is ready to be sent to the server
+	 * writes a fetch message
+	 * @param bb		buffer to write to
+	 * @param seq		sequence number
+	 * @param prefix	prefix of the service names to fetch, at most 255 characters
 	 */
-	public static byte[] getFetchRequest(String[] input, int seq) {
-		if ((input.length != 2 && input.length != 1) || !input[0].equals("f")) 
-			throw new IllegalArgumentException("Call to getFetchRequest(String[] input, int seq)"
-					+ " with invalid user input");
-
-		byte[] name;
-		if (input.length == 2)
-			name = input[1].getBytes();
-		else
-			name = "".getBytes();
-
-		bb = ByteBuffer.allocate(FETCH_HEADER_SIZE + name.length);
-		bb.putShort((short) MAGIC_NUMBER);
-		bb.put((byte) seq);
-		bb.put((byte) FETCH_COMMAND);
-		bb.put((byte) name.length);
-		bb.put(name);
-
-		byte[] ret = bb.array();
-		bb.clear();
-		
-		return ret;
+	public static void putFetch(ByteBuffer bb, int seq, CharSequence prefix) {
+		putHeader(bb, seq, FETCH_COMMAND);
+		putName(bb, prefix);
 	}
 
 	/**
-	 * constructing P1PMessage probe request message against 
-	 * the user's input, sequence number
-	 * @param input		user's stdin input
-	 * @param seq		the current sequence number
-	 * @throws Exception	if the user's inputs are invalid for creating a probe request message
-	 * @return 	byte array of probe request P1PMessage that is ready to be sent to the server
+	 * writes a probe message
+	 * @param bb	buffer to write to
+	 * @param seq	sequence number
 	 */
-	public static byte[] getProbeRequest(String[] input, int seq) {
-		if (input.length != 1 || !input[0].equals("p"))
-			throw new IllegalArgumentException("Call to getProbeRequest(String[] input, int seq)"
-					+ " with invalid user input");
-		
-		bb = ByteBuffer.allocate(PROBE_HEADER_SIZE);
-		bb.putShort((short) MAGIC_NUMBER);
-		bb.put((byte) seq);
-		bb.put((byte) PROBE_COMMAND);
-		
-		byte[] ret = bb.array();
-		bb.clear();
-		
-		return ret;
+	public static void putProbe(ByteBuffer bb, int seq) {
+		putHeader(bb, seq, PROBE_COMMAND);
 	}
 
 	/**
-	 * constructing P1PMessage acknowledge request message against 
-	 * the user's input, sequence number
-	 * @param input		user's stdin input
-	 * @param seq		the current sequence number
-	 * @throws Exception	if the user's inputs are invalid for creating an acknowledge request message
-	 * @return 	byte array of acknowledge request P1PMessage that is ready to be sent to the server
+	 * writes an acknowledge message
+	 * @param bb	buffer to write to
+	 * @param seq	sequence number of the message acknowledged
 	 */
-	public static byte[] getAckResponse(int seq) {
-		bb = ByteBuffer.allocate(ACK_HEADER_SIZE);
-		bb.putShort((short) MAGIC_NUMBER);
-		bb.put((byte) seq);
-		bb.put((byte) ACK_COMMAND);
+	public static void putAck(ByteBuffer bb, int seq) {
+		putHeader(bb, seq, ACK_COMMAND);
+	}
 
-		byte[] ret = bb.array();
-		bb.clear();
+	/**
+	 * writes a registered message
+	 * @param bb		buffer to write to
+	 * @param seq		sequence number of the register message answered
+	 * @param lifetime	seconds the registration lasts
+	 */
+	public static void putRegistered(ByteBuffer bb, int seq, int lifetime) {
+		putHeader(bb, seq, REGISTERED_COMMAND);
+		bb.putShort((short) lifetime);
+	}
+
+	/**
+	 * writes the header of a fetch response with no entries. Add entries with putFetchEntry
+	 * @param bb	buffer to write to
+	 * @param seq	sequence number of the fetch message answered
+	 * @return	position of the response in bb, to pass to putFetchEntry
+	 */
+	public static int putFetchResponse(ByteBuffer bb, int seq) {
+		int start = bb.position();
+		putHeader(bb, seq, FETCH_RESPONSE_COMMAND);
+		bb.put((byte) 0);
+		return start;
+	}
+
+	/**
+	 * adds an entry to the fetch response started at start
+	 * @param bb			buffer holding the response
+	 * @param start			position returned by putFetchResponse
+	 * @param ip			IPv4 address of the entry, as an int
+	 * @param port			port of the entry
+	 * @param serviceData	service data of the entry
+	 * @return	false if the response already holds MAX_FETCH_ENTRIES, and nothing was added
+	 */
+	public static boolean putFetchEntry(ByteBuffer bb, int start, int ip, int port, int serviceData) {
+		int count = bb.get(start + ENTRY_COUNT_OFFSET);
+		if (count >= MAX_FETCH_ENTRIES)
+			return false;
+		bb.putInt(ip);
+		bb.putShort((short) port);
+		bb.putInt(serviceData);
+		bb.put(start + ENTRY_COUNT_OFFSET, (byte) (count + 1));
+		return true;
+	}
 
-		return ret;
+	/**
+	 * returns the sequence number of a message
+	 * @return	-1 		if bb does not hold a P1P message
+	 * 			seq		otherwise
+	 */
+	public static int getSequence(ByteBuffer bb) {
+		if (!validHeader(bb))
+			return -1;
+		return bb.get(bb.position() + SEQUENCE_OFFSET) & 0xff;
+	}
+
+	/**
+	 * returns the command of a message
+	 * @return	-1		 if bb does not hold a P1P message
+	 * 			command	 otherwise
+	 */
+	public static int getCommand(ByteBuffer bb) {
+		if (!validHeader(bb))
+			return -1;
+		return bb.get(bb.position() + COMMAND_OFFSET);
 	}
-	
+
 	/**
 	 * validating the register response from the server against the desired info
 	 * and returning the lifetime for the current registration
-	 * @param res	a byte array of server response
+	 * @param bb			server response
 	 * @param desiredSeq	desired sequence number
 	 * @return	-1 			if the server response is invalid
 	 * 			lifetime 	if the server response is valid
 	 */
-	public static int valRegRes(byte[] res, int desiredSeq) {
-		bb = ByteBuffer.allocate(res.length);
-	    bb.put(res);
-		bb.flip();
-
-	    short magic = bb.getShort();
-	    byte seq = bb.get();
-	    byte command = bb.get();
-	    int lifetime = (int) bb.getShort();
-	    bb.clear();
-	    
-		if (!validHeader(magic, seq, command, (byte) desiredSeq, (byte) REGISTERED_COMMAND))
+	public static int getRegisteredLifetime(ByteBuffer bb, int desiredSeq) {
+		if (!isMessage(bb, desiredSeq, REGISTERED_COMMAND, REGISTERED_SIZE))
 			return -1;
-		return lifetime;
+		return bb.getShort(bb.position() + LIFETIME_OFFSET) & 0xffff;
 	}
-	
+
 	/**
-	 * validating the u register response from the server against the desired info
-	 * and returning the lifetime for the current registration
-	 * @param res	a byte array of server response
+	 * validating an acknowledge message against the desired sequence number
+	 * @param bb			server response
 	 * @param desiredSeq	desired sequence number
-	 * @return	-1 			if the server response is invalid
-	 * 			lifetime 	if the server response is valid
+	 * @return	true if bb holds an acknowledge of desiredSeq, else false
 	 */
-	public static int valURegRes(byte[] res, int desiredSeq) {
-		bb = ByteBuffer.allocate(res.length);
-	    bb.put(res);
-		bb.flip();
-
-	    short magic = bb.getShort();
-	    byte seq = bb.get();
-	    byte command = bb.get();
-	    int lifetime = (int) bb.getShort();
-	    bb.clear();
-	    
-		if (!validHeader(magic, seq, command, (byte) desiredSeq, (byte) ACK_COMMAND))
+	public static boolean isAck(ByteBuffer bb, int desiredSeq) {
+		return isMessage(bb, desiredSeq, ACK_COMMAND, HEADER_SIZE);
+	}
+
+	/**
+	 * validating a probe request from the server
+	 * @param bb	server request
+	 * @return	-1 			if bb does not hold a probe
+	 * 			seq number 	if it does
+	 */
+	public static int getProbeSequence(ByteBuffer bb) {
+		int seq = getSequence(bb);
+		if (seq == -1 || !isMessage(bb, seq, PROBE_COMMAND, HEADER_SIZE))
 			return -1;
-		return lifetime;
+		return seq;
 	}
 
 	/**
-	 * validating the acknowledge response from the server against the desired info
-	 * and returning a boolean indicating the result
-	 * @param res	a byte array of server response
-	 * @param desiredSeq	desired sequence number
-	 * @return	true if acknowledge response is valid, else false
+	 * returns the address in a register or unregister message, as an int
+	 * Only meaningful once getPort has shown the message is long enough
 	 */
-	public static boolean valACK(byte[] res, int desiredSeq) {
-		bb = ByteBuffer.allocate(res.length);
-		bb.put(res);
-		bb.flip();
+	public static int getAddress(ByteBuffer bb) {
+		return bb.getInt(bb.position() + ADDRESS_OFFSET);
+	}
 
-		short magic = bb.getShort();
-		byte seq = bb.get();
-		byte command = bb.get();
-		bb.clear();
+	/**
+	 * returns the port in a register or unregister message
+	 * @return	-1 if bb is too short to hold one
+	 */
+	public static int getPort(ByteBuffer bb) {
+		if (bb.remaining() < UNREGISTER_SIZE)
+			return -1;
+		return bb.getShort(bb.position() + PORT_OFFSET) & 0xffff;
+	}
 
-		if (!validHeader(magic, seq, command, (byte) desiredSeq, (byte) ACK_COMMAND))
-			return false;
-		return true;
+	/**
+	 * returns the service data in a register message
+	 * Only meaningful once isCompleteRegister has shown the message is long enough
+	 */
+	public static int getServiceData(ByteBuffer bb) {
+		return bb.getInt(bb.position() + DATA_OFFSET);
 	}
 
 	/**
-	 * validating the fetch response from the server against the desired info
-	 * and returning a list of a partial or all of the current registration
-	 * @param res	a byte array of server response
-	 * @param desiredSeq	desired sequence number
-	 * @return	null if the fetch response from server is invalid
-	 * 			a list of a partial or all of the running entries if response is valid
+	 * returns the service name in a register message, or null if bb is too short to hold it
 	 */
-	public static List<Entry> valFetchRes(byte[] res, int desiredSeq) {
-		bb = ByteBuffer.allocate(res.length);
-		bb.put(res);
-		bb.flip();
-
-		short magic = bb.getShort();
-		byte seq = bb.get();
-		byte command = bb.get();
-		int numEntries = (int) bb.get();
-		
-		if (!validHeader(magic, seq, command, (byte) desiredSeq, (byte) FETCH_RESPONSE_COMMAND)) {
-			bb.clear();
-			return null;
+	public static String getName(ByteBuffer bb) {
+		return getString(bb, NAME_LENGTH_OFFSET);
+	}
+
+	/**
+	 * returns the prefix in a fetch message, or null if bb is too short to hold it
+	 * A fetch without a prefix asks for every entry
+	 */
+	public static String getPrefix(ByteBuffer bb) {
+		if (bb.remaining() == HEADER_SIZE)
+			return "";
+		return getString(bb, PREFIX_LENGTH_OFFSET);
+	}
+
+	/**
+	 * returns whether bb is long enough to hold the register message it starts with
+	 */
+	public static boolean isCompleteRegister(ByteBuffer bb) {
+		return bb.remaining() >= REGISTER_HEADER_SIZE
+				&& bb.remaining() >= REGISTER_HEADER_SIZE + (bb.get(bb.position() + NAME_LENGTH_OFFSET) & 0xff);
+	}
+
+	/**
+	 * Entries of a fetch response, decoded into one flat array
+	 *
+	 * The array is kept between decodes, so reusing one FetchResponse allocates
+	 * nothing once it has grown to the largest response seen
+	 */
+	public static class FetchResponse {
+		private int[] records;		// ip, port, service data of each entry, one after another
+		private int size;
+
+		public FetchResponse() {
+			records = new int[3 * 16];
+			size = 0;
 		}
 
-		List<Entry> ret = new ArrayList<Entry>();
-		for (int i = 0; i < numEntries; i++) {
-			byte[] ipAddr = new byte[]{bb.get(), bb.get(), bb.get(), bb.get()};
-			InetAddress addr;
+		/**
+		 * validating the fetch response from the server against the desired info
+		 * and decoding its entries, replacing any decoded before
+		 * @param bb			server response
+		 * @param desiredSeq	desired sequence number
+		 * @return	false if the fetch response from server is invalid, true otherwise
+		 */
+		public boolean decode(ByteBuffer bb, int desiredSeq) {
+			size = 0;
+			if (!isMessage(bb, desiredSeq, FETCH_RESPONSE_COMMAND, FETCH_HEADER_SIZE))
+				return false;
+			int start = bb.position();
+			int count = bb.get(start + ENTRY_COUNT_OFFSET);
+			if (count < 0 || bb.remaining() < FETCH_HEADER_SIZE + count * FETCH_ENTRY_SIZE)
+				return false;
+			if (records.length < 3 * count)
+				records = new int[3 * MAX_FETCH_ENTRIES];
 
-			try {
-				addr = InetAddress.getByAddress(ipAddr);
-			} catch (UnknownHostException e) {
-				return null;
+			int entry = start + FETCH_HEADER_SIZE;
+			for (int i = 0; i < count; i++) {
+				records[3 * i] = bb.getInt(entry);
+				records[3 * i + 1] = bb.getShort(entry + 4) & 0xffff;
+				records[3 * i + 2] = bb.getInt(entry + 6);
+				entry += FETCH_ENTRY_SIZE;
 			}
+			size = count;
+			return true;
+		}
+
+		public int size() {
+			return size;
+		}
 
-			int port = (int) bb.getShort();
-			port = port >= 0 ? port : 0x10000 + port;
+		// IPv4 address of entry i, as an int
+		public int getAddress(int i) {
+			return records[3 * i];
+		}
+
+		public int getPort(int i) {
+			return records[3 * i + 1];
+		}
 
-			int data = (int) bb.getInt();
-			ret.add(new Entry(addr, port, data));
+		public int getServiceData(int i) {
+			return records[3 * i + 2];
 		}
-		bb.clear();
-		return ret;
 	}
 
-	/**
-	 * validating the probe request from the server against the desired info
-	 * and returning the current sequence number
-	 * @param res	a byte array of server request
-	 * @return	-1 			if the server response is invalid
-	 * 			seq number 	if the server response is valid
-	 */
-	public static int valProbeRequest(byte[] req) {
-		bb = ByteBuffer.allocate(req.length);
-		bb.put(req);
-		bb.flip();
-		
-		short magic = bb.getShort();
-		byte seq = bb.get();
-		byte command = bb.get();
-		bb.clear();
-
-		if (!validHeader(magic, seq, command, seq, (byte) PROBE_COMMAND))
-			return -1;
-		return seq;
+	// helper method to write the common header
+	private static void putHeader(ByteBuffer bb, int seq, int command) {
+		bb.putShort((short) MAGIC_NUMBER);
+		bb.put((byte) seq);
+		bb.put((byte) command);
 	}
 
-	// helper method to check if the header is valid according to the desired information
-	private static boolean validHeader(short header, byte seq, byte command, 
-			byte desiredSeq, byte desiredCommand) {
-		int unsignedHeader = header & 0xffff;
-		return (unsignedHeader == MAGIC_NUMBER) && (seq == desiredSeq) && (command == desiredCommand);
+	// helper method to write a length-prefixed name, one byte per character
+	private static void putName(ByteBuffer bb, CharSequence name) {
+		if (name.length() > 255)
+			throw new IllegalArgumentException("Name longer than 255 characters: " + name);
+		bb.put((byte) name.length());
+		for (int i = 0; i < name.length(); i++)
+			bb.put((byte) name.charAt(i));
+	}
+
+	// helper method to read a length-prefixed name at offset
+	private static String getString(ByteBuffer bb, int offset) {
+		if (bb.remaining() <= offset)
+			return null;
+		int start = bb.position() + offset;
+		int length = bb.get(start) & 0xff;
+		if (bb.remaining() < offset + 1 + length)
+			return null;
+		char[] name = new char[length];
+		for (int i = 0; i < length; i++)
+			name[i] = (char) (bb.get(start + 1 + i) & 0xff);
+		return new String(name);
 	}
 
-	// helper method to check if the port given is valid
-	private static boolean isValidPort(String s) {
-		try {
-			int port = Integer.parseInt(s);
+	// helper method to check if the header is valid according to the desired information
+	private static boolean isMessage(ByteBuffer bb, int desiredSeq, int desiredCommand, int minimumSize) {
+		return bb.remaining() >= minimumSize && validHeader(bb)
+				&& bb.get(bb.position() + SEQUENCE_OFFSET) == (byte) desiredSeq
+				&& bb.get(bb.position() + COMMAND_OFFSET) == (byte) desiredCommand;
+	}
 
-			//if (port < 1024 || port > 49151)
-			if (port < 1024 || port > 65535)
-				return false;
-		} catch (NumberFormatException e) {
-			return false;
-		}
-		return true;
+	// helper method to check if bb starts with a P1P header
+	private static boolean validHeader(ByteBuffer bb) {
+		return bb.remaining() >= HEADER_SIZE && (bb.getShort(bb.position()) & 0xffff) == MAGIC_NUMBER;
 	}
 }
@@ -1,68 +1,173 @@
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
- * 
- * 
+ *
+ *
  * DataOutputStream wrapper class
- * Writes to stream after unwrapping Tor Header
+ * Writes to stream after packing data into relay data cells
  *
  */
 public class PackOutputStream extends OutputStream {
 	private final byte RELAY_CMD = 3;
 	private final byte RELAY_DATA_CMD = 2;
+	private static final int COMPRESSED_READ_SIZE = 8 * TorCellConverter.MAX_DATA_SIZE;
 
 	private DataOutputStream stream;
 	private short cid;
 	private short stream_id;
-	
+	private byte[] cell;			// Reused for every cell, data is placed straight into its payload
+	private ByteBuffer header;		// View of cell used to fill in the header
+	private StreamCompressor compressor;	// Null unless the exit agreed to compression
+	private byte[] staging;			// Holds a read from writeFrom until it is compressed
+	private long sent_bytes;		// Payload bytes sent in data cells
+
 	public PackOutputStream(DataOutputStream stream, short cid, short stream_id) {
 		this.stream = stream;
 		this.cid = cid;
 		this.stream_id = stream_id;
+		this.cell = new byte[TorCellConverter.CELL_LENGTH];
+		this.header = ByteBuffer.wrap(cell);
 	}
-	
+
 	@Override
 	public void write(int b) throws IOException {
-		stream.writeInt(b);
-		
+		if (compressor != null) {
+			write(new byte[] {(byte) b}, 0, 1);
+			return;
+		}
+		cell[TorCellConverter.CELL_HEADER_SIZE] = (byte) b;
+		sendCell(1);
 	}
-	
+
 	/**
 	 * Writes to stream after packing HTTP with Tor Header
 	 * @param b
-	 * @throws IOException 
+	 * @throws IOException
 	 */
+	@Override
 	public void write(byte[] b) throws IOException {
-		int index = 0;
-		while (index < b.length) {
-			int end = Math.min(index + TorCellConverter.MAX_DATA_SIZE, b.length);
-			byte[] data = Arrays.copyOfRange(b, index, end);
-			byte[] header = getHeader((short) data.length);
-
-			byte[] relayCell = new byte[data.length + header.length];
-			System.arraycopy(header, 0, relayCell, 0, header.length);
-			System.arraycopy(data, 0, relayCell, header.length, data.length);
-			stream.write(relayCell);
-			index += TorCellConverter.MAX_DATA_SIZE;
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (compressor == null) {
+			while (len > 0) {
+				int length = Math.min(len, TorCellConverter.MAX_DATA_SIZE);
+				System.arraycopy(b, off, cell, TorCellConverter.CELL_HEADER_SIZE, length);
+				sendCell(length);
+				off += length;
+				len -= length;
+			}
+			return;
 		}
+
+		int compressed = compressor.compress(b, off, len);
+		if (compressed >= 0)
+			writeMarked(StreamCompressor.DEFLATED_PAYLOAD, compressor.getBuffer(), 0, compressed);
+		else
+			writeMarked(StreamCompressor.RAW_PAYLOAD, b, off, len);
+	}
+
+	/**
+	 * Compresses everything written from now on. Only call this once the exit has agreed to it
+	 */
+	public void enableCompression() {
+		compressor = new StreamCompressor();
+		staging = new byte[COMPRESSED_READ_SIZE];
+	}
+
+	/**
+	 * Writes an already built cell as is
+	 * @param b complete cell
+	 * @throws IOException
+	 */
+	public void writeCell(byte[] b) throws IOException {
+		stream.write(b, 0, TorCellConverter.CELL_LENGTH);
+	}
+
+	/**
+	 * Returns how many payload bytes were sent in data cells, after compression
+	 */
+	public long getSentBytes() {
+		return sent_bytes;
 	}
-	
-	private byte[] getHeader(short length) {
-		ByteBuffer bb = ByteBuffer.allocate(TorCellConverter.CELL_HEADER_SIZE);
-		bb.putShort(cid);
-		bb.put(RELAY_CMD);
-		bb.putShort(stream_id);
-		bb.putShort((short) 0);			// 0x000 in header
-		bb.putInt(0);					// digest
-		bb.putShort((short) length);
-		bb.put(RELAY_DATA_CMD);
-
-		byte[] header = bb.array();
-		bb.clear();
-		return header;
+
+	/**
+	 * Returns how much compression saved on this stream, for reporting
+	 */
+	public String getCompressionSummary() {
+		if (compressor == null)
+			return "off";
+		long raw = compressor.getRawBytes();
+		return raw + " bytes sent as " + sent_bytes + " (ratio " + String.format("%.2f", raw == 0 ? 1.0 : (double) sent_bytes / raw) + ")";
+	}
+
+	/**
+	 * Reads once from in, straight into the payload of the next cell, and sends whatever was read
+	 * @param in stream to read from
+	 * @return number of bytes sent, or -1 if in has reached end of stream
+	 * @throws IOException
+	 */
+	public int writeFrom(InputStream in) throws IOException {
+		if (compressor != null) {
+			// Compression does better on bigger reads, and its output is copied into cells anyway
+			int read = in.read(staging, 0, staging.length);
+			if (read > 0)
+				write(staging, 0, read);
+			return read;
+		}
+		int read = in.read(cell, TorCellConverter.CELL_HEADER_SIZE, TorCellConverter.MAX_DATA_SIZE);
+		if (read > 0)
+			sendCell(read);
+		return read;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		stream.flush();
+	}
+
+	/**
+	 * Releases the compressor. The wrapped stream is shared with other streams, so it stays open
+	 */
+	@Override
+	public void close() throws IOException {
+		if (compressor != null)
+			compressor.end();
+	}
+
+	// Sends len bytes of b as marked payloads, each prefixed with marker
+	private void writeMarked(byte marker, byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int length = Math.min(len, TorCellConverter.MAX_DATA_SIZE - 1);
+			cell[TorCellConverter.CELL_HEADER_SIZE] = marker;
+			System.arraycopy(b, off, cell, TorCellConverter.CELL_HEADER_SIZE + 1, length);
+			sendCell(length + 1);
+			off += length;
+			len -= length;
+		}
+	}
+
+	// Fills in the header for length bytes of payload and sends the whole cell
+	private void sendCell(int length) throws IOException {
+		header.clear();
+		header.putShort(cid);
+		header.put(RELAY_CMD);
+		header.putShort(stream_id);
+		header.putShort((short) 0);			// 0x000 in header
+		header.putInt(0);					// digest
+		header.putShort((short) length);
+		header.put(RELAY_DATA_CMD);
+
+		// Don't leak the tail of a previous payload into this cell
+		Arrays.fill(cell, TorCellConverter.CELL_HEADER_SIZE + length, TorCellConverter.CELL_LENGTH, (byte) 0);
+		stream.write(cell, 0, TorCellConverter.CELL_LENGTH);
+		sent_bytes += length;
 	}
-}
\ No newline at end of file
+}
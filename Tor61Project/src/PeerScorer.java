@@ -0,0 +1,153 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * Scores Tor routers by how fast and reliable they have been, for picking circuit hops
+ *
+ * Keeps an exponentially weighted average of each router's connect and OPEN round trip,
+ * and of how often extending to it succeeded. Hops are picked at random, weighted by
+ * score, so fast and reliable routers are picked most but every router keeps a chance,
+ * and a router that was slow once can win back its score. Routers never measured are
+ * assumed to be reliable and as fast as the average router, so they get tried.
+ *
+ */
+public class PeerScorer {
+	private static final double ALPHA = 0.3;				// Weight of the newest sample
+	private static final double DEFAULT_RTT = 50;			// milliseconds, until any router is measured
+	private static final double RTT_OFFSET = 5;				// milliseconds, so no round trip dominates completely
+	private static final double MIN_SUCCESS = 0.05;			// Even a failing router is tried now and then
+
+	private Map<InetSocketAddress,Score> SCORES;
+
+	public PeerScorer() {
+		SCORES = new ConcurrentHashMap<InetSocketAddress,Score>();
+	}
+
+	/**
+	 * Records how long it took to connect to peer and get its OPENED reply
+	 * @param peer address of the router
+	 * @param nanos round trip in nanoseconds
+	 */
+	public void recordRoundTrip(InetSocketAddress peer, long nanos) {
+		getScore(peer).addRoundTrip(nanos / 1000000.0);
+	}
+
+	/**
+	 * Records whether extending a circuit to peer worked
+	 * @param peer address of the router
+	 * @param success true if the extend worked
+	 */
+	public void recordOutcome(InetSocketAddress peer, boolean success) {
+		getScore(peer).addOutcome(success);
+	}
+
+	/**
+	 * Returns the weight peer gets when picking hops. Higher is better
+	 */
+	public double getWeight(Entry peer) {
+		Score score = SCORES.get(addressOf(peer));
+		double rtt = score == null || Double.isNaN(score.rtt) ? getAverageRoundTrip() : score.rtt;
+		double success = score == null || Double.isNaN(score.success) ? 1.0 : Math.max(score.success, MIN_SUCCESS);
+		// Failures cost more than slowness, a failed extend means building the circuit again
+		return success * success / (rtt + RTT_OFFSET);
+	}
+
+	/**
+	 * Picks one router at random, weighted by score
+	 * @param candidates routers to pick from
+	 * @param exclude routers not to pick, such as hops already in the circuit
+	 * @param random source of randomness
+	 * @return the router picked, or null if every candidate is excluded
+	 */
+	public Entry choose(List<Entry> candidates, Collection<Entry> exclude, Random random) {
+		List<InetSocketAddress> excluded = new ArrayList<InetSocketAddress>();
+		for (Entry e: exclude)
+			excluded.add(addressOf(e));
+
+		double[] weights = new double[candidates.size()];
+		double total = 0;
+		for (int i = 0; i < candidates.size(); i++) {
+			if (!excluded.contains(addressOf(candidates.get(i))))
+				weights[i] = getWeight(candidates.get(i));
+			total += weights[i];
+		}
+		if (total == 0)
+			return null;
+
+		double pick = random.nextDouble() * total;
+		for (int i = 0; i < candidates.size(); i++) {
+			pick -= weights[i];
+			if (weights[i] > 0 && pick < 0)
+				return candidates.get(i);
+		}
+		// Only reached through rounding, take the last router that could be picked
+		for (int i = candidates.size() - 1; i >= 0; i--) {
+			if (weights[i] > 0)
+				return candidates.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns a line per measured router, for printing
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<InetSocketAddress,Score> e: SCORES.entrySet()) {
+			sb.append(e.getKey()).append(" rtt ").append(String.format("%.1f", e.getValue().rtt))
+				.append(" ms success ").append(String.format("%.2f", e.getValue().success)).append('\n');
+		}
+		return sb.toString();
+	}
+
+	public static InetSocketAddress addressOf(Entry e) {
+		return new InetSocketAddress(e.ip, e.port);
+	}
+
+	// Average round trip of every measured router
+	private double getAverageRoundTrip() {
+		double sum = 0;
+		int count = 0;
+		for (Score s: SCORES.values()) {
+			if (!Double.isNaN(s.rtt)) {
+				sum += s.rtt;
+				count++;
+			}
+		}
+		return count == 0 ? DEFAULT_RTT : sum / count;
+	}
+
+	private Score getScore(InetSocketAddress peer) {
+		Score score = SCORES.get(peer);
+		if (score == null) {
+			Score created = new Score();
+			score = SCORES.putIfAbsent(peer, created);
+			if (score == null)
+				score = created;
+		}
+		return score;
+	}
+
+	/**
+	 * Averages for one router, NaN until the first sample
+	 */
+	private static class Score {
+		private volatile double rtt = Double.NaN;		// milliseconds
+		private volatile double success = Double.NaN;	// 0 to 1
+
+		public synchronized void addRoundTrip(double millis) {
+			rtt = Double.isNaN(rtt) ? millis : ALPHA * millis + (1 - ALPHA) * rtt;
+		}
+
+		public synchronized void addOutcome(boolean succeeded) {
+			double sample = succeeded ? 1.0 : 0.0;
+			success = Double.isNaN(success) ? sample : ALPHA * sample + (1 - ALPHA) * success;
+		}
+	}
+}
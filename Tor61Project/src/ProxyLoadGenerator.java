@@ -0,0 +1,172 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Finds how many browser connections at once a proxy and its circuit can serve
+ *
+ * Starts a cluster with ClusterHarness, then runs a step per concurrency level, such as
+ * 1, 2, 4 and so on. For the length of a step that many clients each fetch from the origin
+ * through the proxy over and over, every fetch on a new stream, sending either a GET to the
+ * proxy or a CONNECT followed by a GET through the tunnel, with a response size picked from
+ * -sizes. After every step it reports requests per second, MB per second, the error rate,
+ * and the percentiles of time to first byte and to the last byte.
+ *
+ * The ramp stops after the first step whose p99 latency is over -max-p99 milliseconds or
+ * whose error rate is over -max-errors percent, since latency has collapsed by then. The
+ * last step before it is reported as the most the proxy served.
+ *
+ * Usage: java ProxyLoadGenerator [-steps 1,2,4,...] [-seconds n] [-sizes bytes,...] [-connect percent]
+ *                                [-max-p99 ms] [-max-errors percent] [-routers n] [-length hops] [-out file]
+ *
+ * The ./loadgen script compiles and runs it.
+ *
+ */
+public class ProxyLoadGenerator {
+	private static final Log LOG = Log.get("harness");
+
+	private ClusterHarness CLUSTER;
+	private int[] SIZES;
+	private int CONNECT_PERCENT;				// Share of fetches tunnelled with CONNECT
+
+	public static void main(String[] args) throws Exception {
+		Map<String,String> options = ClusterHarness.parseOptions(args, "-steps", "-seconds", "-sizes", "-connect",
+				"-max-p99", "-max-errors", "-routers", "-length", "-out");
+		if (options == null) {
+			System.out.println("Usage: java ProxyLoadGenerator [-steps 1,2,4,...] [-seconds n] [-sizes bytes,...] [-connect percent]"
+					+ " [-max-p99 ms] [-max-errors percent] [-routers n] [-length hops] [-out file]");
+			System.exit(2);
+		}
+		int[] steps = parseList(options.containsKey("-steps") ? options.get("-steps") : "1,2,4,8,16,32,64");
+		int seconds = ClusterHarness.option(options, "-seconds", 10);
+		int[] sizes = parseList(options.containsKey("-sizes") ? options.get("-sizes") : "1024,65536,1048576");
+		int connect = ClusterHarness.option(options, "-connect", 50);
+		int max_p99 = ClusterHarness.option(options, "-max-p99", 2000);
+		int max_errors = ClusterHarness.option(options, "-max-errors", 1);
+		int routers = ClusterHarness.option(options, "-routers", 3);
+		int length = ClusterHarness.option(options, "-length", 2);
+		String out = options.containsKey("-out") ? options.get("-out") : "loadgen-results.json";
+
+		ClusterHarness cluster = new ClusterHarness(routers, length);
+		cluster.start();
+		ProxyLoadGenerator generator = new ProxyLoadGenerator(cluster, sizes, connect);
+
+		List<Object> results = new ArrayList<Object>();
+		Integer most = null;			// Highest concurrency that stayed under both limits
+		System.out.println(String.format("%8s %10s %8s %8s %10s %10s %10s %10s", "clients", "requests", "req/s", "MB/s",
+				"errors", "ttfb p50", "p99 ms", "max ms"));
+		for (int clients: steps) {
+			Map<String,Object> step = generator.step(clients, seconds * 1000L);
+			results.add(step);
+			Map<?,?> latency = (Map<?,?>) step.get("latency_us");
+			long p99 = (Long) latency.get("p99");
+			double error_rate = (Double) step.get("error_rate");
+			System.out.println(String.format("%8d %10d %8.1f %8.2f %9.2f%% %8.1fms %10.1f %10.1f", clients, step.get("requests"),
+					step.get("requests_per_s"), step.get("throughput_mb_per_s"), error_rate * 100,
+					(Long) ((Map<?,?>) step.get("ttfb_us")).get("p50") / 1000.0, p99 / 1000.0, (Long) latency.get("max") / 1000.0));
+			if (p99 > max_p99 * 1000L || error_rate * 100 > max_errors) {
+				LOG.info("Stopping the ramp at " + clients + " clients, p99 " + p99 / 1000 + " ms, " + error_rate * 100 + "% errors");
+				break;
+			}
+			most = clients;
+		}
+
+		Map<String,Object> document = new LinkedHashMap<String,Object>();
+		document.put("routers", routers);
+		document.put("circuit_length", length);
+		document.put("seconds_per_step", seconds);
+		document.put("sizes", sizes);
+		document.put("connect_percent", connect);
+		document.put("max_p99_ms", max_p99);
+		document.put("max_error_percent", max_errors);
+		document.put("max_clients_served", most);
+		document.put("steps", results);
+		document.put("metrics", cluster.getMetrics());
+		ClusterHarness.write(out, document);
+
+		System.out.println((most == null ? "Latency collapsed at the first step" : "Served up to " + most + " clients at once")
+				+ ". Results in " + out);
+		Log.flush(1000);
+		System.exit(0);
+	}
+
+	/**
+	 * @param cluster started cluster whose proxy gets the load
+	 * @param sizes response sizes, each fetch picks one at random
+	 * @param connect_percent share of fetches that go through a CONNECT tunnel
+	 */
+	public ProxyLoadGenerator(ClusterHarness cluster, int[] sizes, int connect_percent) {
+		CLUSTER = cluster;
+		SIZES = sizes.clone();
+		CONNECT_PERCENT = connect_percent;
+	}
+
+	/**
+	 * Runs clients clients fetching over and over for millis milliseconds
+	 * @return the step's requests, errors, rates and latency percentiles in microseconds
+	 */
+	public Map<String,Object> step(int clients, final long millis) throws InterruptedException {
+		final AtomicLong requests = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final AtomicLong bytes = new AtomicLong();
+		final AtomicLong tunnelled = new AtomicLong();
+		final LatencyHistogram first_byte = new LatencyHistogram();
+		final LatencyHistogram last_byte = new LatencyHistogram();
+		final long deadline = System.currentTimeMillis() + millis;
+
+		Thread[] threads = new Thread[clients];
+		long started = System.nanoTime();
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread("LoadClient-" + i) {
+				public void run() {
+					ThreadLocalRandom r = ThreadLocalRandom.current();
+					while (System.currentTimeMillis() < deadline) {
+						boolean tunnel = r.nextInt(100) < CONNECT_PERCENT;
+						ClusterHarness.Fetch fetch = CLUSTER.fetch(SIZES[r.nextInt(SIZES.length)], tunnel);
+						requests.incrementAndGet();
+						if (tunnel)
+							tunnelled.incrementAndGet();
+						if (fetch.ok) {
+							bytes.addAndGet(fetch.bytes);
+							first_byte.record(fetch.first_byte);
+							last_byte.record(fetch.last_byte);
+						} else {
+							errors.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread t: threads)
+			t.join();
+		// Fetches still running at the deadline count too, so the step is measured until they finish
+		double seconds = (System.nanoTime() - started) / 1e9;
+
+		Map<String,Object> step = new LinkedHashMap<String,Object>();
+		step.put("clients", clients);
+		step.put("seconds", seconds);
+		step.put("requests", requests.get());
+		step.put("connect_requests", tunnelled.get());
+		step.put("errors", errors.get());
+		step.put("error_rate", requests.get() == 0 ? 0.0 : (double) errors.get() / requests.get());
+		step.put("requests_per_s", requests.get() / seconds);
+		step.put("throughput_mb_per_s", bytes.get() / seconds / (1024 * 1024));
+		step.put("ttfb_us", ClusterHarness.percentiles(first_byte));
+		step.put("latency_us", ClusterHarness.percentiles(last_byte));
+		return step;
+	}
+
+	// Parses "1,2,4"
+	private static int[] parseList(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+}
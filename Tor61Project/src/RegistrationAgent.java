@@ -1,637 +1,829 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 
 
 /**
 
 	How to Use RegistrationAgent
-	
-	1. Create an object. 
-		It is assumed that we will connect to "cse461.cs.washington.edu" at port 46101, since
-		this is a well-known registration service
-	2. Call on the object's run() method
-			run() takes a space-separated String
-			Commands are: r(egister), u(nregister), f(etch), p(robe), or q(uit)
-			example: agentObject.run("r 22222 12345678 Tor61-4321-0001");
 
+	1. Create an object.
+		By default we connect to "cse461.cs.washington.edu" at port 46101, since this is a
+		well-known registration service. Another service, such as a LocalRegistrationService,
+		can be given to the constructor or with the system properties tor61.registration.host
+		and tor61.registration.port
+	2. Call register, unregister or fetch, which wait for the server's answer,
+		or their Async versions, which return a future right away
+			example: agentObject.register(22222, 12345678, "Tor61-4321-0001");
+	3. Call quit to unregister every registered port and stop the agent
+
+	All requests share one UDP channel. Each outstanding request holds its own sequence
+	number, and a single dispatcher thread hands every response to the request with the
+	matching sequence number, so any number of requests can be waiting at once. Timeouts
+	and retries are run by a scheduler instead of a thread per request.
+
+	Registered ports are renewed from one queue, ordered by when each is due. Renewals due
+	within a second of each other are sent together, and each is sent a little early at
+	random so that ports registered at the same time do not keep renewing in lockstep.
 
 **/
 
 public class RegistrationAgent {
+	private static final Log LOG = Log.get("agent");
+	private static final int DATA_BUFFER_SIZE = 65507;		// Largest UDP payload
+	private static final int SEQUENCE_NUMBERS = 256;		// Sequence number is one byte
+	private static final int MAX_REQUEST_SIZE = 15 + 255;	// Register with the longest name
+	private static final int RESPONSE_TIMEOUT = 5000;		// milliseconds
+	private static final int MAX_TRIES = 3;
+	private static final int BIND_ATTEMPTS = 10;
+	private static final int RENEWAL_MARGIN = 15;			// seconds before a registration expires
+	private static final double RENEWAL_JITTER = 0.1;		// Renew up to this fraction of the wait early
+	private static final int RENEWAL_BATCH_WINDOW = 1000;	// milliseconds
+	private static final int MAX_RENEWAL_BATCH = 128;
+	private static final int RENEWAL_RETRY = 100;			// milliseconds to wait before trying a renewal again
+	private static final String WELL_KNOWN_HOST = "cse461.cs.washington.edu";
+	private static final int WELL_KNOWN_PORT = 46101;
+
+	private InetAddress SERVICE_HOST;
+	private InetAddress THIS_HOST;
+	private int THIS_ADDRESS;								// THIS_HOST as an int, as messages carry it
+	private SocketAddress SERVICE_ADDRESS;
+	private Map<Integer,Integer> REGISTERED_PORTS;			// port -> id of its latest registration
+	private AtomicInteger REGISTRATIONS;					// Source of registration ids
+	private volatile boolean TIME_TO_DIE;
+
+	private DatagramChannel CHANNEL;						// Sends requests and receives responses
+	private DatagramChannel PROBE_CHANNEL;					// Answers server probes, on CHANNEL's port + 1
+	private Selector SELECTOR;
+	private DispatchThread DISPATCHER;
+	private ScheduledExecutorService SCHEDULER;				// Runs request timeouts
+	private AtomicReferenceArray<Request<?>> OUTSTANDING;	// sequence number -> request waiting on it
+	private AtomicInteger NEXT_SEQUENCE;
+	private P1PMessage.FetchResponse FETCHED;				// Decodes fetch responses, dispatcher thread only
+	private ByteBuffer ACK;									// Probe answers, dispatcher thread only
+	private PriorityQueue<Renewal> RENEWALS;				// Registered ports, earliest renewal first
+	private ScheduledFuture<?> RENEWAL_TIMER;				// Fires for the earliest renewal, guarded by RENEWALS
+	private Random RANDOM;
+	private Metrics METRICS;								// Exported with JMX until the agent quits
+	private LatencyHistogram ROUND_TRIPS;					// From the last send of a request to its answer
+	private LongAdder SENT;									// Requests sent, retries included
+	private LongAdder RETRIES;
+	private LongAdder ANSWERED;
+	private LongAdder FAILED;								// Requests given up on after MAX_TRIES
+	private LongAdder PROBES;								// Probes from the server we answered
 
-	private static InetAddress SERVICE_HOST;
-	private static InetAddress THIS_HOST;
-	private static Map<Integer,Integer> REGISTERED_PORTS = new HashMap<Integer,Integer>();
-	private static int SERVICE_PORT;
-	private static boolean TIME_TO_DIE;
-	private static int DATA_BUFFER_SIZE = 1048;
-	private static int SEQUENCE = 0;
-	private static String WELL_KNOWN_HOST = "cse461.cs.washington.edu";
-	private static int WELL_KNOWN_PORT = 46101;
-	
-	protected static DatagramSocket main;
-	protected static DatagramSocket sub;
-	protected static Thread subhandler;
-	
 	public RegistrationAgent() {
+		this(System.getProperty("tor61.registration.host", WELL_KNOWN_HOST),
+				Integer.getInteger("tor61.registration.port", WELL_KNOWN_PORT));
+	}
+
+	public RegistrationAgent(String service_host, int service_port) {
 		// Validates user input
 		try {
-			SERVICE_HOST = InetAddress.getByName(WELL_KNOWN_HOST);
-			SERVICE_PORT = WELL_KNOWN_PORT;
+			SERVICE_HOST = InetAddress.getByName(service_host);
 			THIS_HOST    = InetAddress.getLocalHost();
 		} catch (UnknownHostException e){
-			System.out.println("Unknown Host: " + WELL_KNOWN_HOST);
+			LOG.error("Unknown Host: " + service_host);
 			usage();
 		}
-		System.out.println("regServerIp = " + SERVICE_HOST.getHostAddress());
-		System.out.println("thisHostIP  = " + THIS_HOST.getHostAddress());
-		
+		LOG.debug("regServerIp = " + SERVICE_HOST.getHostAddress());
+		LOG.debug("thisHostIP  = " + THIS_HOST.getHostAddress());
+
+		SERVICE_ADDRESS = new InetSocketAddress(SERVICE_HOST, service_port);
+		THIS_ADDRESS = ByteBuffer.wrap(THIS_HOST.getAddress()).getInt();
+		FETCHED = new P1PMessage.FetchResponse();
+		ACK = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+		RENEWALS = new PriorityQueue<Renewal>();
+		RANDOM = new Random();
+		REGISTERED_PORTS = new ConcurrentHashMap<Integer,Integer>();
+		REGISTRATIONS = new AtomicInteger();
+		OUTSTANDING = new AtomicReferenceArray<Request<?>>(SEQUENCE_NUMBERS);
+		NEXT_SEQUENCE = new AtomicInteger();
 		TIME_TO_DIE = false;
-		setupSockets();
+		setupMetrics();
+		SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RegistrationTimeouts");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		setupChannels();
 	}
-	
-	private void setupSockets() {
+
+	private void setupMetrics() {
+		METRICS = new Metrics("RegistrationAgent");
+		ROUND_TRIPS = new LatencyHistogram();
+		SENT = METRICS.counter("requests_sent");
+		RETRIES = METRICS.counter("retries");
+		ANSWERED = METRICS.counter("responses");
+		FAILED = METRICS.counter("request_failures");
+		PROBES = METRICS.counter("probes_answered");
+		METRICS.gauge("registered_ports", new LongSupplier() {
+			public long getAsLong() { return REGISTERED_PORTS.size(); }
+		});
+		METRICS.gauge("outstanding_requests", new LongSupplier() {
+			public long getAsLong() {
+				int outstanding = 0;
+				for (int i = 0; i < SEQUENCE_NUMBERS; i++) {
+					if (OUTSTANDING.get(i) != null)
+						outstanding++;
+				}
+				return outstanding;
+			}
+		});
+		METRICS.gauge("round_trips", new LongSupplier() {
+			public long getAsLong() { return ROUND_TRIPS.getCount(); }
+		});
+		METRICS.gauge("round_trip_p50_us", new LongSupplier() {
+			public long getAsLong() { return ROUND_TRIPS.getPercentile(50); }
+		});
+		METRICS.gauge("round_trip_p99_us", new LongSupplier() {
+			public long getAsLong() { return ROUND_TRIPS.getPercentile(99); }
+		});
+	}
+
+	/**
+	 * Returns the counters and gauges of this agent
+	 */
+	public Metrics getMetrics() {
+		return METRICS;
+	}
+
+	/**
+	 * Returns how long the server took to answer each request
+	 */
+	public LatencyHistogram getRoundTrips() {
+		return ROUND_TRIPS;
+	}
+
+	private void setupChannels() {
 		try {
-			// Connects to Service Port
-			main = new DatagramSocket();
-			// Second port to listen to server probing
-			sub  = new DatagramSocket(main.getLocalPort() + 1);
-
-			// Create a thread to listen to service host probes
-			TIME_TO_DIE = false; // Flag to notify subhandler to terminate
-			subhandler = new Thread(new ThreadServerHandler(sub));
-			subhandler.start();
-		} catch (SocketException e) {
-			System.out.println("Sockets Failed To Bind to Ports. Please Try Again");
+			SELECTOR = Selector.open();
+		} catch (IOException e) {
+			LOG.error("Failed to open selector for registration channels");
 			usage();
 		}
-	}
-	
-	// This thread handles all user input
-	public boolean register(int tor_port, int service_data, String name) {
-		String[] input = new String[4];
-		input[0] = "r";
-		input[1] = "" + tor_port;
-		input[2] = "" + service_data;
-		input[3] = name;
-		
-		// Create new thread to handle each user command
-		Thread t = new Thread(new ThreadUserRequestHandler(main, input));
-		t.start();
+
+		// Probes arrive on the port after ours, so both ports must be free
+		for (int i = 0; i < BIND_ATTEMPTS && PROBE_CHANNEL == null; i++) {
+			try {
+				CHANNEL = DatagramChannel.open();
+				CHANNEL.bind(new InetSocketAddress(0));
+				int port = ((InetSocketAddress) CHANNEL.getLocalAddress()).getPort();
+				PROBE_CHANNEL = DatagramChannel.open();
+				PROBE_CHANNEL.bind(new InetSocketAddress(port + 1));
+			} catch (IOException | IllegalArgumentException e) {
+				close(CHANNEL);
+				close(PROBE_CHANNEL);
+				PROBE_CHANNEL = null;
+			}
+		}
+		if (PROBE_CHANNEL == null) {
+			LOG.error("Sockets Failed To Bind to Ports. Please Try Again");
+			usage();
+		}
+
 		try {
-			t.join();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			return false;
+			CHANNEL.configureBlocking(false);
+			PROBE_CHANNEL.configureBlocking(false);
+			CHANNEL.register(SELECTOR, SelectionKey.OP_READ);
+			PROBE_CHANNEL.register(SELECTOR, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			LOG.error("Failed to register registration channels with selector");
+			usage();
 		}
-		int port = -1;
+
+		DISPATCHER = new DispatchThread();
+		DISPATCHER.setDaemon(true);
+		DISPATCHER.start();
 		try {
-			port = Integer.parseInt(input[1]);
-		} catch (NumberFormatException e) {
-			e.printStackTrace();
-			return false;
+			METRICS.register("port " + ((InetSocketAddress) CHANNEL.getLocalAddress()).getPort());
+		} catch (IOException e) {
+			LOG.warn("Failed to find registration port, metrics are not exported");
 		}
-		return REGISTERED_PORTS.containsKey(port);
 	}
-	
-	public boolean unregister(int tor_port) {
-		String[] input = new String[2];
-		input[0] = "u";
-		input[1] = "" + tor_port;
 
-		// Create new thread to handle each user command
-		Thread t = new Thread(new ThreadUserRequestHandler(main, input));
-		t.start();
+	// Registers tor_port and waits for the server's answer
+	public boolean register(int tor_port, int service_data, String name) {
 		try {
-			t.join();
+			registerAsync(tor_port, service_data, name).get();
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			LOG.warn("Interrupted registering port " + tor_port, e);
+			return false;
+		} catch (ExecutionException e) {
 			return false;
 		}
-		int port = -1;
+		return REGISTERED_PORTS.containsKey(tor_port);
+	}
+
+	/**
+	 * Registers tor_port, and keeps it registered until it is unregistered or the agent quits
+	 * @return future completed with the lifetime the server granted, in seconds
+	 */
+	public CompletableFuture<Integer> registerAsync(final int tor_port, final int service_data, final String name) {
+		return submit(new RegisterRequest("REGISTER", tor_port, service_data, name)).thenApply(new Function<Integer,Integer>() {
+			public Integer apply(Integer lifetime) {
+				LOG.info("Succeeded Registering Port: " + tor_port + " as " + name + " with lifetime: " + lifetime);
+
+				// Keeps track of registered ports
+				int id = REGISTRATIONS.incrementAndGet();
+				REGISTERED_PORTS.put(tor_port, id);
+
+				scheduleRenewal(tor_port, service_data, name, id, lifetime);
+				return lifetime;
+			}
+		});
+	}
+
+	// Unregisters tor_port and waits for the server's answer
+	public boolean unregister(int tor_port) {
 		try {
-			port = Integer.parseInt(input[1]);
-		} catch (NumberFormatException e) {
-			e.printStackTrace();
+			unregisterAsync(tor_port).get();
+		} catch (InterruptedException e) {
+			LOG.warn("Interrupted unregistering port " + tor_port, e);
 			return false;
+		} catch (ExecutionException e) {
+			// Reported by the request already
 		}
-		return !REGISTERED_PORTS.containsKey(port);
+		return !REGISTERED_PORTS.containsKey(tor_port);
+	}
+
+	/**
+	 * Unregisters tor_port
+	 * @return future completed once the server acknowledged it
+	 */
+	public CompletableFuture<Void> unregisterAsync(final int tor_port) {
+		return submit(new Request<Boolean>("UNREGISTER") {
+			boolean build(ByteBuffer message, int seq) {
+				if (!isValidPort(tor_port))
+					return false;
+				P1PMessage.putUnregister(message, seq, THIS_ADDRESS, tor_port);
+				return true;
+			}
+			Boolean parse(ByteBuffer response, int seq) {
+				return P1PMessage.isAck(response, seq) ? Boolean.TRUE : null;
+			}
+		}).thenApply(new Function<Boolean,Void>() {
+			public Void apply(Boolean acked) {
+				LOG.info("Succeeded Unregistering Port: " + tor_port);
+
+				// Remove confirmed unregistered port from memory
+				REGISTERED_PORTS.remove(tor_port);
+				return null;
+			}
+		});
 	}
-	
+
 	// Returns all IP address and Port numbers of Routers with specified Prefix
 	// Returns null if there was some sort of error fetching
 	public List<Entry> fetch(String prefix) {
-		String[] input = new String[2];
-		input[0] = "f";
-		input[1] = prefix;
-		
-		// Object to store result set
-		List<Entry> entries = new ArrayList<Entry>();
-		
-		// Create new thread to handle each user command
-		Thread t = new Thread(new ThreadUserRequestHandler(main, input, entries));
-		
-		t.start();
 		try {
-			t.join(); // Wait for fetch to finish
+			return fetchAsync(prefix).get();
 		} catch (InterruptedException e) {
-			e.printStackTrace();
-			System.exit(1);
+			LOG.warn("Interrupted fetching " + prefix, e);
+			return null;
+		} catch (ExecutionException e) {
+			return null;
 		}
-		
-		return entries;
 	}
-	
+
+	/**
+	 * Fetches every registration whose name starts with prefix
+	 * @return future completed with the registrations found
+	 */
+	public CompletableFuture<List<Entry>> fetchAsync(final String prefix) {
+		return submit(new Request<List<Entry>>("FETCH") {
+			boolean build(ByteBuffer message, int seq) {
+				P1PMessage.putFetch(message, seq, prefix);
+				return true;
+			}
+			List<Entry> parse(ByteBuffer response, int seq) {
+				if (!FETCHED.decode(response, seq))
+					return null;
+				List<Entry> list = new ArrayList<Entry>(FETCHED.size());
+				for (int i = 0; i < FETCHED.size(); i++)
+					list.add(new Entry(toInetAddress(FETCHED.getAddress(i)), FETCHED.getPort(i), FETCHED.getServiceData(i)));
+				return list;
+			}
+		}).thenApply(new Function<List<Entry>,List<Entry>>() {
+			public List<Entry> apply(List<Entry> list) {
+				LOG.debug("Succeeded Fetching Data from Server");
+				if (list.isEmpty()) {
+					LOG.debug("There were no ports associated the prefix: " + prefix);
+				} else {
+					int counter = 1;
+					for (Entry e: list) {
+						if (LOG.isEnabled(Log.Level.DEBUG))
+							LOG.debug("[" + counter + "] " + e.ip.getHostAddress() + " " + e.port + " " + e.serviceData);
+						counter ++;
+					}
+				}
+				return list;
+			}
+		});
+	}
+
+	/**
+	 * Probes the registration server
+	 * @return future completed once the server answered
+	 */
+	public CompletableFuture<Boolean> probeAsync() {
+		return submit(new Request<Boolean>("PROBE") {
+			boolean build(ByteBuffer message, int seq) {
+				P1PMessage.putProbe(message, seq);
+				return true;
+			}
+			Boolean parse(ByteBuffer response, int seq) {
+				return P1PMessage.isAck(response, seq) ? Boolean.TRUE : null;
+			}
+		});
+	}
+
 	// Terminate Registration Agent
 	// Returns true when successfully terminates
 	public boolean quit() {
 		return terminate();
 	}
-	
+
 	// Notifies user how to use this program
 	private static void usage() {
 		System.out.println("Usage: java agent <registration service host name> <service port>");
 		System.exit(1);
 	}
-	
+
 	// Terminate process
 	// Returns true when finished
 	private boolean terminate() {
-		// If there are currently registered ports, unregister them
+		// If there are currently registered ports, unregister them all at once
 		if (!REGISTERED_PORTS.isEmpty()) {
-			System.out.print("Preparing to Quit: Unregistering Active Ports...");
-			// Create new thread for each new unregister request per active port
+			LOG.info("Preparing to Quit: Unregistering Active Ports...");
+			List<CompletableFuture<Void>> unregistering = new ArrayList<CompletableFuture<Void>>();
 			for (Integer i: REGISTERED_PORTS.keySet()) {
-				// Create new thread to ask server to unregister port
-				Thread t = new Thread(new ThreadUserRequestHandler(main, i));
-				t.start();
+				unregistering.add(unregisterAsync(i));
 			}
-		
-			// We need to wait until all registered ports are unregistered
-			while (!REGISTERED_PORTS.isEmpty()) {
-				try {
-					Thread.sleep(500);
-				} catch(InterruptedException ex) {
-					Thread.currentThread().interrupt();
-				}
+
+			// Wait until every port is unregistered, or gave up after its retries
+			try {
+				CompletableFuture.allOf(unregistering.toArray(new CompletableFuture<?>[unregistering.size()])).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				// Reported by the request already
 			}
-			System.out.println("Successfully Unregistered All Active Ports!");
+			if (REGISTERED_PORTS.isEmpty())
+				LOG.info("Successfully Unregistered All Active Ports!");
 		}
-		
+
 		// Kill all threads
 		TIME_TO_DIE = true;
-		System.out.println("Goodbye!");
-			
-		main.close();
-		sub.close();
+		METRICS.unregister();
+		SELECTOR.wakeup();
+		SCHEDULER.shutdownNow();
+		LOG.debug("Goodbye!");
 		return true;
 	}
-	
-	// Thread to handle receiving input from server
-	public static class ThreadServerHandler implements Runnable {
-		private DatagramSocket socket;		// the socket used for the thread
 
-		private static final int DATA_BUFFER_SIZE = 1024;
+	// Queues port to be registered again shortly before lifetime seconds from now
+	private void scheduleRenewal(int port, int service_data, String name, int id, int lifetime) {
+		// Should re-register RENEWAL_MARGIN seconds before the end of lifetime, and short
+		// lifetimes halfway through. Renew a little early at random, so ports registered
+		// together drift apart instead of all renewing at the same moment forever
+		long delay = lifetime > 2 * RENEWAL_MARGIN ? (lifetime - RENEWAL_MARGIN) * 1000L : lifetime * 500L;
+		delay -= (long) (RANDOM.nextDouble() * delay * RENEWAL_JITTER);
+		long now = System.currentTimeMillis();
+		synchronized (RENEWALS) {
+			RENEWALS.add(new Renewal(port, service_data, name, id, now + lifetime * 1000L, now + delay));
+			armRenewals();
+		}
+	}
+
+	// Queues r to be sent again in RENEWAL_RETRY milliseconds
+	private void retryRenewal(Renewal r) {
+		synchronized (RENEWALS) {
+			RENEWALS.add(new Renewal(r.port, r.service_data, r.name, r.id, r.expires,
+					System.currentTimeMillis() + RENEWAL_RETRY));
+			armRenewals();
+		}
+	}
 
-		public ThreadServerHandler(DatagramSocket socket) {
-			this.socket = socket;
+	// Sets the renewal timer for the earliest renewal, unless it is already set for it. Call with RENEWALS held
+	private void armRenewals() {
+		Renewal next = RENEWALS.peek();
+		if (next == null || TIME_TO_DIE)
+			return;
+		armRenewals(next.due - System.currentTimeMillis());
+	}
+
+	// Sets the renewal timer to fire in delay milliseconds, unless it already fires sooner. Call with RENEWALS held
+	private void armRenewals(long delay) {
+		if (RENEWAL_TIMER != null) {
+			if (RENEWAL_TIMER.getDelay(TimeUnit.MILLISECONDS) <= delay)
+				return;
+			RENEWAL_TIMER.cancel(false);
 		}
-		
-		public void run() {
-			byte[] buf = new byte[DATA_BUFFER_SIZE];
-			DatagramPacket dp = new DatagramPacket(buf, buf.length);
-	
-			// Loop until it is time to die
-        	while(true){
-        		if (TIME_TO_DIE)
-        			return;
-				try {
-					socket.setSoTimeout(5000);	// set the timeout in millisecounds.
-					socket.receive(dp);
-					socket.setSoTimeout(0);		// Stop timer
-							
-					// Only request coming from Server should be a probe request
-					int seq = P1PMessage.valProbeRequest(dp.getData());
-					if (seq != -1) {
-						byte[] response = P1PMessage.getAckResponse(seq);
-						DatagramPacket rsp = new DatagramPacket(response, response.length,dp.getAddress(), dp.getPort());
-						socket.send(rsp);
-						System.out.println("I've been probed!");
-					}
-				}
-				catch (SocketTimeoutException e) {
-					continue;
-				} catch (SocketException e) {
-					return;
-				} catch (IOException e) {
-					return;
-				}
-        	}
-		}
-	}
-	
-	// Thread to handle sending request to server from user
-	public static class ThreadUserRequestHandler implements Runnable {
-		private DatagramSocket socket;		// the socket used for the thread
-		private String[] data;				// client input data
-		private String[] redata;
-		private List<Entry> entries;
-		
-		public ThreadUserRequestHandler(DatagramSocket socket, String[] data) {
-			this.socket = socket;
-			this.data = data;
-			this.redata = null;
-			this.entries = null;
-		}
-		
-		public ThreadUserRequestHandler(DatagramSocket socket, String[] data, String[] redata) {
-			this.socket = socket;
-			this.data = data;
-			this.redata = redata;
-			this.entries = null;
-		}
-		
-		public ThreadUserRequestHandler(DatagramSocket socket, String[] data, List<Entry> e) {
-			this.socket = socket;
-			this.data = data;
-			this.redata = null;
-			this.entries = e;
-		}
-		
-		// Creates a new thread to unregister ports (only used in terminate())
-		// This constructor was made solely to not include /n characters when mass unregistering
-		public ThreadUserRequestHandler(DatagramSocket socket, int unregisterPort) {
-			this.socket = socket;
-			this.data = new String[2];
-			this.data[0] = "u";
-			this.data[1] = "" + unregisterPort;
-			this.redata = null;
-		}
-		
-		public void run() {			
-			switch(data[0]) {
-				case "r":
-					handleRegister();
-					break;
-				case "u":
-					handleUnregister();
-					break;
-				case "f":
-					handleFetch();
-					break;
-				case "p":
-					handleProbe();
-					break;
-				case "rr":
-					handleReregister();
-					break;
-				default:
-					invalidInput();
-					break;
+		RENEWAL_TIMER = SCHEDULER.schedule(new Runnable() {
+			public void run() {
+				renewDue();
 			}
+		}, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+	}
+
+	// Returns how many sequence numbers no request is waiting on
+	private int freeSequenceNumbers() {
+		int free = 0;
+		for (int i = 0; i < SEQUENCE_NUMBERS; i++) {
+			if (OUTSTANDING.get(i) == null)
+				free++;
 		}
-		
-		// Notify user of invalid input
-		private void invalidInput() {
-			System.out.println("Invalid Command: " + data[0]);
-		}
-		
-		// Handle registering with Registration Server
-		// Send message, set timer, then wait for server "registered" message
-		// If timer goes off, try again up to 3 times
-		// If fail 3 times, notify user registration failed
-		// Also, if registration succeeds, updates "REGISTERED_PORTS" and add port number
-		private void handleRegister() {
-			if (data.length != 4) {
-				System.out.println("Invalid Number of Arguments for command 'r'"
-						+ "Usage: r <portnum> <data> <serviceName>");
-			} else {
-				String methodName = "REGISTER";
-				int number_of_tries = 1;
-				// Exit condition is in the catch statement
-				// Exits when fails to receive confirmation 3 times
-				while (true) {
-					try {
-						int curr_sequence = SEQUENCE;
-						byte[] send = P1PMessage.getRegRequest(data,curr_sequence,THIS_HOST);
-						byte[] receive = new byte[DATA_BUFFER_SIZE];
-						
-						// Invalid inputs
-						if (send == null) {
-							System.out.println("<portnum> and <data> must respectively be 2 and 4 byte integers ");
-							System.out.println("Registration Failed");
-							return;
-						}
-						
-						DatagramPacket dpsend = new DatagramPacket(send, send.length, SERVICE_HOST, SERVICE_PORT);
-						DatagramPacket dpreceive = new DatagramPacket(receive, receive.length);
-
-						socket.send(dpsend);
-						socket.setSoTimeout(5000);
-
-						socket.receive(dpreceive);
-						socket.setSoTimeout(0);		// Stop timer
-
-						int lifetime = P1PMessage.valRegRes(dpreceive.getData(),curr_sequence);
-						if (lifetime != -1) {
-							int port = Integer.parseInt(data[1]);
-							System.out.println("Succeeded Registering Port: " + port + " as " + data[3] + " with lifetime: " + lifetime);
-							
-							// Keeps track of registered ports
-							REGISTERED_PORTS.put(port,curr_sequence);
-							SEQUENCE++;
-							
-							Thread t = new Thread(new ThreadUserRequestHandler(socket, new String[]{"rr",data[1],data[2],data[3]}, new String[]{""+port,""+curr_sequence,""+lifetime}));
-							t.start();
-							
-							return;
-						} else {
-							continue;
-						}
-					} catch (SocketTimeoutException e) {
-						if (number_of_tries >= 3) {
-							timeoutMessage(methodName);
-							failMessage(methodName);
+		return free;
+	}
+
+	// Sends every renewal that is due, or nearly due, as one batch. The next batch does not wait
+	// for this one's answers, since a lost answer would hold it back for all of a request's retries
+	private void renewDue() {
+		List<Renewal> batch = new ArrayList<Renewal>();
+		boolean more_due;
+		synchronized (RENEWALS) {
+			RENEWAL_TIMER = null;
+			// Renewals due shortly after this one go now too, saving a wake up each. A batch
+			// only takes as many renewals as there are free sequence numbers, so none is turned away
+			long cutoff = System.currentTimeMillis() + RENEWAL_BATCH_WINDOW;
+			int limit = Math.min(MAX_RENEWAL_BATCH, freeSequenceNumbers());
+			while (!RENEWALS.isEmpty() && RENEWALS.peek().due <= cutoff && batch.size() < limit)
+				batch.add(RENEWALS.poll());
+			more_due = !RENEWALS.isEmpty() && RENEWALS.peek().due <= cutoff;
+		}
+
+		for (final Renewal r: batch) {
+			// Skip ports unregistered, or registered again by the user, since this was queued
+			Integer current = REGISTERED_PORTS.get(r.port);
+			if (current == null || current != r.id || TIME_TO_DIE)
+				continue;
+
+			LOG.debug("Port: " + r.port + " is about to expire. Attempting to re-register");
+			submit(new RegisterRequest("REREGISTER", r.port, r.service_data, r.name))
+					.whenComplete(new BiConsumer<Integer,Throwable>() {
+				public void accept(Integer lifetime, Throwable failure) {
+					if (failure != null) {
+						// Try again while the registration has time left. Running out of sequence numbers
+						// is only our own load, so that is always worth another try
+						boolean exhausted = failure instanceof SequenceNumbersExhausted;
+						if (!TIME_TO_DIE && (exhausted || System.currentTimeMillis() + RENEWAL_RETRY < r.expires)) {
+							LOG.debug("Re-registering Port: " + r.port + " failed, trying again: " + failure.getMessage());
+							retryRenewal(r);
 							return;
-						} else {
-							number_of_tries++;
-							timeoutMessage(methodName);
 						}
-					} catch (SocketException e) {
-						e.printStackTrace();
-					} catch (IOException e) {
-						e.printStackTrace();
+						if (!TIME_TO_DIE)
+							LOG.warn("Giving up re-registering Port: " + r.port + " as " + r.name + ": " + failure.getMessage());
+						REGISTERED_PORTS.remove(r.port, r.id);
+						return;
 					}
+					LOG.debug("Succeeded Re-registering Port: " + r.port + " as " + r.name + " with lifetime: " + lifetime);
+					scheduleRenewal(r.port, r.service_data, r.name, r.id, lifetime);
 				}
-			}
+			});
 		}
-		
-		private void handleReregister() {
-			int port = -1;
-			int curr_sequence = -1;
-			int lifetime = -1;
-			try {
-				port = Integer.parseInt(redata[0]);
-				curr_sequence = Integer.parseInt(redata[1]);
-				lifetime = Integer.parseInt(redata[2]);
-			} catch (NumberFormatException e) {
-				e.printStackTrace();
+
+		synchronized (RENEWALS) {
+			// Renewals still due only wait for sequence numbers to come free
+			if (more_due && !TIME_TO_DIE)
+				armRenewals(RENEWAL_RETRY);
+			else
+				armRenewals();
+		}
+	}
+
+	// Gives request a free sequence number and sends it
+	private <T> CompletableFuture<T> submit(Request<T> request) {
+		if (TIME_TO_DIE) {
+			request.future.completeExceptionally(new IOException("Registration agent has quit"));
+			return request.future;
+		}
+
+		// Sequence numbers are handed out in turn, so one is reused as late as possible and
+		// a late response to an earlier request is unlikely to match a newer one
+		int seq = -1;
+		for (int i = 0; i < SEQUENCE_NUMBERS && seq == -1; i++) {
+			int candidate = NEXT_SEQUENCE.getAndIncrement() & 0xff;
+			if (OUTSTANDING.compareAndSet(candidate, null, request))
+				seq = candidate;
+		}
+		if (seq == -1) {
+			request.future.completeExceptionally(new SequenceNumbersExhausted());
+			return request.future;
+		}
+
+		request.seq = seq;
+		if (!request.build(request.message, seq)) {
+			OUTSTANDING.compareAndSet(seq, request, null);
+			LOG.warn("<portnum> must be from 1024 to 65535 and <serviceName> at most 255 characters");
+			failMessage(request.method);
+			request.future.completeExceptionally(new IllegalArgumentException("Invalid " + request.method + " arguments"));
+			return request.future;
+		}
+		request.message.flip();
+		request.event.begin();
+		send(request);
+		return request.future;
+	}
+
+	// Sends request, or sends it again, and starts its timer
+	private void send(final Request<?> request) {
+		synchronized (request) {
+			if (request.future.isDone())
 				return;
+			request.tries++;
+			if (request.tries > 1)
+				RETRIES.increment();
+			try {
+				request.message.rewind();
+				request.sent_at = System.nanoTime();
+				CHANNEL.send(request.message, SERVICE_ADDRESS);
+				SENT.increment();
+			} catch (IOException e) {
+				// Counts as a lost message, the timer sends it again
+				LOG.warn("Failed to send " + request.method + " message");
 			}
-			
-			// While assigned port is not unregistered, or same port is not re-registered by user, reregister
-			while (REGISTERED_PORTS.containsKey(port) && REGISTERED_PORTS.get(port) == curr_sequence && !TIME_TO_DIE) {
-				// Should re-register 15 seconds before the end of lifetime
-				int waitperiod = (lifetime - 15) * 1000;
-				
-				// Wait before re-registering
-				try {
-					Thread.sleep(waitperiod);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					return;
-				}
-				
-				int number_of_tries = 1;
-				String methodName = "REREGISTER";
-				System.out.println("Port: " + port + " is about to expire. Attempting to re-register");
-				// Exit condition is in the try catch statement or done
-				// Does not reregister if fails to receive reregister-confirmation 3 times
-				boolean done = false;
-				while (!done) {
-					try {
-						curr_sequence = SEQUENCE;
-						byte[] send = P1PMessage.getRegRequest(new String[] {"r",data[1],data[2],data[3]},curr_sequence,SERVICE_HOST);
-						byte[] receive = new byte[DATA_BUFFER_SIZE];
-						DatagramPacket dpsend = new DatagramPacket(send, send.length,SERVICE_HOST ,SERVICE_PORT);
-						DatagramPacket dpreceive = new DatagramPacket(receive, receive.length);
-		
-						socket.send(dpsend);
-						socket.setSoTimeout(5000);
-
-						socket.receive(dpreceive);
-						socket.setSoTimeout(0);
-		
-						lifetime = P1PMessage.valRegRes(dpreceive.getData(),curr_sequence);
-						if (lifetime != -1) {
-							System.out.println("Succeeded Re-registering Port: " + port + " as " + data[3] + " with lifetime: " + lifetime);
-							REGISTERED_PORTS.put(port,curr_sequence);
-							SEQUENCE++;
-						
-							// Successfully reregistered
-							done = true;
-						} else {
-							continue;
-						}		
-					
-					}  catch (SocketTimeoutException e){
-						if (number_of_tries >= 3) {
-							timeoutMessage(methodName);
-							failMessage(methodName);
-							return;
-						} else {
-							number_of_tries++;
-							timeoutMessage(methodName);
-						}
-					} catch (SocketException e) {
-						e.printStackTrace();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+			request.timer = SCHEDULER.schedule(new Runnable() {
+				public void run() {
+					timeout(request);
 				}
-			}
+			}, RESPONSE_TIMEOUT, TimeUnit.MILLISECONDS);
 		}
-		
-		// Handle unregistering with Registration Server
-		private void handleUnregister() {
-			if (data.length != 2) {
-				System.out.println("Invalid Number of Arguments for command 'u'"
-						+ "Usage: u <portnum>");
-			//} else if (!REGISTERED_PORTS.contains(Integer.parseInt(data[1]))) {
-			//	System.out.println("Port Number " + data[1] + " is not registered");
-			} else {
-				String methodName = "UNREGISTER";
-				int number_of_tries = 1;
-				while (true) {
-					try {
-						int curr_sequence = SEQUENCE;
-						byte[] send = P1PMessage.getURegRequest(data,curr_sequence,SERVICE_HOST);
-						if (send == null) {
-							System.out.println("<portnum> must respectively be a 2 byte integer ");
-							System.out.println("Unregistering Failed");
-							return;
-						}
-						
-						byte[] receive = new byte[DATA_BUFFER_SIZE];
-						DatagramPacket dpsend = new DatagramPacket(send, send.length, SERVICE_HOST, SERVICE_PORT);
-						DatagramPacket dpreceive = new DatagramPacket(receive, receive.length);
-					
-						socket.send(dpsend);
-						socket.setSoTimeout(5000);
-					
-						socket.receive(dpreceive);
-						socket.setSoTimeout(0);		// Stop timer
-						
-						// Validate server response
-						if (P1PMessage.valURegRes(dpreceive.getData(),curr_sequence) != -1) {
-							System.out.println("Succeeded Unregistering Port: " + data[1]);
-							
-							// Remove confirmed unregistered port from memory
-							REGISTERED_PORTS.remove(Integer.parseInt(data[1]));
-							SEQUENCE++;
-							
-							return;
-							
-						// Received some sort of data from server, but it was invalid. Try again
-						} else {
-							continue;
-						}
-					} catch (SocketTimeoutException e) {
-						if (number_of_tries >= 3) {
-							timeoutMessage(methodName);
-							failMessage(methodName);
-							return;
-						} else {
-							number_of_tries++;
-							timeoutMessage(methodName);
-						}
-					} catch (SocketException e) {
-						e.printStackTrace();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-			}
+	}
+
+	// Sends request again after a timeout, or gives up after MAX_TRIES
+	private void timeout(Request<?> request) {
+		if (request.future.isDone())
+			return;
+		timeoutMessage(request.method);
+		if (request.tries < MAX_TRIES) {
+			send(request);
+		} else if (OUTSTANDING.compareAndSet(request.seq, request, null)) {
+			FAILED.increment();
+			request.commitEvent(false);
+			failMessage(request.method);
+			request.future.completeExceptionally(new SocketTimeoutException("No reply to " + request.method + " message"));
 		}
-		// Handle fetching service information from Registration Server
-		private void handleFetch() {
-			if (data.length != 2 && data.length != 1) {
-				System.out.println("Invalid Number of Arguments for command 'f'"
-						+ "Usage: f, or f <name prefix>");
-			} else {
-				String methodName = "FETCH";
-				int number_of_tries = 1;
-				while (true) {
-					try {
-						int curr_sequence = SEQUENCE;
-						byte[] send = P1PMessage.getFetchRequest(data,curr_sequence);
-						byte[] receive = new byte[DATA_BUFFER_SIZE];
-						DatagramPacket dpsend = new DatagramPacket(send, send.length, SERVICE_HOST, SERVICE_PORT);
-						DatagramPacket dpreceive = new DatagramPacket(receive, receive.length);
-					
-						socket.send(dpsend);
-						socket.setSoTimeout(5000);
-					
-						socket.receive(dpreceive);
-						socket.setSoTimeout(0);		// Stop timer
-						
-						List<Entry> list = P1PMessage.valFetchRes(dpreceive.getData(),curr_sequence);
-						
-						// Validate server response
-						if (list != null) {
-							System.out.println("Succeeded Fetching Data from Server");
-							if (list.isEmpty() && data.length == 2) {
-								System.out.println("There were no ports associated the prefix: " + data[1]);
-							} else if (list.isEmpty() && data.length == 1) {
-								System.out.println("There were no registered ports on the server");
-							} else {
-								int counter = 1;
-								for (Entry e: list) {
-									entries.add(e);
-									System.out.println("[" + counter + "] " + e.ip.getHostAddress() + " " + e.port + " " + e.serviceData);
-									counter ++;
-								}
-							}
-							SEQUENCE++;
-							return;
-						} else {
-							continue;
-						}
-					} catch (SocketTimeoutException e) {
-						if (number_of_tries >= 3) {
-							timeoutMessage(methodName);
-							failMessage(methodName);
-							entries = null;
-							return;
-						} else {
-							number_of_tries++;
-							timeoutMessage(methodName);
+	}
+
+	// Completes the request waiting on the sequence number in response, if response answers it
+	private void dispatch(ByteBuffer response) {
+		int seq = P1PMessage.getSequence(response);
+		if (seq == -1)
+			return;
+		Request<?> request = OUTSTANDING.get(seq);
+		if (request != null)
+			request.complete(response);
+	}
+
+	// Answers a probe from the server
+	private void answerProbe(ByteBuffer probe, SocketAddress from) throws IOException {
+		int seq = P1PMessage.getProbeSequence(probe);
+		if (seq != -1) {
+			ACK.clear();
+			P1PMessage.putAck(ACK, seq);
+			ACK.flip();
+			PROBE_CHANNEL.send(ACK, from);
+			PROBES.increment();
+			LOG.debug("I've been probed!");
+		}
+	}
+
+	// Notifies user that we timed out waiting for a server response
+	private static void timeoutMessage(String method) {
+		LOG.info("Timed out waiting for reply to " + method + " message");
+	}
+
+	private static void failMessage(String method) {
+		LOG.warn("Sent " + MAX_TRIES + " " + method + " messages but got no reply.");
+		LOG.warn("Failed to " + method);
+	}
+
+	// helper method to check if the port given is valid
+	private static boolean isValidPort(int port) {
+		return port >= 1024 && port <= 65535;
+	}
+
+	private static InetAddress toInetAddress(int ip) {
+		try {
+			return InetAddress.getByAddress(new byte[] {(byte) (ip >>> 24), (byte) (ip >>> 16), (byte) (ip >>> 8), (byte) ip});
+		} catch (UnknownHostException e) {
+			// Only thrown for addresses of the wrong length
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void close(DatagramChannel channel) {
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			LOG.warn("Failed to close registration channel");
+		}
+	}
+
+	/**
+	 * Receives every datagram sent to the agent and hands it to whoever is waiting for it
+	 */
+	private class DispatchThread extends Thread {
+
+		public DispatchThread() {
+			super("RegistrationDispatcher");
+		}
+
+		public void run() {
+			ByteBuffer buffer = ByteBuffer.allocate(DATA_BUFFER_SIZE);
+			while (!TIME_TO_DIE) {
+				try {
+					SELECTOR.select();
+					Iterator<SelectionKey> it = SELECTOR.selectedKeys().iterator();
+					while (it.hasNext()) {
+						DatagramChannel channel = (DatagramChannel) it.next().channel();
+						it.remove();
+
+						// Read everything that has arrived on this channel
+						SocketAddress from;
+						buffer.clear();
+						while ((from = channel.receive(buffer)) != null) {
+							buffer.flip();
+							if (channel == CHANNEL)
+								dispatch(buffer);
+							else
+								answerProbe(buffer, from);
+							buffer.clear();
 						}
-					} catch (SocketException e) {
-						e.printStackTrace();
-					} catch (IOException e) {
-						e.printStackTrace();
+					}
+				} catch (IOException e) {
+					if (!TIME_TO_DIE) {
+						LOG.warn("Error in registration dispatcher loop", e);
 					}
 				}
 			}
+
+			// Being here means we were told to quit
+			for (int i = 0; i < SEQUENCE_NUMBERS; i++) {
+				Request<?> request = OUTSTANDING.getAndSet(i, null);
+				if (request != null)
+					request.future.completeExceptionally(new IOException("Registration agent has quit"));
+			}
+			close(CHANNEL);
+			close(PROBE_CHANNEL);
+			try {
+				SELECTOR.close();
+			} catch (IOException e) {
+				LOG.warn("IOException: Registration agent quit, but failed to close selector");
+			}
 		}
-		
-		// Handle probing the Registration Server
-		private void handleProbe() {
-			if (data.length != 1) {
-				System.out.println("Invalid Number of Arguments for command 'p'"
-						+ "Usage: p");
-			} else {
-				String methodName = "PROBE";
-				int number_of_tries = 1;
-				while (true) {
-					try {
-						int curr_sequence = SEQUENCE;
-						byte[] send = P1PMessage.getProbeRequest(data,curr_sequence);
-						byte[] receive = new byte[DATA_BUFFER_SIZE];
-						DatagramPacket dpsend = new DatagramPacket(send, send.length, SERVICE_HOST, SERVICE_PORT);
-						DatagramPacket dpreceive = new DatagramPacket(receive, receive.length);
-					
-						socket.send(dpsend);
-						socket.setSoTimeout(5000);
-					
-						socket.receive(dpreceive);
-						socket.setSoTimeout(0);		// Stop timer
-						
-						// Validate server response
-						if (P1PMessage.valACK(dpreceive.getData(),curr_sequence)) {
-							System.out.println("Succeeded Probing Server");
-							SEQUENCE++;
-							return;
-						} else {
-							continue;
-						}
-					} catch (SocketTimeoutException e) {
-						if (number_of_tries >= 3) {
-							timeoutMessage(methodName);
-							failMessage(methodName);
-							return;
-						} else {
-							number_of_tries++;
-							timeoutMessage(methodName);
-						}
-					} catch (SocketException e) {
-						e.printStackTrace();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
+	}
+
+	/**
+	 * One request to the server, waiting for its response
+	 */
+	private abstract class Request<T> {
+		private String method;
+		private CompletableFuture<T> future;
+		private int seq;
+		private ByteBuffer message;			// Kept to send again on timeout
+		private int tries;
+		private ScheduledFuture<?> timer;
+		private volatile long sent_at;		// nanoTime of the latest send
+		private RegistrationEvent event;	// Lasts from the first send to the answer, or giving up
+
+		public Request(String method) {
+			this.method = method;
+			this.future = new CompletableFuture<T>();
+			this.message = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+			this.event = new RegistrationEvent();
+		}
+
+		// Writes the message with sequence number seq, or returns false if the arguments are invalid
+		abstract boolean build(ByteBuffer message, int seq);
+
+		// Returns what response carries, or null if it is not a valid answer to this request
+		// Runs on the dispatcher thread, and response is only valid until it returns
+		abstract T parse(ByteBuffer response, int seq);
+
+		// Describes the request in its JFR event, and commits it
+		private void commitEvent(boolean succeeded) {
+			if (!event.shouldCommit())
+				return;
+			event.method = method;
+			event.peer = String.valueOf(SERVICE_ADDRESS);
+			event.sequence = seq;
+			event.tries = tries;
+			event.bytes = message.limit();
+			event.succeeded = succeeded;
+			event.commit();
+		}
+
+		// Completes this request if response answers it
+		private void complete(ByteBuffer response) {
+			T result = parse(response, seq);
+			if (result == null || !OUTSTANDING.compareAndSet(seq, this, null))
+				return;
+			synchronized (this) {
+				if (timer != null)
+					timer.cancel(false);
 			}
+			ANSWERED.increment();
+			ROUND_TRIPS.record(System.nanoTime() - sent_at);
+			commitEvent(true);
+			future.complete(result);
+		}
+	}
+
+	/**
+	 * Asks the server to register a port
+	 */
+	private class RegisterRequest extends Request<Integer> {
+		private int port;
+		private int service_data;
+		private String name;
+
+		public RegisterRequest(String method, int port, int service_data, String name) {
+			super(method);
+			this.port = port;
+			this.service_data = service_data;
+			this.name = name;
 		}
-		
-		// Notifies user that we timed out waiting for a server response
-		private void timeoutMessage(String method) {
-			System.out.println("Timed out waiting for reply to " + method + " message");
+
+		boolean build(ByteBuffer message, int seq) {
+			if (!isValidPort(port) || name.length() > 255)
+				return false;
+			P1PMessage.putRegister(message, seq, THIS_ADDRESS, port, service_data, name);
+			return true;
+		}
+
+		Integer parse(ByteBuffer response, int seq) {
+			int lifetime = P1PMessage.getRegisteredLifetime(response, seq);
+			return lifetime == -1 ? null : lifetime;
+		}
+	}
+
+	/**
+	 * A registered port, waiting to be registered again before its lifetime runs out
+	 */
+	private static class Renewal implements Comparable<Renewal> {
+		private final int port;
+		private final int service_data;
+		private final String name;
+		private final int id;				// Registration this renews, see REGISTERED_PORTS
+		private final long expires;			// When the registration's lifetime runs out, in milliseconds
+		private final long due;				// When to send the renewal, in milliseconds
+
+		public Renewal(int port, int service_data, String name, int id, long expires, long due) {
+			this.port = port;
+			this.service_data = service_data;
+			this.name = name;
+			this.id = id;
+			this.expires = expires;
+			this.due = due;
+		}
+
+		public int compareTo(Renewal other) {
+			return Long.compare(due, other.due);
 		}
-		
-		private void failMessage(String method) {
-			System.out.println("Sent 3 " + method + " messages but got no reply.");
-			System.out.println("Failed to " + method);
+	}
+
+	/**
+	 * Every sequence number is taken by a request still waiting on its response
+	 */
+	private static class SequenceNumbersExhausted extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public SequenceNumbersExhausted() {
+			super("Too many outstanding registration requests");
 		}
 	}
 }
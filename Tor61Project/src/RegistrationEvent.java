@@ -0,0 +1,40 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * JFR event for one request to the registration service, from the first send to its answer or giving up
+ *
+ */
+@Name("tor61.Registration")
+@Label("Tor61 Registration Request")
+@Category({"Tor61", "Registration"})
+@Description("A request to the registration service")
+@StackTrace(false)
+public class RegistrationEvent extends jdk.jfr.Event {
+	@Label("Method")
+	@Description("REGISTER, REREGISTER, UNREGISTER, FETCH or PROBE")
+	public String method;
+
+	@Label("Peer")
+	@Description("Registration service")
+	public String peer;
+
+	@Label("Sequence Number")
+	public int sequence;
+
+	@Label("Tries")
+	public int tries;
+
+	@Label("Bytes")
+	@Description("Size of the request")
+	@DataAmount
+	public long bytes;
+
+	@Label("Succeeded")
+	public boolean succeeded;
+}
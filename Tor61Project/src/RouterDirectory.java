@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * Keeps the list of Tor routers registered under a name prefix
+ *
+ * The list is fetched from the registration service in the background and kept for
+ * TTL milliseconds. It is refreshed every half TTL so it never goes stale while the
+ * service answers, and the last good list is kept when a fetch fails. Once fetches have
+ * failed for longer than TTL the list has expired, since the registrations in it may
+ * have lapsed, and readers get an empty list until a fetch succeeds. Readers get the
+ * latest list right away as an immutable snapshot, and never wait on the network.
+ *
+ */
+public class RouterDirectory {
+	private static final Log LOG = Log.get("directory");
+	public static final long DEFAULT_TTL = 60 * 1000;		// milliseconds
+
+	private RegistrationAgent AGENT;
+	private String PREFIX;
+	private long TTL;
+	private volatile Snapshot SNAPSHOT;					// Latest fetch result, replaced as a whole
+	private volatile boolean EXPIRED_LOGGED;			// Whether we warned that the current snapshot expired
+	private ScheduledExecutorService REFRESHER;
+	private CompletableFuture<List<Entry>> REFRESH;	// Fetch currently running, if any
+
+	public RouterDirectory(RegistrationAgent agent, String prefix) {
+		this(agent, prefix, DEFAULT_TTL);
+	}
+
+	public RouterDirectory(RegistrationAgent agent, String prefix, long ttl) {
+		AGENT = agent;
+		PREFIX = prefix;
+		TTL = ttl;
+		SNAPSHOT = new Snapshot(Collections.<Entry>emptyList(), 0);
+		REFRESHER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RouterDirectory");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts refreshing the list in the background, beginning with a fetch right away
+	 */
+	public void start() {
+		REFRESHER.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refresh();
+			}
+		}, 0, TTL / 2, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Returns the latest list of routers without waiting. Empty until the first fetch succeeds,
+	 * and once the list is older than TTL
+	 * @return unmodifiable list of routers
+	 */
+	public List<Entry> getEntries() {
+		Snapshot snapshot = SNAPSHOT;
+		if (snapshot.entries.isEmpty())
+			return snapshot.entries;
+		long age = System.currentTimeMillis() - snapshot.fetched_at;
+		if (age < TTL)
+			return snapshot.entries;
+		if (!EXPIRED_LOGGED) {
+			EXPIRED_LOGGED = true;
+			LOG.warn("Router directory list is " + age + " ms old, past its " + TTL + " ms TTL, serving no routers until a fetch succeeds");
+		}
+		return Collections.<Entry>emptyList();
+	}
+
+	/**
+	 * Fetches the list again, unless a fetch is already running
+	 * @return future completed with the new list, or the old list if the fetch failed
+	 */
+	public synchronized CompletableFuture<List<Entry>> refresh() {
+		if (REFRESH != null && !REFRESH.isDone())
+			return REFRESH;
+
+		final CompletableFuture<List<Entry>> future = new CompletableFuture<List<Entry>>();
+		REFRESH = future;
+		REFRESHER.execute(new Runnable() {
+			public void run() {
+				List<Entry> entries = AGENT.fetch(PREFIX);
+				if (entries != null) {
+					SNAPSHOT = new Snapshot(Collections.unmodifiableList(new ArrayList<Entry>(entries)),
+							System.currentTimeMillis());
+					EXPIRED_LOGGED = false;
+				} else {
+					LOG.warn("Router directory fetch failed, keeping last list until it is "
+							+ TTL + " ms old");
+				}
+				future.complete(getEntries());
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Stops refreshing
+	 */
+	public void quit() {
+		REFRESHER.shutdownNow();
+	}
+
+	/**
+	 * A fetched list and when it was fetched
+	 */
+	private static class Snapshot {
+		private final List<Entry> entries;
+		private final long fetched_at;
+
+		public Snapshot(List<Entry> entries, long fetched_at) {
+			this.entries = entries;
+			this.fetched_at = fetched_at;
+		}
+	}
+}
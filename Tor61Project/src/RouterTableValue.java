@@ -1,4 +1,5 @@
 import java.io.OutputStream;
+import java.net.Socket;
 
 /**
  * 
@@ -7,14 +8,24 @@ import java.io.OutputStream;
  */
 public class RouterTableValue {
 	
+	private Socket socket;
 	private OutputStream stream;
 	private int circuit_id;
 	
-	public RouterTableValue(OutputStream stream, int id) {
+	public RouterTableValue(Socket socket, OutputStream stream, int id) {
+		this.socket = socket;
 		this.stream = stream;
 		circuit_id = id;
 	}
 	
+	/**
+	 * return the connection the stream writes to
+	 * @return the socket
+	 */
+	public Socket getSocket() {
+		return socket;
+	}
+	
 	/**
 	 * return the data output stream
 	 * @return data output stream
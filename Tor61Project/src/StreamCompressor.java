@@ -0,0 +1,89 @@
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ *
+ * Compresses the data of one stream before it is packed into relay data cells
+ *
+ * The deflater keeps its history across calls, so later payloads compress against
+ * earlier ones. Each call is flushed so the other end can inflate it as soon as its
+ * cells arrive. Payloads that do not get smaller are sent raw instead, and after that
+ * we stop trying for a growing number of payloads, so already compressed content
+ * costs almost nothing.
+ *
+ * Every compressed stream payload starts with a one byte marker telling the other
+ * end how to read the rest. Both ends start a new deflate stream after a raw payload.
+ *
+ */
+public class StreamCompressor {
+	public static final byte RAW_PAYLOAD = 0;
+	public static final byte DEFLATED_PAYLOAD = 1;
+
+	private static final int MAX_SKIPPED = 64;		// Most payloads sent raw before trying to compress again
+
+	private Deflater deflater;
+	private byte[] buffer;			// Holds the output of the last call to compress
+	private int failures;			// Payloads in a row that did not get smaller
+	private int skip;				// Payloads left to send raw without trying
+	private long raw_bytes;			// Stream bytes handed to us
+
+	public StreamCompressor() {
+		deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		buffer = new byte[2 * TorCellConverter.MAX_DATA_SIZE];
+	}
+
+	/**
+	 * Compresses len bytes of b starting at off
+	 * @return number of compressed bytes now in getBuffer(), or -1 if the data should be sent raw
+	 */
+	public int compress(byte[] b, int off, int len) {
+		raw_bytes += len;
+		if (skip > 0) {
+			skip--;
+			return -1;
+		}
+
+		deflater.setInput(b, off, len);
+		int length = 0;
+		while (true) {
+			if (length == buffer.length)
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			length += deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+			// Flushing is done once the deflater leaves part of the buffer empty
+			if (length < buffer.length)
+				break;
+		}
+
+		if (length < len) {
+			failures = 0;
+			return length;
+		}
+
+		// Didn't help, the other end starts over when it sees a raw payload, and so do we
+		deflater.reset();
+		failures = Math.min(failures + 1, 6);
+		skip = Math.min(1 << failures, MAX_SKIPPED);
+		return -1;
+	}
+
+	/**
+	 * Returns the buffer holding the output of the last successful compress
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Returns the number of stream bytes passed to compress so far
+	 */
+	public long getRawBytes() {
+		return raw_bytes;
+	}
+
+	/**
+	 * Frees the native memory held by the deflater
+	 */
+	public void end() {
+		deflater.end();
+	}
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * Undoes StreamCompressor on the receiving end of a stream
+ *
+ */
+public class StreamDecompressor {
+	private Inflater inflater;
+	private byte[] buffer;
+	private long raw_bytes;			// Stream bytes written out
+
+	public StreamDecompressor() {
+		inflater = new Inflater(true);
+		buffer = new byte[4 * TorCellConverter.MAX_DATA_SIZE];
+	}
+
+	/**
+	 * Reads one compressed stream payload and writes the stream data it carries to out
+	 * @param b buffer holding the payload, starting with its marker byte
+	 * @param off where the payload starts in b
+	 * @param len length of the payload including the marker
+	 * @throws IOException if out fails, or the payload is not valid deflate data
+	 */
+	public void decompress(byte[] b, int off, int len, OutputStream out) throws IOException {
+		if (len == 0)
+			return;
+		if (b[off] == StreamCompressor.RAW_PAYLOAD) {
+			// The sender starts a new deflate stream after every raw payload
+			inflater.reset();
+			out.write(b, off + 1, len - 1);
+			raw_bytes += len - 1;
+			return;
+		}
+
+		inflater.setInput(b, off + 1, len - 1);
+		try {
+			int inflated;
+			while ((inflated = inflater.inflate(buffer)) > 0) {
+				out.write(buffer, 0, inflated);
+				raw_bytes += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Received corrupt compressed payload", e);
+		}
+	}
+
+	/**
+	 * Returns the number of stream bytes written out so far
+	 */
+	public long getRawBytes() {
+		return raw_bytes;
+	}
+
+	/**
+	 * Frees the native memory held by the inflater
+	 */
+	public void end() {
+		inflater.end();
+	}
+}
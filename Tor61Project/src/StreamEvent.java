@@ -0,0 +1,51 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ *
+ * JFR event for a stream being begun at its exit router, or carried by the proxy from start to end
+ *
+ * A begin lasts from the begin cell until the destination was resolved and connected to.
+ * An end lasts the whole life of the stream and carries how many bytes it moved each way.
+ *
+ */
+@Name("tor61.Stream")
+@Label("Tor61 Stream")
+@Category({"Tor61", "Streams"})
+@Description("A stream begun at an exit router, or ended at the proxy or exit")
+@StackTrace(false)
+public class StreamEvent extends jdk.jfr.Event {
+	public static final String BEGIN = "begin";
+	public static final String END = "end";
+
+	@Label("Action")
+	@Description("begin or end")
+	public String action;
+
+	@Label("Circuit Id")
+	public int circuitId;
+
+	@Label("Stream Id")
+	public int streamId;
+
+	@Label("Peer")
+	@Description("Destination of the stream")
+	public String peer;
+
+	@Label("Bytes Sent")
+	@Description("Payload bytes sent towards the other end of the circuit")
+	@DataAmount
+	public long bytesSent;
+
+	@Label("Bytes Received")
+	@Description("Payload bytes received from the other end of the circuit")
+	@DataAmount
+	public long bytesReceived;
+
+	@Label("Succeeded")
+	public boolean succeeded;
+}
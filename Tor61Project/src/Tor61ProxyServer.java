@@ -1,20 +1,55 @@
-import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ *
+ * HTTP proxy that sends every request through a Tor61 circuit starting at our own router
+ *
+ * Circuits are built ahead of time. Once startPool is called, a pool of POOL_SIZE ready
+ * circuits is kept, built in parallel in the background, each with its own cid on our one
+ * connection to the router. New streams go on the active circuit, and when it dies a ready
+ * circuit takes its place at once and another is built to refill the pool, so streams never
+ * wait on a multi-hop build except before the very first circuit is ready.
+ *
+ * Circuits are rotated make-before-break. Once the active circuit is MAX_CIRCUIT_AGE old, or
+ * MAX_UNANSWERED streams in a row got no answer to their begin, a ready circuit takes over
+ * new streams. The old circuit keeps its streams until they finish, and is destroyed once
+ * it has none left. An old circuit is only rotated out once a replacement is ready, a
+ * failing one right away.
+ *
+ */
 public class Tor61ProxyServer {
+	private static final Log LOG = Log.get("proxy");
+	public static final int POOL_SIZE = Integer.getInteger("tor61.circuit.pool", 2);			// Ready circuits to keep
+	public static final int CIRCUIT_LENGTH = Integer.getInteger("tor61.circuit.length", 2);	// Routers after our own
+	private static final long RETRY_DELAY = 1000;			// milliseconds before building again after a failed build
+	private static final long CIRCUIT_WAIT = 10000;			// milliseconds a new stream waits for the first circuit
+	private static final int MAX_EXTEND_FAILURES = 4;		// Failed extends before a build gives up
+	private static final long MAX_CIRCUIT_AGE = Long.getLong("tor61.circuit.age", 10 * 60 * 1000);	// milliseconds
+	private static final long ROTATION_CHECK = Math.min(MAX_CIRCUIT_AGE / 2, 10000);			// milliseconds between age checks
+	private static final int MAX_UNANSWERED = 2;			// Streams in a row without an answer before a circuit is rotated
+
 	private int PROXY_PORT;
 	private int TOR_PORT;
 	private InetAddress TOR_ADDRESS;
@@ -23,11 +58,38 @@ public class Tor61ProxyServer {
 	private Socket TOR_SOCKET;
 	private DataOutputStream TOR_OUT_STREAM;
 	private int TOR_SERVICE_DATA;
-	private short CID;
-	public static Map<Short,UnpackOutputStream> STREAMS;
+	public static Map<Short,Tor61ProxyThread> STREAMS;	// Streams on our circuits, by stream id
+	private PeerScorer SCORER;							// Told whether each extend worked
+	private BuildTimings TIMINGS;						// How long create and each extend take, and so how long to wait
+	private Map<Short,Circuit> CIRCUITS;				// Every circuit not yet closed, by cid
+	private Queue<Circuit> READY;						// Built circuits waiting to be used, guarded by itself
+	private volatile Circuit ACTIVE;					// Circuit new streams are sent on
+	private AtomicInteger BUILDING;						// Builds running
+	private volatile RouterDirectory DIRECTORY;			// Where the pool picks routers from, null until startPool
+	private volatile boolean CONNECTED;					// False once the connection to our router is lost
+	private ScheduledExecutorService BUILDERS;
+	private Metrics METRICS;							// Exported with JMX while the proxy is started
+	private CellCounters CELLS_IN;						// Cells read from our router
+	private CellCounters CELLS_OUT;						// Cells written to our router
+	private LongAdder CIRCUITS_BUILT;
+	private LongAdder BUILD_FAILURES;
+	private LongAdder EXTEND_FAILURES;
+	private LongAdder ROTATIONS;
+	private LongAdder DESTROYED;						// Circuits we tore down
+	private LongAdder LOST;								// Circuits our router tore down, or lost with the connection
+	private LongAdder STREAMS_STARTED;
 	
 	// Set proxy and tor ports
 	public Tor61ProxyServer(int proxy_port, int tor_port, InetAddress address, int service_data) {
+		this(proxy_port, tor_port, address, service_data, new PeerScorer());
+	}
+
+	public Tor61ProxyServer(int proxy_port, int tor_port, InetAddress address, int service_data, PeerScorer scorer) {
+		this(proxy_port, tor_port, address, service_data, scorer, new BuildTimings());
+	}
+
+	public Tor61ProxyServer(int proxy_port, int tor_port, InetAddress address, int service_data, PeerScorer scorer,
+			BuildTimings timings) {
 		this.PROXY_PORT = proxy_port;
 		this.TOR_PORT = tor_port;
 		this.TOR_ADDRESS = address;
@@ -35,141 +97,99 @@ public class Tor61ProxyServer {
 			terminate();
 		SERVER = null;
 		TOR_SERVICE_DATA = service_data;
+		SCORER = scorer;
+		TIMINGS = timings;
+		STREAMS = new ConcurrentHashMap<Short,Tor61ProxyThread>();
+		CIRCUITS = new ConcurrentHashMap<Short,Circuit>();
+		READY = new ArrayDeque<Circuit>();
+		BUILDING = new AtomicInteger();
+		METRICS = new Metrics("Tor61ProxyServer");
+		CELLS_IN = new CellCounters(METRICS, "cells_in");
+		CELLS_OUT = new CellCounters(METRICS, "cells_out");
+		CIRCUITS_BUILT = METRICS.counter("circuits_built");
+		BUILD_FAILURES = METRICS.counter("circuit_build_failures");
+		EXTEND_FAILURES = METRICS.counter("extend_failures");
+		ROTATIONS = METRICS.counter("circuits_rotated");
+		DESTROYED = METRICS.counter("circuits_destroyed");
+		LOST = METRICS.counter("circuits_lost");
+		STREAMS_STARTED = METRICS.counter("streams_started");
+		METRICS.gauge("streams", new LongSupplier() {
+			public long getAsLong() { return STREAMS.size(); }
+		});
+		METRICS.gauge("circuits", new LongSupplier() {
+			public long getAsLong() { return CIRCUITS.size(); }
+		});
+		METRICS.gauge("circuits_ready", new LongSupplier() {
+			public long getAsLong() {
+				synchronized (READY) {
+					return READY.size();
+				}
+			}
+		});
+		METRICS.gauge("circuits_building", new LongSupplier() {
+			public long getAsLong() { return BUILDING.get(); }
+		});
+		BUILDERS = Executors.newScheduledThreadPool(POOL_SIZE, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CircuitBuilder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
 
 		try {
 			TOR_SOCKET = new Socket(TOR_ADDRESS, TOR_PORT);
-			System.out.println("Tor Port at: " + TOR_PORT);
-			System.out.println("Proxy Socket at: " + TOR_SOCKET.getLocalPort() + " connected to: " + TOR_SOCKET.getPort());
-			TOR_OUT_STREAM = new DataOutputStream(TOR_SOCKET.getOutputStream());
+			LOG.debug("Tor Port at: " + TOR_PORT);
+			LOG.debug("Proxy Socket at: " + TOR_SOCKET.getLocalPort() + " connected to: " + TOR_SOCKET.getPort());
+			TOR_OUT_STREAM = new DataOutputStream(CELLS_OUT.wrap(TOR_SOCKET.getOutputStream()));
 		} catch (IOException e) {
-			System.out.println("Failed Creating a Socket with Tor Router at ip: " + TOR_ADDRESS + " and port: " + TOR_PORT);
+			LOG.error("Failed Creating a Socket with Tor Router at ip: " + TOR_ADDRESS + " and port: " + TOR_PORT);
 			System.exit(1);
 		}
-		sendOpenAndCreateMessage();
-		STREAMS = new HashMap<Short,UnpackOutputStream>();
-		System.out.println("FINISHED PROXY SERVER CONSTRUCTOR");
+		sendOpenMessage();
+		CONNECTED = true;
+		
+		// From here on only the input thread reads from the tor router
+		TorInputThread reader = new TorInputThread();
+		reader.setDaemon(true);
+		reader.start();
+		LOG.debug("FINISHED PROXY SERVER CONSTRUCTOR");
 	}
 	
 	/**
-	 * Send a open and create message to the new connection
+	 * Send a open message to the new connection, circuits are created on it later
 	 */
-	private void sendOpenAndCreateMessage() {
-		Random r = new Random();
-		CID = (short) r.nextInt(Short.MAX_VALUE);
-		if (CID % 2 == 0)
-			CID++;
-      
-
+	private void sendOpenMessage() {
         try {
-        	DataOutputStream out = new DataOutputStream(TOR_SOCKET.getOutputStream());
-            BufferedReader in = new BufferedReader(new InputStreamReader(TOR_SOCKET.getInputStream()));
+            DataInputStream in = new DataInputStream(TOR_SOCKET.getInputStream());
             
-            out.write(TorCellConverter.getOpenCell(CID, 0, TOR_SERVICE_DATA));
-            out.flush();
-            // Set Timer To 10 Minutes
+            TOR_OUT_STREAM.write(TorCellConverter.getOpenCell((short) 0, 0, TOR_SERVICE_DATA));
+            TOR_OUT_STREAM.flush();
             // If header is not processed within 5 seconds, assume client is dead
 			TOR_SOCKET.setSoTimeout(5 * 1000);
 
-			// Wait for the data get pushed into the BufferedReader, timeout after 5 secs
-			long startTime = System.currentTimeMillis();
-						
 			// Read the next 512 bytes (one tor cell)
-    		char[] next_cell = new char[512];
-
-			int read = 0;
-			boolean none = false;
-			while (read < 512 && read != -1 && !none) {
-				try {
-					read = in.read(next_cell,read,512 - read);
-					
-					// just in case if this is eof
-					int wait = 0;
-					while (!in.ready() && wait < 5) {
-						Thread.sleep(10);
-						wait++;
-					}
-					none = wait==5 ? true : false;
-				} catch (IOException e) {
-					System.out.println("Error when reading from buffered");
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
-			}
-
-			// pass next_cell into TorCellConverter and find out what the command was
 			byte[] data = new byte[TorCellConverter.CELL_LENGTH];
-			try {
-				data = new String(next_cell).getBytes("UTF-8");
-			} catch (UnsupportedEncodingException e) {
-				e.printStackTrace();
-			}			
+			in.readFully(data);
 			
 			TOR_SOCKET.setSoTimeout(0);
-			if (TorCellConverter.getCellType(data).equals("opened")) {
-				out.write(TorCellConverter.getCreateCell(CID));
-
-				startTime = System.currentTimeMillis();
-				// Wait for the data get pushed into the BufferedReader, timeout after 5 secs
-
-				TOR_SOCKET.setSoTimeout(5000);
-
-				while (!in.ready() && System.currentTimeMillis()-startTime <= 5 * 1000)
-					TimeUnit.MICROSECONDS.sleep(100);
-
-				//Read the next 512 bytes (one tor cell)
-	    		next_cell = new char[512];
-
-				read = 0;
-				none = false;
-				while (read < 512 && read != -1 && !none) {
-					try {
-						read = in.read(next_cell,read,512 - read);
-						
-						// just in case if this is eof
-						int wait = 0;
-						while (!in.ready() && wait < 5) {
-							Thread.sleep(10);
-							wait++;
-						}
-						none = wait==5 ? true : false;
-					} catch (IOException e) {
-						System.out.println("Error when reading from buffered");
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
-
-				// pass next_cell into TorCellConverter and find out what the command was
-				try {
-					data = new String(next_cell).getBytes("UTF-8");
-				} catch (UnsupportedEncodingException e) {
-					e.printStackTrace();
-				}
-				TOR_SOCKET.setSoTimeout(0);
-
-
-				if (!TorCellConverter.getCellType(data).equals("created")) {
-					throw new Exception("Tor61ProxyServer:sendOpenAndCreateMessage - "
-							+ "Didn't receive created cell message");
-				}	
-			} else if (TorCellConverter.getCellType(data).equals("open failed")){
-				throw new Exception("Tor61ProxyServer:sendOpenAndCreateMessage - "
+			if (TorCellConverter.getCellType(data).equals("open failed")){
+				throw new Exception("Tor61ProxyServer:sendOpenMessage - "
 						+ "Received open failed");
-			} else {
-				throw new Exception("Tor61ProxyServer:sendOpenAndCreateMessage - "
+			} else if (!TorCellConverter.getCellType(data).equals("opened")) {
+				throw new Exception("Tor61ProxyServer:sendOpenMessage - "
 						+ "Didn't receive opened cell message");
 			}
 		} catch (SocketException e) {
-			System.out.println("Timed out waiting while sending open and create messages to Tor Router");
+			LOG.warn("Timed out waiting while sending open message to Tor Router");
 		} catch (IOException e) {
-			System.out.println("Error when sending open and create messages to Tor Router");
+			LOG.error("Error when sending open message to Tor Router");
 			System.exit(1);
 		} catch (IllegalArgumentException e) {
-			e.printStackTrace();
+			LOG.error("Invalid cell from Tor Router", e);
 			System.exit(1);
 		} catch (Exception e) {
-			System.out.println("Error in Tor61Proxy Server");
-			e.printStackTrace();
+			LOG.error("Error in Tor61Proxy Server", e);
 			System.exit(1);
 		}
 	}
@@ -181,9 +201,10 @@ public class Tor61ProxyServer {
 			LISTENING = true;
 			SERVER = new ProxyServerThread();
 			SERVER.start();
+			METRICS.register("port " + PROXY_PORT);
 			return true;
 		} else {
-			System.out.println("PROXY SERVER IS ALREADY RUNNING ON PORT: " + PROXY_PORT);
+			LOG.warn("PROXY SERVER IS ALREADY RUNNING ON PORT: " + PROXY_PORT);
 			return false;
 		}
     }
@@ -192,89 +213,373 @@ public class Tor61ProxyServer {
     // Ideally, the Server should terminate within the next 10 seconds
     public boolean quit() {
     	LISTENING = false;
-    	System.out.println("Proxy Server is Terminating. Please note that this operation can take up to 10 seconds");
+    	BUILDERS.shutdownNow();
+    	METRICS.unregister();
+    	LOG.info("Proxy Server is Terminating. Please note that this operation can take up to 10 seconds");
     	try {
     		SERVER.join();
     	} catch (InterruptedException e) {
-    		e.printStackTrace();
-    		System.out.println("Interrupted when trying to quit in Proxy Server");
+    		LOG.warn("Interrupted when trying to quit in Proxy Server", e);
     		return false;
     	}
     	return true;
     }
 
+    /**
+     * Starts building circuits in the background, through routers picked from directory,
+     * and keeps POOL_SIZE of them ready from then on
+     */
+    public void startPool(RouterDirectory directory) {
+    	DIRECTORY = directory;
+    	replenish();
+    	BUILDERS.scheduleWithFixedDelay(new Runnable() {
+    		public void run() {
+    			Circuit active = ACTIVE;
+    			if (active != null && active.getActiveTime() >= MAX_CIRCUIT_AGE)
+    				rotate(active, "it is " + active.getActiveTime() + " ms old", false);
+    		}
+    	}, ROTATION_CHECK, ROTATION_CHECK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the counters and gauges of this proxy
+     */
+    public Metrics getMetrics() {
+    	return METRICS;
+    }
+
+    /**
+     * Returns every circuit that is not closed, including ones still building
+     */
+    public List<Circuit> getCircuits() {
+    	return new ArrayList<Circuit>(CIRCUITS.values());
+    }
+
+    /**
+     * Returns every stream that has sent its begin and not yet finished
+     */
+    public List<Tor61ProxyThread> getStreams() {
+    	return new ArrayList<Tor61ProxyThread>(STREAMS.values());
+    }
+
+    /**
+     * Returns the circuit new streams should go on without waiting, or null if no circuit is ready.
+     * If the active circuit died, a ready one takes its place and the pool is refilled
+     */
+    public Circuit getCircuit() {
+    	Circuit active = ACTIVE;
+    	if (active != null && active.isUsable())
+    		return active;
+
+    	Circuit next;
+    	synchronized (READY) {
+    		if (ACTIVE != null && ACTIVE.isUsable())
+    			return ACTIVE;
+    		next = READY.poll();
+    		while (next != null && !next.setState(Circuit.State.ACTIVE))
+    			next = READY.poll();
+    		ACTIVE = next;
+    	}
+    	if (next != null) {
+    		LOG.info("Proxy now sending new streams on " + next);
+    		replenish();
+    	}
+    	return next;
+    }
+
+    /**
+     * Waits up to timeout milliseconds for a circuit to be ready
+     * @return the circuit new streams should go on, or null if none was ready in time
+     */
+    public Circuit awaitCircuit(long timeout) throws InterruptedException {
+    	long deadline = System.currentTimeMillis() + timeout;
+    	synchronized (READY) {
+    		Circuit circuit;
+    		while ((circuit = getCircuit()) == null) {
+    			long left = deadline - System.currentTimeMillis();
+    			if (left <= 0)
+    				return null;
+    			READY.wait(left);
+    		}
+    		return circuit;
+    	}
+    }
+
+    /**
+     * Builds a circuit through exactly the routers in path, without the pool
+     * @param path routers to extend to after our own, in order
+     * @return the circuit, or null if it could not be built
+     */
+    public Circuit buildCircuit(List<Entry> path) {
+    	Circuit circuit = newCircuit();
+    	try {
+    		if (create(circuit)) {
+    			for (Entry e: path) {
+    				if (!extend(circuit, e)) {
+    					destroyCircuit(circuit);
+    					return null;
+    				}
+    			}
+    			if (circuit.setState(Circuit.State.READY))
+    				return circuit;
+    		}
+    	} catch (IOException e) {
+    		LOG.info("Failed building " + circuit + ": " + e.getMessage());
+    	}
+    	destroyCircuit(circuit);
+    	return null;
+    }
+
+    // Starts builds until ready and building circuits add up to POOL_SIZE
+    private void replenish() {
+    	if (DIRECTORY == null || !CONNECTED || BUILDERS.isShutdown())
+    		return;
+    	synchronized (READY) {
+    		while (READY.size() + BUILDING.get() < POOL_SIZE) {
+    			BUILDING.incrementAndGet();
+    			BUILDERS.execute(new CircuitBuilder());
+    		}
+    	}
+    }
+
+    /**
+     * Builds one circuit for the pool, through routers picked by score
+     */
+    private class CircuitBuilder implements Runnable {
+    	public void run() {
+    		Circuit circuit = null;
+    		try {
+    			circuit = build();
+    		} finally {
+    			BUILDING.decrementAndGet();
+    		}
+
+    		if (circuit == null) {
+    			BUILD_FAILURES.increment();
+    			// Most likely no router answers right now, don't retry at full speed
+    			if (!BUILDERS.isShutdown()) {
+    				BUILDERS.schedule(new Runnable() {
+    					public void run() {
+    						replenish();
+    					}
+    				}, RETRY_DELAY, TimeUnit.MILLISECONDS);
+    			}
+    			return;
+    		}
+    		CIRCUITS_BUILT.increment();
+    		LOG.info("Proxy built " + circuit + " in " + circuit.getBuildTime() + " ms");
+    		synchronized (READY) {
+    			READY.add(circuit);
+    			READY.notifyAll();
+    		}
+    	}
+
+    	// Returns a ready circuit CIRCUIT_LENGTH routers long, or null if the build failed
+    	private Circuit build() {
+    		List<Entry> entries = DIRECTORY.getEntries();
+    		if (entries.isEmpty())
+    			return null;
+
+    		Circuit circuit = newCircuit();
+    		Random r = new Random();
+    		List<Entry> failed = new ArrayList<Entry>();	// Routers we failed to extend to since the last hop
+    		int failures = 0;
+    		try {
+    			if (!create(circuit)) {
+    				destroyCircuit(circuit);
+    				return null;
+    			}
+    			while (circuit.getHops().size() < CIRCUIT_LENGTH && failures < MAX_EXTEND_FAILURES) {
+    				// Take the latest list each time, it may have changed since the last attempt
+    				Entry e = nextHop(DIRECTORY.getEntries(), circuit.getHops(), failed, r);
+    				if (e == null)
+    					break;		// The list expired while we were building
+    				if (extend(circuit, e)) {
+    					failed.clear();
+    				} else {
+    					failed.add(e);
+    					failures++;
+    				}
+    			}
+    		} catch (IOException e) {
+    			LOG.info("Failed building " + circuit + ": " + e.getMessage());
+    		}
+    		if (circuit.getHops().size() < CIRCUIT_LENGTH || !circuit.setState(Circuit.State.READY)) {
+    			destroyCircuit(circuit);
+    			return null;
+    		}
+    		return circuit;
+    	}
+    }
+
+	// Picks the next hop, avoiding routers already in the circuit and routers that just failed.
+	// With too few routers for that, only avoids repeating the last hop, and with one router uses it
+	private Entry nextHop(List<Entry> entries, List<Entry> hops, List<Entry> failed, Random r) {
+		List<Entry> exclude = new ArrayList<Entry>(hops);
+		exclude.addAll(failed);
+		Entry e = SCORER.choose(entries, exclude, r);
+		if (e == null && !hops.isEmpty())
+			e = SCORER.choose(entries, hops.subList(hops.size() - 1, hops.size()), r);
+		if (e == null)
+			e = SCORER.choose(entries, Collections.<Entry>emptyList(), r);
+		return e;
+	}
+
+	// Registers a circuit with an odd cid not used by any other circuit on our connection
+	private Circuit newCircuit() {
+		Random r = new Random();
+		while (true) {
+			short cid = (short) r.nextInt(Short.MAX_VALUE);
+			if (cid % 2 == 0)
+				cid++;
+			Circuit circuit = new Circuit(cid);
+			if (CIRCUITS.putIfAbsent(cid, circuit) == null)
+				return circuit;
+		}
+	}
+
+	// Sends the create cell for circuit, returns true if our router created it
+	private boolean create(Circuit circuit) throws IOException {
+		InetSocketAddress router = new InetSocketAddress(TOR_ADDRESS, TOR_PORT);
+		long timeout = TIMINGS.getTimeout(BuildTimings.CREATE, router);
+		long start = System.nanoTime();
+		TOR_OUT_STREAM.write(TorCellConverter.getCreateCell(circuit.getCid()));
+		TOR_OUT_STREAM.flush();
+		byte[] reply = awaitReply(circuit, timeout);
+		if (reply == null)
+			throw new IOException("Never received created in " + timeout + " ms");
+		if (!TorCellConverter.getCellType(reply).equals("created"))
+			return false;
+		TIMINGS.record(BuildTimings.CREATE, router, System.nanoTime() - start);
+		return true;
+	}
+
     /**
      * Sends Tor Router Replay Extend Message to the address stored in Entry
+     * @param circuit circuit to extend
      * @param e Entry object that stores the address of the next hop router
-     * @return true if successful, false otherwise
-     * @throws Exception 
+     * @return true if successful, false if the last router answered extend failed
+     * @throws IOException if the extend could not be sent or was never answered,
+     * in which case the circuit can't be used any more
      */
-    public boolean extend(Entry e) throws Exception {    
-    	DataOutputStream out = new DataOutputStream(TOR_SOCKET.getOutputStream());
-        BufferedReader in = new BufferedReader(new InputStreamReader(TOR_SOCKET.getInputStream()));
-
-        //TorCellConverter.getRelayCells expends an actual string like '199.123....:111\01234'
-        /*
-        ByteBuffer bb = ByteBuffer.allocate(TorCellConverter.MAX_DATA_SIZE);
-        bb.put(e.ip.getAddress());
-        bb.put(":".getBytes());
-        bb.putInt(e.port);
-        bb.put((byte) 0);
-        bb.putInt(e.serviceData);
-        String extendData = bb.toString();
-        bb.clear();
-        */
-
-        String extendData = e.ip + ":" + e.port + '\0' + TOR_SERVICE_DATA;
-
-        ArrayList<byte[]> relayCells = TorCellConverter.getRelayCells("extend", CID, (short) 0, extendData);
+    private boolean extend(Circuit circuit, Entry e) throws IOException {    
+        // The last router connects to e, which only opens to a router that knows its agent id
+        String extendData = e.ip.getHostAddress() + ":" + e.port + '\0' + e.serviceData;
+
+        ArrayList<byte[]> relayCells = TorCellConverter.getRelayCells("extend", circuit.getCid(), (short) 0, extendData);
         if (relayCells.size() != 1)
-        	throw new Exception("Tor61ProxyServer:extend failed with wrong Relay cells created");
-        
-        //System.out.println(TorCellConverter.getCellType(relayCells.get(0)));
-        //System.out.println(TorCellConverter.getRelaySubcellType(relayCells.get(0)));
-
-        out.write(relayCells.get(0));
-        out.flush();
-
-		TOR_SOCKET.setSoTimeout(5 * 1000);
-
-		// Read the next 512 bytes (one tor cell)
-		char[] next_cell = new char[512];
-	System.out.println("about to read");
-		int read = 0;
-		boolean none = false;
-		while (read < 512 && read != -1 && !none) {
-			try {
-				read = in.read(next_cell,read,512 - read);
-				
-				// just in case if this is eof
-				int wait = 0;
-				while (!in.ready() && wait < 5) {
-					Thread.sleep(10);
-					wait++;
-				}
-				none = wait==5 ? true : false;
-			} catch (IOException e2) {
-				System.out.println("PROXY NEVER RECEIVED EXTENDED IN 5 SECONDS");
-			} catch (InterruptedException e2) {
-				e2.printStackTrace();
-			}
+        	throw new IOException("Tor61ProxyServer:extend failed with wrong Relay cells created");
+
+        // Extends to a router are timed from wherever in a circuit they happened, so the
+        // safety factor also has to cover a circuit longer than the ones timed so far
+        long timeout = TIMINGS.getTimeout(BuildTimings.EXTEND, PeerScorer.addressOf(e));
+        long start = System.nanoTime();
+        TOR_OUT_STREAM.write(relayCells.get(0));
+        TOR_OUT_STREAM.flush();
+
+		// The input thread hands us the reply
+		byte[] data = awaitReply(circuit, timeout);
+		if (data == null) {
+			SCORER.recordOutcome(PeerScorer.addressOf(e), false);
+			EXTEND_FAILURES.increment();
+			throw new IOException("Never received extended from " + e + " in " + timeout + " ms");
 		}
-		TOR_SOCKET.setSoTimeout(0);
-
-		System.out.println("done reading");
 
-		// pass next_cell into TorCellConverter and find out what the command was
-		byte[] data = new byte[TorCellConverter.CELL_LENGTH];
-		try {
-			data = new String(next_cell).getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e2) {
-			e2.printStackTrace();
+		boolean extended = TorCellConverter.getCellType(data).equals("relay")
+				&& TorCellConverter.getRelaySubcellType(data).equals("extended");
+		SCORER.recordOutcome(PeerScorer.addressOf(e), extended);
+		if (extended) {
+			TIMINGS.record(BuildTimings.EXTEND, PeerScorer.addressOf(e), System.nanoTime() - start);
+			circuit.addHop(e);
+		} else {
+			EXTEND_FAILURES.increment();
 		}
-		System.out.println("checking what we read");
+		return extended;
+    }
+
+    // Waits up to timeout milliseconds for the reply to the cell just sent on circuit, returns null if none came in time
+    private byte[] awaitReply(Circuit circuit, long timeout) throws IOException {
+    	try {
+    		return circuit.awaitReply(timeout);
+    	} catch (InterruptedException e) {
+    		throw new IOException("Interrupted waiting for reply on " + circuit);
+    	}
+    }
+
+    // Moves new streams from old to a ready circuit, and destroys old once its streams finish.
+    // Unless old failed, it is kept until a ready circuit can take over
+    private void rotate(Circuit old, String reason, boolean failed) {
+    	Circuit next;
+    	synchronized (READY) {
+    		if (ACTIVE != old)
+    			return;
+    		next = READY.poll();
+    		while (next != null && !next.setState(Circuit.State.ACTIVE))
+    			next = READY.poll();
+    		if (next == null && !failed) {
+    			LOG.info("Proxy keeps " + old + " until another circuit is ready");
+    			replenish();
+    			return;
+    		}
+    		ACTIVE = next;
+    	}
+    	ROTATIONS.increment();
+    	LOG.info("Proxy rotating out " + old + " because " + reason + ", new streams go on " + next);
+    	if (old.retire())
+    		destroyCircuit(old);
+    	replenish();
+    }
 
-		return TorCellConverter.getRelaySubcellType(data).equals("extended");
+    /**
+     * Called by a stream of circuit when it is done
+     * @param circuit circuit the stream was on
+     * @param answered false if the stream never got an answer to its begin
+     */
+    void streamFinished(Circuit circuit, boolean answered) {
+    	if (circuit.streamFinished(answered)) {
+    		destroyCircuit(circuit);
+    	} else if (circuit.getUnanswered() >= MAX_UNANSWERED) {
+    		rotate(circuit, circuit.getUnanswered() + " streams got no answer", true);
+    	}
+    }
+
+    // Closes circuit, and tells our router to tear it down along every hop
+    private void destroyCircuit(Circuit circuit) {
+    	if (!closeCircuit(circuit) || !CONNECTED)
+    		return;
+    	DESTROYED.increment();
+    	LOG.debug("Proxy destroying " + circuit);
+    	try {
+    		TOR_OUT_STREAM.write(TorCellConverter.getDestroyCell(circuit.getCid()));
+    		TOR_OUT_STREAM.flush();
+    	} catch (IOException e) {
+    		LOG.warn("Proxy failed to send destroy for " + circuit);
+    	}
+    }
+
+    // Stops using circuit, and ends any stream still on it. Returns false if it was closed already
+    private boolean closeCircuit(Circuit circuit) {
+    	if (!circuit.setState(Circuit.State.CLOSED))
+    		return false;
+    	CIRCUITS.remove(circuit.getCid(), circuit);
+    	synchronized (READY) {
+    		READY.remove(circuit);
+    		if (ACTIVE == circuit)
+    			ACTIVE = null;
+    	}
+    	for (Tor61ProxyThread stream: STREAMS.values()) {
+    		if (stream.getCid() == circuit.getCid())
+    			stream.receive("end", null);
+    	}
+    	return true;
+    }
+
+    // Replaces a circuit that died
+    private void circuitDied(Circuit circuit) {
+    	LOST.increment();
+    	LOG.info("Proxy lost " + circuit);
+    	closeCircuit(circuit);
+    	replenish();
     }
 
 	private void terminate() {
@@ -292,26 +597,37 @@ public class Tor61ProxyServer {
 
 			try {
 				serverSocket = new ServerSocket(PROXY_PORT);
-				System.out.println("Proxy listening on " + PROXY_PORT);
+				LOG.info("Proxy listening on " + PROXY_PORT);
 			} catch (IOException e) {
-				System.err.println("Could not listen on port: " + PROXY_PORT);
+				LOG.error("Could not listen on port: " + PROXY_PORT);
 				System.exit(1);
 			}
 			while (LISTENING) {
 				// Set timeout to be 10 seconds
 				try {
 					serverSocket.setSoTimeout(10000);
-					Socket newClient = serverSocket.accept();
-
-					short new_stream_id = getStreamID();
-					UnpackOutputStream output_stream = new UnpackOutputStream(new DataOutputStream(TOR_SOCKET.getOutputStream()));
-					new TorInputThread(new_stream_id, output_stream).start();
-
-					// Each new thread listens to client, and sends all packets to tor router
-					new Tor61ProxyThread(newClient, new PackOutputStream(TOR_OUT_STREAM,CID,new_stream_id),CID,new_stream_id).start();
+					final Socket newClient = serverSocket.accept();
+
+					if (!startStream(newClient)) {
+						// Only until the first circuit is built, so wait for it without holding up accept
+						new Thread() {
+							public void run() {
+								try {
+									if (awaitCircuit(CIRCUIT_WAIT) != null && startStream(newClient))
+										return;
+									LOG.info("Proxy has no circuit for new client");
+									newClient.getOutputStream().write("HTTP/1.0 503 Service Unavailable\r\n\r\n".getBytes());
+									newClient.close();
+								} catch (IOException e) {
+									LOG.warn("Proxy failed to turn away client without circuit");
+								} catch (InterruptedException e) {
+								}
+							}
+						}.start();
+					}
 
 				} catch (SocketException e) {
-					System.out.println("SocketException when trying to listen to Proxy Server");
+					LOG.error("SocketException when trying to listen to Proxy Server");
 					System.exit(1);
 				} catch (IOException e) {
 					continue;
@@ -321,13 +637,30 @@ public class Tor61ProxyServer {
 			try {
 				serverSocket.close();
 			} catch (IOException e) {
-				System.out.println("IOException: Proxy No Longer Listening, but failed to close serverSocket");
+				LOG.warn("IOException: Proxy No Longer Listening, but failed to close serverSocket");
 				System.exit(1);
 			}
 
 		}
 	}
 	
+	// Each new thread listens to client, and sends all packets to tor router on the active circuit.
+	// Returns false if there is no circuit to use
+	private boolean startStream(Socket client) {
+		Circuit circuit;
+		while ((circuit = getCircuit()) != null) {
+			// The circuit may have been rotated out since we got it
+			if (!circuit.addStream())
+				continue;
+			short new_stream_id = getStreamID();
+			short cid = circuit.getCid();
+			STREAMS_STARTED.increment();
+			new Tor61ProxyThread(client, new PackOutputStream(TOR_OUT_STREAM,cid,new_stream_id),circuit,new_stream_id,this).start();
+			return true;
+		}
+		return false;
+	}
+	
 	// Finds an unused Stream ID
 	private short getStreamID() {
 		Random r = new Random();
@@ -338,20 +671,55 @@ public class Tor61ProxyServer {
 		return stream_id;
 	}
 	
+	/**
+	 * Reads every cell the tor router sends us, and hands it to the stream or call waiting for it
+	 */
 	public class TorInputThread extends Thread {
-		private short stream_id;
-		private UnpackOutputStream stream;
 
-		public TorInputThread(short stream_id, UnpackOutputStream stream) {
-			this.stream_id = stream_id;
-			this.stream = stream;
-		}
-		
 		@Override
-		public void run() {			
-			if (!STREAMS.containsKey(stream_id)) {
-				STREAMS.put(stream_id, stream);
+		public void run() {
+			byte[] cell = new byte[TorCellConverter.CELL_LENGTH];
+			try {
+				DataInputStream in = new DataInputStream(TOR_SOCKET.getInputStream());
+				while (true) {
+					in.readFully(cell);
+					CELLS_IN.count(cell, 0);
+					
+					String command = TorCellConverter.getCellType(cell);
+					Circuit circuit = CIRCUITS.get(TorCellConverter.getCircuitId(cell));
+					if (command.equals("created") || command.equals("create failed")) {
+						if (circuit != null)
+							circuit.receive(cell.clone());
+						continue;
+					} else if (command.equals("destroy")) {
+						if (circuit != null)
+							circuitDied(circuit);
+						continue;
+					} else if (!command.equals("relay")) {
+						LOG.warn("Proxy received unexpected " + command + " cell");
+						continue;
+					}
+					
+					String relay_type = TorCellConverter.getRelaySubcellType(cell);
+					if (relay_type.equals("extended") || relay_type.equals("extend failed")) {
+						if (circuit != null)
+							circuit.receive(cell.clone());
+						continue;
+					}
+					
+					Tor61ProxyThread stream = STREAMS.get(TorCellConverter.getStreamID(cell));
+					if (stream == null)
+						LOG.debug("Proxy dropped " + relay_type + " cell for unknown stream " + TorCellConverter.getStreamID(cell));
+					else
+						stream.receive(relay_type, cell);
+				}
+			} catch (IOException e) {
+				LOG.warn("Proxy lost connection to Tor Router");
 			}
+			// Every circuit went through that connection
+			CONNECTED = false;
+			for (Circuit circuit: CIRCUITS.values())
+				closeCircuit(circuit);
 		}
 	}
 }
\ No newline at end of file
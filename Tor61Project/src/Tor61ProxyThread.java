@@ -1,192 +1,279 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ConnectException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 public class Tor61ProxyThread extends Thread {
+	private static final Log LOG = Log.get("proxy");
+	// Stream options we ask the exit for
+	private static final int REQUESTED_BEGIN_FLAGS =
+			Boolean.parseBoolean(System.getProperty("tor61.compress", "true")) ? TorCellConverter.BEGIN_FLAG_COMPRESS : 0;
+	private static final Charset HEADER_CHARSET = Charset.forName("ISO-8859-1");
+
 	private PackOutputStream TOR_OUT_STREAM;
     private Socket SOCKET = null;
     private short CID;
+    private Circuit CIRCUIT;					// Null when the stream is not on a proxy's circuit
+    private Tor61ProxyServer SERVER;			// Told when the stream is done, null with CIRCUIT
     private short STREAM_ID;
-    
+    private UnpackOutputStream CLIENT_OUT;		// Writes data cells from the exit to the client
+    private CountDownLatch CONNECTED;			// Released when the exit answers our begin
+    private CountDownLatch ENDED;				// Released when the exit ends the stream
+    private volatile int CONNECTED_FLAGS;		// Options the exit agreed to, -1 if begin failed
+    private volatile String TARGET;				// host:port the client asked for, null until its header is read
+
     // Set socket and tor_port number
     public Tor61ProxyThread(Socket socket, PackOutputStream stream, short cid, short stream_id) {
         this.SOCKET = socket;
         this.TOR_OUT_STREAM = stream;
         this.CID = cid;
         this.STREAM_ID = stream_id;
+        this.CONNECTED = new CountDownLatch(1);
+        this.ENDED = new CountDownLatch(1);
+        this.CONNECTED_FLAGS = -1;
     }
 
-    public void run() {
+    public Tor61ProxyThread(Socket socket, PackOutputStream stream, Circuit circuit, short stream_id, Tor61ProxyServer server) {
+    	this(socket, stream, circuit.getCid(), stream_id);
+    	this.CIRCUIT = circuit;
+    	this.SERVER = server;
+    }
 
+    public void run() {
+    	boolean registered = false;
+    	boolean answered = true;		// False if the exit never answered our begin
+    	StreamEvent event = new StreamEvent();		// Lasts the whole stream
+    	event.begin();
         try {
             DataOutputStream client_out = new DataOutputStream(SOCKET.getOutputStream());
-            BufferedReader in = new BufferedReader(new InputStreamReader(SOCKET.getInputStream()));
+            InputStream in = new BufferedInputStream(SOCKET.getInputStream());
 
             // Set Timer To 10 Minutes
             // If header is not processed within 10 minutes, assume client is dead
             SOCKET.setSoTimeout(10 * 1000);
-            
+
             ArrayList<String> header = processRequestHeader(in);
-            
+
             if (header.isEmpty()) {
             	SOCKET.close();
+            	return;
             }
-            
-            // Kill Timer
-            SOCKET.setSoTimeout(0);
-         			
-            String get = header.get(0).trim();            
+
+            String get = header.get(0).trim();
             String request = get.split("\\s+")[0];
-                        
-            System.out.println(get);
-            
+
+            if (LOG.isEnabled(Log.Level.DEBUG))
+            	LOG.debug(get);
+
             String host_ip = getHostLine(header);
             int port = getPort(get, host_ip);
             String host = getHost(host_ip);
-            
+            TARGET = host + ":" + port;
+
+            // Whatever the exit sends back for this stream goes straight to the client
+            CLIENT_OUT = new UnpackOutputStream(client_out);
+            Tor61ProxyServer.STREAMS.put(STREAM_ID, this);
+            registered = true;
+
             // We need to send begin cell
 			// If begin success, write ok. else send bad gateway
-			String data = host + ":" + port + '\0';
-			for (byte[] bs: TorCellConverter.getRelayCells("begin", CID, STREAM_ID, data))
-				TOR_OUT_STREAM.write(bs);
-			
+			TOR_OUT_STREAM.writeCell(TorCellConverter.getBeginCell(CID, STREAM_ID, host + ":" + port, REQUESTED_BEGIN_FLAGS));
+			TOR_OUT_STREAM.flush();
+
 			// Wait for connected reply up to 10 seconds
-			SOCKET.setSoTimeout(10000);
-			
-			
-			
-		
-			// TODO commenting this out for testing purposes
-			/*
-			while (!Tor61ProxyServer.STREAMS.containsKey(STREAM_ID)) {
-				continue;
+			answered = CONNECTED.await(10, TimeUnit.SECONDS);
+			if (!answered || CONNECTED_FLAGS == -1) {
+				LOG.info("Stream " + STREAM_ID + " failed to connect to " + host + ":" + port);
+				client_out.write("HTTP/1.0 502 Bad Gateway\r\n\r\n".getBytes());
+				client_out.flush();
+				return;
 			}
-			*/
-			
-			
-			
+			if ((CONNECTED_FLAGS & TorCellConverter.BEGIN_FLAG_COMPRESS) != 0)
+				TOR_OUT_STREAM.enableCompression();
+
 			SOCKET.setSoTimeout(0); // Kill the timer
-			
-			// Successfully received connected reply
 
-            try {
-				if (request.toLowerCase().equals("connect")) {
-					// This is when we send a begin request if successful, send ok. else send bad gateway
-					try {
-
-						client_out.write("HTTP/1.0 200 OK\r\n\r\n".getBytes());
-						client_out.flush();
-					// TODO We can never get to this part of the code. 
-					} catch (ConnectException e){
-						client_out.write("HTTP/1.0 502 Bad Gateway\r\n\r\n".getBytes());
-						client_out.flush();
-						return;
-					}
-					
-					stream(in, TOR_OUT_STREAM);
-				} else {
-					// Write HTTP request to tor router
-					
-					// THIS PART MAY BE EXTREMELY SLOW BECAUSE 512 BYTES PER HTTP REQUEST LINE
-					// TODO
-					/**
-					 * Maybe concat header into 1 byte[] then write whole byte to out stream
-					 */
-					for (String s: header) {
-						TOR_OUT_STREAM.write((s + "\r\n").getBytes());
-					}
-					TOR_OUT_STREAM.write("\r\n".getBytes());
-					TOR_OUT_STREAM.flush();
-
-
-					// We are no longer reading. This is someone else's job
-					/*
-					InputStream is = server.getInputStream();
-					
-					// Set timer to 10 minutes
-					// If no input is read in 10 minutes, assume connection is dead
-					server.setSoTimeout(10 * 1000);
-					
-					// Send Server Response to Client
-					byte b[] = new byte[BUFFER_SIZE];
-					int read = is.read(b, 0, BUFFER_SIZE);
-					while (read != -1) {
-					  // If no input is read in 10 minutes, assume connection is dead
-					  server.setSoTimeout(10 * 1000);
-					  
-					  out.write(b, 0, read);
-					  read = is.read(b, 0, BUFFER_SIZE);
-					  out.flush();
-					}
-					
-					// Kill timer
-					server.setSoTimeout(0);
-					*/
-				}          
-            } catch (Exception e) {
-				// Satisfy Client Request by terminating
-            	client_out.writeBytes("");
-            }
-            
-            // Send tor router relay end cell
-            for (byte[] bs: TorCellConverter.getRelayCells("end", CID, STREAM_ID, "")) {
-            	TOR_OUT_STREAM.write(bs);
-            }
-            
-            // Close stream
-            assert(Tor61ProxyServer.STREAMS.containsKey(STREAM_ID));
-
-            // TODO commenting this out for testing purposes
-            //Tor61ProxyServer.STREAMS.remove(STREAM_ID);
-            
-            if (client_out != null) {
-            	client_out.close();
-			}
-			if (in != null) {
-				in.close();
-			}
-			if (SOCKET != null) {
-				SOCKET.close();
+			// Successfully received connected reply
+			if (request.toLowerCase().equals("connect")) {
+				client_out.write("HTTP/1.0 200 OK\r\n\r\n".getBytes());
+				client_out.flush();
+			} else {
+				// Send the whole request header at once, so it fills as few cells as possible
+				ByteArrayOutputStream request_bytes = new ByteArrayOutputStream();
+				for (String s: header) {
+					request_bytes.write((s + "\r\n").getBytes(HEADER_CHARSET));
+				}
+				request_bytes.write("\r\n".getBytes(HEADER_CHARSET));
+				TOR_OUT_STREAM.write(request_bytes.toByteArray());
+				TOR_OUT_STREAM.flush();
 			}
 
+			// Send everything else the client sends, until either side closes
+			stream(in, TOR_OUT_STREAM);
+
+			// A client that closes its side early still wants the rest of the response
+			if (!request.toLowerCase().equals("connect"))
+				ENDED.await(10, TimeUnit.MINUTES);
         } catch (IOException e) {
-            e.printStackTrace();
+            LOG.warn("Stream " + STREAM_ID + " failed", e);
+        } catch (InterruptedException e) {
+        	LOG.warn("Stream " + STREAM_ID + " interrupted", e);
+        } finally {
+        	if (registered)
+        		finish();
+        	commitEvent(event, answered);
+        	if (SERVER != null)
+        		SERVER.streamFinished(CIRCUIT, answered);
         }
-        
     }
 
-    // Stream client and server input and output
-    private void stream(BufferedReader cin, PackOutputStream cout) {
-    	try {        	
-        	Thread cs = new StreamThread(cin, cout);
-        	
-        	cs.start();
-        	cs.join();
-        	        	
-        } catch (Exception e) {
-        	e.printStackTrace();
-        	System.out.println("Some error in stream method in proxy thread");
-        }
+    // Describes the stream in its JFR event, and commits it
+    private void commitEvent(StreamEvent event, boolean answered) {
+    	if (!event.shouldCommit())
+    		return;
+    	event.action = StreamEvent.END;
+    	event.circuitId = CID;
+    	event.streamId = STREAM_ID;
+    	event.peer = TARGET;
+    	event.bytesSent = TOR_OUT_STREAM.getSentBytes();
+    	event.bytesReceived = CLIENT_OUT == null ? 0 : CLIENT_OUT.getReceivedBytes();
+    	event.succeeded = answered && CONNECTED_FLAGS != -1;
+    	event.commit();
+    }
+
+    /**
+     * Returns the stream id, unique among the proxy's streams
+     */
+    public short getStreamId() {
+    	return STREAM_ID;
     }
-    
-    private static ArrayList<String> processRequestHeader(BufferedReader br) throws IOException {
+
+    /**
+     * Returns the circuit this stream is sent on
+     */
+    public short getCid() {
+    	return CID;
+    }
+
+    /**
+     * Handles a cell the exit sent for this stream. Called from the proxy's input thread
+     * @param relay_type relay command of the cell
+     * @param cell the cell
+     */
+    public void receive(String relay_type, byte[] cell) {
+    	switch (relay_type) {
+    		case "connected":
+    			CONNECTED_FLAGS = TorCellConverter.getConnectedFlags(cell);
+    			// Data can follow right behind connected, so be ready for it before reading on
+    			if ((CONNECTED_FLAGS & TorCellConverter.BEGIN_FLAG_COMPRESS) != 0)
+    				CLIENT_OUT.enableDecompression();
+    			CONNECTED.countDown();
+    			break;
+    		case "begin failed":
+    			CONNECTED.countDown();
+    			break;
+    		case "data":
+    			try {
+    				CLIENT_OUT.write(cell);
+    				CLIENT_OUT.flush();
+    			} catch (IOException e) {
+    				LOG.debug("Stream " + STREAM_ID + " failed writing to client");
+    				closeSocket();
+    			}
+    			break;
+    		case "end":
+    			// Closing the client socket also stops us reading from the client
+    			ENDED.countDown();
+    			closeSocket();
+    			break;
+    		default:
+    			LOG.warn("Stream " + STREAM_ID + " ignored unexpected " + relay_type + " cell");
+    			break;
+    	}
+    }
+
+    // Ends the stream on the circuit if the exit hasn't, and cleans up
+    private void finish() {
+    	try {
+    		if (ENDED.getCount() > 0) {
+    			for (byte[] bs: TorCellConverter.getRelayCells("end", CID, STREAM_ID, "")) {
+    				TOR_OUT_STREAM.writeCell(bs);
+    			}
+    			TOR_OUT_STREAM.flush();
+    		}
+    	} catch (IOException e) {
+    		LOG.debug("Stream " + STREAM_ID + " failed to send end cell");
+    	}
+    	Tor61ProxyServer.STREAMS.remove(STREAM_ID, this);
+    	if (CONNECTED_FLAGS != -1 && (CONNECTED_FLAGS & TorCellConverter.BEGIN_FLAG_COMPRESS) != 0) {
+    		if (LOG.isEnabled(Log.Level.DEBUG))
+    			LOG.debug("Stream " + STREAM_ID + " compression to exit: " + TOR_OUT_STREAM.getCompressionSummary());
+    		if (LOG.isEnabled(Log.Level.DEBUG))
+    			LOG.debug("Stream " + STREAM_ID + " compression from exit: " + CLIENT_OUT.getCompressionSummary());
+    	}
+    	try {
+    		TOR_OUT_STREAM.close();
+    	} catch (IOException e) {
+    		LOG.debug("Stream " + STREAM_ID + " failed to close tor stream");
+    	}
+    	closeSocket();
+    }
+
+    private void closeSocket() {
+    	try {
+    		SOCKET.close();
+    	} catch (IOException e) {
+    		LOG.debug("Stream " + STREAM_ID + " failed to close client socket");
+    	}
+    }
+
+    // Stream client input to the tor router until the client or the exit closes
+    private void stream(InputStream cin, PackOutputStream cout) {
+    	byte[] b = new byte[TorCellConverter.MAX_DATA_SIZE];
+    	try {
+    		int read;
+    		while ((read = cin.read(b)) != -1) {
+    			cout.write(b, 0, read);
+    			cout.flush();
+    		}
+    	} catch (IOException e) {
+    		// Socket was closed because the exit ended the stream
+    	}
+    }
+
+    private static ArrayList<String> processRequestHeader(InputStream in) throws IOException {
 		ArrayList<String> header = new ArrayList<String>();
 		String temp;
 
-		while ((temp = br.readLine()) != null && !temp.equals("") && !temp.equals("\n")) {
+		while ((temp = readLine(in)) != null && !temp.equals("")) {
 			header.add(temp);
 		}
 
 		header = updateConnectionFieldandHttpVersion(header);
-				
+
 		return header;
 	}
 
+    // Reads one header line without reading past it, so the request body stays in the stream
+    private static String readLine(InputStream in) throws IOException {
+    	ByteArrayOutputStream line = new ByteArrayOutputStream();
+    	int b;
+    	while ((b = in.read()) != -1 && b != '\n') {
+    		if (b != '\r')
+    			line.write(b);
+    	}
+    	if (b == -1 && line.size() == 0)
+    		return null;
+    	return new String(line.toByteArray(), HEADER_CHARSET);
+    }
+
 	private static ArrayList<String> updateConnectionFieldandHttpVersion(ArrayList<String> list) {
 		for(int i = 0; i < list.size(); i++) {
 			String s = list.get(i);
@@ -203,7 +290,7 @@ public class Tor61ProxyThread extends Thread {
 		}
 		return list;
 	}
-	
+
 	private static int getPort(String get, String host) {
 		int port = get.contains("https://") ? 443 : 80;
 		if (host.contains(":")) {
@@ -215,14 +302,14 @@ public class Tor61ProxyThread extends Thread {
 		}
 		return port;
 	}
-	
+
 	private static String getHost(String host) {
 		if (host.contains(":")) {
 			return host.split(":")[0].trim();
 		}
 		return host;
 	}
-	
+
 	private static String getHostLine(ArrayList<String> list) {
 		String ret = "";
 		for (String s : list) {
@@ -233,31 +320,10 @@ public class Tor61ProxyThread extends Thread {
 		}
 		return ret;
 	}
-	
-	public class StreamThread extends Thread {
-		private BufferedReader in;
-		private PackOutputStream out;
-		
-		public StreamThread(BufferedReader in, PackOutputStream out) {
-			this.in = in;
-			this.out = out;
-		}
-		
-		public void run() {
-			while (!Tor61ProxyServer.STREAMS.containsKey(STREAM_ID)) {
-				try {
-					String next;
-					if ((next = in.readLine()) != null)
-						out.write(next.getBytes());
-					else {
-						out.flush();
-						return;
-					}
-					out.flush();
-				} catch (IOException e) {
-					System.out.println("Some error in StreamThread");
-				}
-			}
-		}
-	}
-}
\ No newline at end of file
+
+    @Override
+    public String toString() {
+    	String state = CONNECTED.getCount() > 0 ? "connecting" : CONNECTED_FLAGS == -1 ? "failed" : "connected";
+    	return "Stream " + STREAM_ID + " cid: " + CID + " to " + TARGET + " " + state;
+    }
+}
@@ -10,13 +10,18 @@ public class TorCellConverter {
 	public static final int CELL_HEADER_SIZE = 14;
 	public static final int MAX_DATA_SIZE = CELL_LENGTH - CELL_HEADER_SIZE;
 
-	private static final int RELAY_TYPE_INDEX = 13;
-	private static final int CELL_TYPE_INDEX = 2;
+	// Stream options, sent as a 4 byte field after the destination in begin cells
+	// and echoed back in connected cells for the options the exit agreed to
+	public static final int BEGIN_FLAG_COMPRESS = 1;
+
+	private static final int RELAY_LENGTH_INDEX = 11;
+	public static final int RELAY_TYPE_INDEX = 13;
+	public static final int CELL_TYPE_INDEX = 2;
 	
 	private static final byte CREATE_CELL = 1;
 	private static final byte CREATED_CELL = 2;
 	private static final byte RELAY_CELL = 3;
-	private static final byte DESTORY_CELL = 4;	
+	private static final byte DESTROY_CELL = 4;	
 	private static final byte OPEN_CELL = 5;
 	private static final byte OPENED_CELL = 6;
 	private static final byte OPEN_FAILED_CELL = 7;
@@ -31,21 +36,19 @@ public class TorCellConverter {
 	private static final byte BEGIN_FAILED_RELAY_CMD = 11;
 	private static final byte EXTEND_FAILED_RELAY_CMD = 12;
 	
-	private static ByteBuffer bb;
-	
 	public static byte[] getCreateCell(byte[] b) {
-		bb = ByteBuffer.wrap(b);
-		byte[] ret = CreateDestoryCellHelper(bb.getShort(0), CREATE_CELL);
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		byte[] ret = CreateDestroyCellHelper(bb.getShort(0), CREATE_CELL);
 		bb.clear();
 		return ret;
 	}
 
 	public static byte[] getCreateCell(short circuit_id) {
-		return CreateDestoryCellHelper(circuit_id, CREATE_CELL);
+		return CreateDestroyCellHelper(circuit_id, CREATE_CELL);
 	}
 	
 	public static byte[] getCreatedCell(short circuit_id) {
-		return CreateDestoryCellHelper(circuit_id, CREATED_CELL);
+		return CreateDestroyCellHelper(circuit_id, CREATED_CELL);
 	}
 
 	public static ArrayList<byte[]> getRelayCells(String cmd, short circuit_id, short stream_id, String data) {
@@ -89,8 +92,32 @@ public class TorCellConverter {
 		return ret;
 	}
 
-	public static byte[] getDestoryCell(short circuit_id) {
-		return CreateDestoryCellHelper(circuit_id, DESTORY_CELL);
+	/**
+	 * Returns a begin cell asking for destination with the given stream options
+	 * @param destination "host:port" to connect to
+	 * @param flags BEGIN_FLAG_* options requested for the stream
+	 */
+	public static byte[] getBeginCell(short circuit_id, short stream_id, String destination, int flags) {
+		byte[] dest_arr = destination.getBytes(Charset.forName("UTF-8"));
+		ByteBuffer data = ByteBuffer.allocate(dest_arr.length + 5);
+		data.put(dest_arr);
+		data.put((byte) 0);
+		data.putInt(flags);
+		return withDataSubcellHelper(circuit_id, stream_id, BEGIN_RELAY_CMD, data.array());
+	}
+
+	/**
+	 * Returns a connected cell telling the source which stream options were accepted
+	 * @param flags BEGIN_FLAG_* options the exit agreed to
+	 */
+	public static byte[] getConnectedCell(short circuit_id, short stream_id, int flags) {
+		ByteBuffer data = ByteBuffer.allocate(4);
+		data.putInt(flags);
+		return withDataSubcellHelper(circuit_id, stream_id, CONNECTED_RELAY_CMD, data.array());
+	}
+
+	public static byte[] getDestroyCell(short circuit_id) {
+		return CreateDestroyCellHelper(circuit_id, DESTROY_CELL);
 	}
 	
 	public static byte[] getOpenCell(short circuit_id, int opener, int opened) {
@@ -98,21 +125,21 @@ public class TorCellConverter {
 	}
 	
 	public static byte[] getOpenedCell(byte[] b) {
-		bb = ByteBuffer.wrap(b);
+		ByteBuffer bb = ByteBuffer.wrap(b);
 		byte[] ret = OpenCellHelper((short)0, OPENED_CELL, bb.getInt(3), bb.getInt(7));
 		bb.clear();
 		return ret;
 	}
 
 	public static byte[] getOpenFailCell(byte[] b) {
-		bb = ByteBuffer.wrap(b);
+		ByteBuffer bb = ByteBuffer.wrap(b);
 		byte[] ret = OpenCellHelper(bb.getShort(0), OPEN_FAILED_CELL, bb.getInt(3), bb.getInt(7));
 		bb.clear();
 		return ret;
 	}
 	
 	public static byte[] getCreateFailCell(short circuit_id) {
-		return CreateDestoryCellHelper(circuit_id, CREATE_FAILED_CELL);
+		return CreateDestroyCellHelper(circuit_id, CREATE_FAILED_CELL);
 	}
 	
 	public static short getCircuitId(byte[] b) {
@@ -124,31 +151,43 @@ public class TorCellConverter {
 	
 	public static String getCellType(byte[] b) {
 		assert(b.length >= CELL_TYPE_INDEX);
-		ByteBuffer bb = ByteBuffer.wrap(b);
-		byte tempByte = bb.get(CELL_TYPE_INDEX);
-		bb.clear();
-		switch(tempByte) {
+		String type = getCellTypeName(b[CELL_TYPE_INDEX]);
+		if (type == null)
+			throw new IllegalArgumentException("Invalid cell type: " + b[CELL_TYPE_INDEX]);
+		return type;
+	}
+
+	/**
+	 * Returns the name of cell command cmd, as getCellType does, or null if there is no such command
+	 */
+	public static String getCellTypeName(int cmd) {
+		switch(cmd) {
 			case CREATE_CELL: return "create";
 			case CREATED_CELL: return "created";
 			case RELAY_CELL: return "relay";
-			case DESTORY_CELL: return "destory";
+			case DESTROY_CELL: return "destroy";
 			case OPEN_CELL: return "open";
 			case OPENED_CELL: return "opened";
 			case OPEN_FAILED_CELL: return "open failed";
 			case CREATE_FAILED_CELL: return "create failed";
-			default: 
-				System.out.println("Cell Type: " + tempByte);
-				throw new IllegalArgumentException("Invalid cell type");
+			default: return null;
 		}
 	}
 
 	public static String getRelaySubcellType(byte[] b) {
-		ByteBuffer bb = ByteBuffer.wrap(b);	
-		assert(bb.get(2) == RELAY_CELL);
+		assert(b[2] == RELAY_CELL);
 		assert(b.length >= RELAY_TYPE_INDEX);
-		byte tempByte = bb.get(RELAY_TYPE_INDEX);
-	    bb.clear();
-		switch(tempByte) {
+		String type = getRelayTypeName(b[RELAY_TYPE_INDEX]);
+		if (type == null)
+			throw new IllegalArgumentException("Invalid cell type");
+		return type;
+	}
+
+	/**
+	 * Returns the name of relay command cmd, as getRelaySubcellType does, or null if there is no such command
+	 */
+	public static String getRelayTypeName(int cmd) {
+		switch(cmd) {
 			case BEGIN_RELAY_CMD: return "begin";
 			case DATA_RELAY_CMD: return "data";
 			case END_RELAY_CMD: return "end";
@@ -157,7 +196,7 @@ public class TorCellConverter {
 			case EXTENDED_RELAY_CMD: return "extended";
 			case BEGIN_FAILED_RELAY_CMD: return "begin failed";
 			case EXTEND_FAILED_RELAY_CMD: return "extend failed";
-			default: throw new IllegalArgumentException("Invalid cell type");
+			default: return null;
 		}
 	}
 
@@ -176,8 +215,51 @@ public class TorCellConverter {
 		return new InetSocketAddress(host, port);
 	}
 
+	/**
+	 * Returns the host and port a begin cell asks for, without resolving the host
+	 * @param b begin relay cell
+	 * @return unresolved address of the destination
+	 */
+	public static InetSocketAddress getBeginDestination(byte[] b) {
+		assert(b[2] == RELAY_CELL);
+		assert(b[RELAY_TYPE_INDEX] == BEGIN_RELAY_CMD);
+
+		String httpReq = new String(b, CELL_HEADER_SIZE, MAX_DATA_SIZE, Charset.forName("UTF-8")).split("\0")[0];
+		int colon = httpReq.lastIndexOf(':');
+		String host = httpReq.substring(0, colon).replace("/", "");
+		int port = Integer.parseInt(httpReq.substring(colon + 1).trim());
+		return InetSocketAddress.createUnresolved(host, port);
+	}
+
+	/**
+	 * Returns the stream options a begin cell asks for
+	 * @param b begin relay cell
+	 * @return BEGIN_FLAG_* options, 0 if the sender did not include any
+	 */
+	public static int getBeginFlags(byte[] b) {
+		assert(b[RELAY_TYPE_INDEX] == BEGIN_RELAY_CMD);
+		int end = CELL_HEADER_SIZE + getRelayBodyLength(b);
+		for (int i = CELL_HEADER_SIZE; i < end; i++) {
+			if (b[i] == 0)
+				return i + 5 <= end ? ByteBuffer.wrap(b).getInt(i + 1) : 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the stream options the exit accepted in a connected cell
+	 * @param b connected relay cell
+	 * @return BEGIN_FLAG_* options, 0 if the exit did not include any
+	 */
+	public static int getConnectedFlags(byte[] b) {
+		assert(b[RELAY_TYPE_INDEX] == CONNECTED_RELAY_CMD);
+		if (getRelayBodyLength(b) < 4)
+			return 0;
+		return ByteBuffer.wrap(b).getInt(CELL_HEADER_SIZE);
+	}
+
 	public static int getExtendAgent(byte[] b) {
-		bb = ByteBuffer.wrap(b);	
+		ByteBuffer bb = ByteBuffer.wrap(b);	
 		assert(bb.get(2) == RELAY_CELL);
 		assert(b.length >= TorCellConverter.CELL_HEADER_SIZE);
 		assert(bb.get(13) == EXTEND_RELAY_CMD);
@@ -192,15 +274,26 @@ public class TorCellConverter {
 	public static short getStreamID(byte[] b) {
 		ByteBuffer bb = ByteBuffer.wrap(b);
 		assert(b.length >= TorCellConverter.CELL_HEADER_SIZE);
-		assert(bb.getShort(3) == RELAY_CELL);
-		short ret = (short) ((bb.getShort(3) >> 8) & 0xFF);
+		assert(bb.get(2) == RELAY_CELL);
+		short ret = bb.getShort(3);
 	
 		bb.clear();
-		return ret;		// deal with unsigned short
+		return ret;
+	}
+	
+	/**
+	 * Returns how many bytes of a relay cell's payload are in use
+	 * @param b relay cell
+	 * @return body length, never more than MAX_DATA_SIZE
+	 */
+	public static int getRelayBodyLength(byte[] b) {
+		assert(b[2] == RELAY_CELL);
+		int length = ((b[RELAY_LENGTH_INDEX] & 0xFF) << 8) | (b[RELAY_LENGTH_INDEX + 1] & 0xFF);
+		return Math.min(length, MAX_DATA_SIZE);
 	}
 	
 	public static byte[] updateCID(byte[] b, int newCID) {
-		bb = ByteBuffer.allocate(CELL_LENGTH);
+		ByteBuffer bb = ByteBuffer.allocate(CELL_LENGTH);
 		bb.putShort((short) newCID);
 		bb.put(Arrays.copyOfRange(b, 2, b.length));
 		b = bb.array();
@@ -209,7 +302,7 @@ public class TorCellConverter {
 	}
 	
 	public static int getOpener(byte[] b) {
-		bb = ByteBuffer.wrap(b);
+		ByteBuffer bb = ByteBuffer.wrap(b);
 		
 		// check if it is one of the open commands
 		assert((bb.get(2) == (byte) 5) || (bb.get(2) == (byte) 6) || (bb.get(2) == (byte) 7));
@@ -221,7 +314,7 @@ public class TorCellConverter {
 	}
 	
 	public static int getOpenee(byte[] b) {
-		bb = ByteBuffer.wrap(b);
+		ByteBuffer bb = ByteBuffer.wrap(b);
 		
 		// check if it is one of the open commands
 		assert((bb.get(2) == (byte) 5) || (bb.get(2) == (byte) 6) || (bb.get(2) == (byte) 7));
@@ -232,8 +325,8 @@ public class TorCellConverter {
 		return opener;
 	}
 	
-	private static byte[] CreateDestoryCellHelper(short circuit_id, byte cell_num) {
-		bb = ByteBuffer.allocate(CELL_LENGTH);
+	private static byte[] CreateDestroyCellHelper(short circuit_id, byte cell_num) {
+		ByteBuffer bb = ByteBuffer.allocate(CELL_LENGTH);
 		bb.putShort(circuit_id);
 		bb.put(cell_num);
 		byte[] ret = bb.array();
@@ -242,7 +335,7 @@ public class TorCellConverter {
 	}
 	
 	private static byte[] OpenCellHelper(short circuit_id, byte cell_num, int opener_id, int opened_id) {
-		bb = ByteBuffer.allocate(CELL_LENGTH);
+		ByteBuffer bb = ByteBuffer.allocate(CELL_LENGTH);
 		bb.putShort(circuit_id);
 		bb.put(cell_num);
 		bb.putInt(opener_id);
@@ -253,7 +346,7 @@ public class TorCellConverter {
 	}
 
 	private static byte[] simpleRelaySubcellHelper(short circuit_id, short stream_id, byte relay_cmd) {
-		bb = ByteBuffer.allocate(CELL_LENGTH);
+		ByteBuffer bb = ByteBuffer.allocate(CELL_LENGTH);
 		bb.putShort(circuit_id);		// circuit id
 		bb.put(RELAY_CELL);				// cell cmd
 		bb.putShort(stream_id);			// stream id
@@ -271,7 +364,7 @@ public class TorCellConverter {
 		if (data.length > MAX_DATA_SIZE)
 			throw new IllegalArgumentException("Invalid size of data passed in");
 
-		bb = ByteBuffer.allocate(CELL_LENGTH);
+		ByteBuffer bb = ByteBuffer.allocate(CELL_LENGTH);
 		bb.putShort(circuit_id);				// circuit id
 		bb.put(RELAY_CELL);						// cell cmd
 		bb.putShort(stream_id);					// stream id
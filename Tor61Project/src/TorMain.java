@@ -3,9 +3,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
 
 public class TorMain {
 
@@ -16,7 +21,13 @@ public class TorMain {
 	private static InetAddress TOR_ADDRESS;
 	private static String ROUTER_STRING_NAME;
 	private static RegistrationAgent AGENT;
-	private static int CIRCUIT_SIZE = 4;
+	private static RouterDirectory DIRECTORY;
+	private static PeerScorer SCORER = new PeerScorer();			// Shared by our router and proxy
+	private static BuildTimings TIMINGS = new BuildTimings();		// Shared by our router and proxy
+	private static long START;										// When main started, in nanoseconds
+	private static final int ADMIN_PORT = Integer.getInteger("tor61.admin.port", 0);	// Loopback admin pages, 0 for any free port, -1 for none
+	private static AdminServer ADMIN;
+	private static Queue<String> TIMELINE = new ConcurrentLinkedQueue<String>();	// Startup milestones so far
 	
 	public static PrintWriter writer;
 	static {
@@ -28,6 +39,7 @@ public class TorMain {
 	}
 
 	public static void main(String[] args) {
+		START = System.nanoTime();
 		verify(args);
 		
 		///////////////////////////// Start Tor Router/////////////////////////////////////////
@@ -46,124 +58,152 @@ public class TorMain {
 		TOR_PORT = tor_socket.getLocalPort();
 		TOR_ADDRESS = tor_socket.getInetAddress();
 		
-		TorRouter tor_router = new TorRouter(tor_socket, serviceData);
+		TorRouter tor_router = new TorRouter(tor_socket, serviceData, SCORER, TIMINGS);
 		
 		if (!tor_router.start()) {
 			System.out.println("Tor Router Failed to start");
 			System.exit(1);
 		} 
 		System.out.println("Tor Router is Listening on port: " + TOR_PORT);
+		mark("listening");
 		///////////////////////////// Done Starting Tor Router/////////////////////////////////
-				
+
+		///////////////////////////// Start Proxy Server ///////////////////////////////////////
+		// The proxy only needs our own router, so it starts while we register
+		System.out.println("About to start Proxy Server");
+
+		Tor61ProxyServer ps = new Tor61ProxyServer(PROXY_PORT, TOR_PORT, TOR_ADDRESS, serviceData, SCORER, TIMINGS);
+		if (ps.start())
+			System.out.println("Proxy Server Successfully Started");
+		else
+			System.out.println("Failed to start Proxy Server");
+		mark("proxy started");
+		///////////////////////////// Done Starting Proxy Server ///////////////////////////////
+
 		///////////////////////////// Initialize Agent ////////////////////////////////////////
 		AGENT = new RegistrationAgent();
 		///////////////////////////// Done Initializing Agent//////////////////////////////////
-		
-		///////////////////////////// Unregister Tor That may be alive from before ////////////
-		List<Entry> uentries = AGENT.fetch("Tor61Router-" + GROUP_NUMBER);
-		if (uentries != null)
-			if (!uentries.isEmpty())
-				for (Entry e: uentries)
-					if (!AGENT.unregister(e.port)) {
-						System.out.println("Main FAILED TO UNREGISTER");
-						System.exit(1);
-					}
-		///////////////////////////// Finished Unregistering //////////////////////////////////
-		try {
-			Thread.sleep(2000);
-		} catch (InterruptedException e2) {
-			// TODO Auto-generated catch block
-			e2.printStackTrace();
+
+		///////////////////////////// Start Admin Server //////////////////////////////////////
+		if (ADMIN_PORT >= 0) {
+			try {
+				ADMIN = new AdminServer(ADMIN_PORT, tor_router, ps, tor_router.getMetrics(), ps.getMetrics(), AGENT.getMetrics());
+				ADMIN.start();
+				System.out.println("Admin pages at: http://127.0.0.1:" + ADMIN.getPort() + "/");
+			} catch (IOException e) {
+				System.out.println("Failed to start admin server on port " + ADMIN_PORT + ", continuing without it");
+			}
 		}
-		///////////////////////////// Register Tor Router /////////////////////////////////////
-		
+		///////////////////////////// Done Starting Admin Server //////////////////////////////
+
+		///////////////////////////// Unregister, Register and Fetch at once //////////////////
+		// Unregister Tor that may be alive from before: registered under our name, but not on our port
+		CompletableFuture<Void> unregistered = AGENT.fetchAsync(ROUTER_STRING_NAME)
+				.thenCompose(new Function<List<Entry>,CompletableFuture<Void>>() {
+			public CompletableFuture<Void> apply(List<Entry> uentries) {
+				List<CompletableFuture<Void>> unregistering = new ArrayList<CompletableFuture<Void>>();
+				for (Entry e: uentries)
+					if (e.port != TOR_PORT)
+						unregistering.add(AGENT.unregisterAsync(e.port));
+				return CompletableFuture.allOf(unregistering.toArray(new CompletableFuture<?>[unregistering.size()]));
+			}
+		});
+
 		// Run agent, which registers our Tor Router with the well-known registration service
 		System.out.println("About to register");
+		CompletableFuture<Integer> registered = AGENT.registerAsync(TOR_PORT, serviceData, ROUTER_STRING_NAME);
 
-		boolean registered = AGENT.register(TOR_PORT, serviceData, ROUTER_STRING_NAME);
-		
-		if (!registered) {
+		// Keeps the router list fresh in the background, so circuit building never waits on a fetch
+		System.out.println("About to Fetch");
+		DIRECTORY = new RouterDirectory(AGENT, "Tor61Router-" + String.format("%04d",GROUP_NUMBER));
+		DIRECTORY.start();
+
+		try {
+			registered.get();
+		} catch (Exception e) {
 			System.out.println("Failed to register Tor61 Router with Registration Service");
 			System.exit(1);
 		}
 		System.out.println("Finished Register");
-		///////////////////////////// Done Registering Tor Router ///////////////////////////// 
+		mark("registered");
 
-		// Wait for 1 second to allow other Tor Routers to finish registering
 		try {
-			Thread.sleep(1000);
+			unregistered.get();
+			mark("stale registrations removed");
 		} catch (Exception e) {
-			System.out.println("Exception when trying to wait for other Tor Routers to register");
+			System.out.println("Main FAILED TO UNREGISTER stale registrations, continuing anyway");
 		}
+		///////////////////////////// Done Registering Tor Router /////////////////////////////
 
 		///////////////////////////// Find Other Tor Routers ///////////////////////////////
-		System.out.println("About to Fetch");
-
-		List<Entry> entries = AGENT.fetch("Tor61Router-" + GROUP_NUMBER);
+		// Fetch again now that we are registered, instead of waiting a fixed time for others
+		List<Entry> entries = waitForRouters();
 		System.out.println("Done Fetching");
+		mark("routers fetched");
 		System.out.println("About to Print Contents of entires");
-		if (entries == null)
-			System.out.println("Entries was null.....");
-		else {
-			if (entries.isEmpty())
-				System.out.println("There were no Tor Routers with designated prefix");
-			else
-				for (Entry e: entries)
-					System.out.println(e.ip.getHostAddress() + " " + e.port + " " + e.serviceData);
-		}
-		System.out.println("Done");
-		
+		for (Entry e: entries)
+			System.out.println(e.ip.getHostAddress() + " " + e.port + " " + e.serviceData);
 		///////////////////////////// Done Finding Other Tor Routers ///////////////////////////
 
-		///////////////////////////// Start Proxy Server ///////////////////////////////////////
-		System.out.println("About to start Proxy Server");
+		///////////////////////////// Create Tor Circuits //////////////////////////////////////
 
-		Tor61ProxyServer ps = new Tor61ProxyServer(PROXY_PORT, TOR_PORT, TOR_ADDRESS, serviceData);
-		if (ps.start())
-			System.out.println("Proxy Server Successfully Started");
-		else
-			System.out.println("Failed to start Proxy Server");
-		
-		///////////////////////////// Done Starting Proxy Server ///////////////////////////////
-
-		///////////////////////////// Create Tor Circuit ///////////////////////////////////////
-				
-		// Must choose 4 random Routers from the list of found routers, and extend to them
-		Random r = new Random();
-		
-		// Extend Circuit CIRCUIT_SIZE times
-		int current_circuit_size = 0;
-		while (current_circuit_size < 2) {
-			System.out.println("Attempting to Extend Circuit...");
-			// If number of entries = 3, choose a random index 0,1,2
-			Entry e = entries.get(r.nextInt(entries.size()));
-			System.out.println("Main extending to entry: " + e.ip+":"+e.port);
-			// If we failed to extend, try again with another random router
-			try {
-				if (!ps.extend(e)) {
-					System.out.println("We failed to extend circuit to entry: " + e);
-				} else {
-					System.out.println("Successfully Extended Circuit to: " + e);
-					current_circuit_size++;
-				}
-			} catch (Exception e1) {
-				e1.printStackTrace();
-			}
-			System.out.println("Current Circuit Size: " + current_circuit_size);
+		// The proxy builds its circuits in the background from here on, and keeps spares ready
+		ps.startPool(DIRECTORY);
+		try {
+			while (ps.awaitCircuit(10000) == null)
+				System.out.println("Still building the first circuit...");
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted waiting for the first circuit");
 		}
-		///////////////////////////// Done Creating Tor Circuit ////////////////////////////////
+		System.out.println("First circuit: " + ps.getCircuit());
+		mark("first circuit usable");
+		printTimeline();
 		
 		// Keep running until user types 'q'
 		Scanner scanner = new Scanner(System.in);
 		String next = "";
 		while (!next.equals("q")) {
-			System.out.println("Please type 'q' to terminate");
+			System.out.println("Please type 'q' to terminate, 'timings' for circuit build times, 'scores' for router scores, 'metrics' for counters,");
+			System.out.println("'tables' for the router's tables, 'log <subsystem|all> <level>' to change what is logged,");
+			System.out.println("'traces' for sampled cell latencies or 'trace <n>' to trace one cell in n, 0 for none");
 			next = scanner.next();
 			System.out.println("Your typed: " + next);
+			if (next.equals("timings"))
+				System.out.print(TIMINGS);
+			else if (next.equals("scores"))
+				System.out.print(SCORER);
+			else if (next.equals("metrics"))
+				for (Metrics m: new Metrics[] {tor_router.getMetrics(), ps.getMetrics(), AGENT.getMetrics()})
+					System.out.println(m.getType() + " " + m.getValues());
+			else if (next.equals("tables"))
+				tor_router.printTables();
+			else if (next.equals("traces"))
+				System.out.print(tor_router.getTracer());
+			else if (next.equals("trace")) {
+				try {
+					tor_router.getTracer().setSampleEvery(Integer.parseInt(scanner.next()));
+				} catch (IllegalArgumentException e) {
+					System.out.println("trace takes a whole number, 0 or more");
+				}
+				System.out.print(tor_router.getTracer());
+			}
+			else if (next.equals("log")) {
+				String subsystem = scanner.next();
+				try {
+					Log.setLevel(subsystem.equals("all") ? null : subsystem, Log.Level.valueOf(scanner.next().toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					System.out.println("Levels are " + Arrays.toString(Log.Level.values()));
+				}
+				System.out.println("Log levels: " + Log.getLevels());
+			}
 		}
 			
 		System.out.println("Received Terminate Command: Terminating Processes");
 		
+		DIRECTORY.quit();
+		if (ADMIN != null)
+			ADMIN.quit();
+
 		System.out.println("About to terminate Agent");
 		if (AGENT.quit())
 			System.out.println("Agent Terminated");
@@ -175,6 +215,7 @@ public class TorMain {
 		scanner.close();
 		System.out.println("Everything successfully Terminated");
 		System.out.println("Good bye!");
+		Log.flush(1000);
 		System.exit(0);
 	}
 	
@@ -206,6 +247,36 @@ public class TorMain {
 		}
 	}
 
+	// Returns the latest list of routers, fetching again with growing pauses until there is one
+	private static List<Entry> waitForRouters() {
+		List<Entry> entries = DIRECTORY.getEntries();
+		long pause = 100;
+		while (entries.isEmpty()) {
+			System.out.println("No Tor Routers known yet, fetching again");
+			try {
+				Thread.sleep(pause);
+				entries = DIRECTORY.refresh().get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			pause = Math.min(pause * 2, 2000);
+		}
+		return entries;
+	}
+
+	// Records that startup reached event
+	private static void mark(String event) {
+		String milestone = event + " after " + (System.nanoTime() - START) / 1000000 + " ms";
+		TIMELINE.add(milestone);
+		System.out.println("Startup: " + milestone);
+	}
+
+	private static void printTimeline() {
+		System.out.println("Startup timeline:");
+		for (String milestone: TIMELINE)
+			System.out.println("    " + milestone);
+	}
+
 	private static void terminate() {
 		System.out.println("Terminating. Goodbye");
 		System.exit(1);
@@ -1,18 +1,25 @@
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.util.HashMap;
+import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
 
 /**
  * 
@@ -22,27 +29,123 @@ import java.util.Random;
  *
  */
 public class TorRouter {
+	private static final Log LOG = Log.get("router");
 	public static int readers = 1;
 	private ServerSocket SOCKET;
 	private TorRouterThread ROUTER;
 	
 	private boolean LISTENING;									// Class constant used to kill all threads
 	private Map<RouterTableKey,RouterTableValue> ROUTER_TABLE; 	// Tells us where to forward TOR packets
+	private static final RouterTableValue END_OF_CIRCUIT = new RouterTableValue(null, null, -1);	// ROUTER_TABLE value of circuits ending here
 	private Map<Socket,Opener> OPENER;			// Stores opener, openee relationship of a socket
 	private Map<Integer,Socket> CONNECTIONS; 	// Maps Router ID to socket. Only 1 socket per router
 	private static final int PACKAGE_SIZE = 512;
 	private Map<RouterTableKey,OutputStream> STREAMS; // <Socket, StreamID> map toa stream
 	private int AGENT_ID;
+	private ExitResolver RESOLVER;					// Caches destination lookups for streams exiting here
+	private ExitConnector CONNECTOR;				// Opens connections for streams exiting here
+	private PeerScorer SCORER;						// Learns how fast and reliable the routers we extend to are
+	private BuildTimings TIMINGS;					// How long connect, open and create take with each router, and so how long to wait
+	private Map<Socket,CompletableFuture<byte[]>> PENDING_OPENS;			// Opens we sent, waiting for opened or open failed
+	private Map<RouterTableKey,CompletableFuture<byte[]>> PENDING_CREATES;	// Creates we sent, waiting for created or create failed
+	private Map<Integer,CompletableFuture<Socket>> CONNECTING;				// Connections being opened, by router ID
+	private Metrics METRICS;						// Exported with JMX while the router is started
+	private CellCounters CELLS_IN;					// Cells read from other routers and proxies
+	private CellCounters CELLS_OUT;					// Cells written to other routers and proxies, forwarded ones included
+	private LongAdder BYTES_FORWARDED;				// Cells passed on along a circuit, in bytes
+	private LongAdder EXTENDS;
+	private LongAdder EXTEND_FAILURES;
+	private LongAdder BEGINS;
+	private LongAdder BEGIN_FAILURES;
+	private LongAdder DESTROYS;
+	private LongAdder WRITING;						// Cells being handled by a write thread right now
+	private CellTracer TRACER;						// Times a sample of cells through each stage of the router
+	private static final int SUPPORTED_BEGIN_FLAGS =	// Stream options we accept in begin cells
+			Boolean.parseBoolean(System.getProperty("tor61.compress", "true")) ? TorCellConverter.BEGIN_FLAG_COMPRESS : 0;
 
 	public TorRouter(ServerSocket socket, int agent_id) {
+		this(socket, agent_id, new PeerScorer());
+	}
+
+	public TorRouter(ServerSocket socket, int agent_id, PeerScorer scorer) {
+		this(socket, agent_id, scorer, new BuildTimings());
+	}
+
+	public TorRouter(ServerSocket socket, int agent_id, PeerScorer scorer, BuildTimings timings) {
 		SOCKET = socket;
 		ROUTER = null;
 		LISTENING = false;
-		ROUTER_TABLE = new HashMap<RouterTableKey,RouterTableValue>();
-		OPENER = new HashMap<Socket,Opener>();
-		CONNECTIONS = new HashMap<Integer,Socket>();
-		STREAMS = new HashMap<RouterTableKey,OutputStream>();
+		// Looked up for every cell by every read and write thread, and read by the admin server while
+		// they do, so these are concurrent maps. A circuit ending here maps to END_OF_CIRCUIT
+		ROUTER_TABLE = new ConcurrentHashMap<RouterTableKey,RouterTableValue>();
+		OPENER = new ConcurrentHashMap<Socket,Opener>();
+		CONNECTIONS = new ConcurrentHashMap<Integer,Socket>();
+		STREAMS = new ConcurrentHashMap<RouterTableKey,OutputStream>();
 		AGENT_ID = agent_id;
+		RESOLVER = new ExitResolver();
+		CONNECTOR = new ExitConnector();
+		SCORER = scorer;
+		TIMINGS = timings;
+		PENDING_OPENS = new ConcurrentHashMap<Socket,CompletableFuture<byte[]>>();
+		PENDING_CREATES = new ConcurrentHashMap<RouterTableKey,CompletableFuture<byte[]>>();
+		CONNECTING = new ConcurrentHashMap<Integer,CompletableFuture<Socket>>();
+		METRICS = new Metrics("TorRouter");
+		CELLS_IN = new CellCounters(METRICS, "cells_in");
+		CELLS_OUT = new CellCounters(METRICS, "cells_out");
+		BYTES_FORWARDED = METRICS.counter("bytes_forwarded");
+		EXTENDS = METRICS.counter("extends");
+		EXTEND_FAILURES = METRICS.counter("extend_failures");
+		BEGINS = METRICS.counter("begins");
+		BEGIN_FAILURES = METRICS.counter("begin_failures");
+		DESTROYS = METRICS.counter("destroys");
+		WRITING = new LongAdder();
+		TRACER = new CellTracer();
+		for (String stage: CellTracer.getStages()) {
+			final LatencyHistogram histogram = TRACER.getHistogram(stage);
+			METRICS.gauge("trace_" + stage + "_p50_us", new LongSupplier() {
+				public long getAsLong() { return histogram.getPercentile(50); }
+			});
+			METRICS.gauge("trace_" + stage + "_p99_us", new LongSupplier() {
+				public long getAsLong() { return histogram.getPercentile(99); }
+			});
+		}
+		// Every cell we can't handle right away waits on a write thread of its own, there is no writer queue
+		// to measure, so these show how much work is waiting instead
+		METRICS.gauge("writes_in_progress", new LongSupplier() {
+			public long getAsLong() { return WRITING.sum(); }
+		});
+		METRICS.gauge("circuits", new LongSupplier() {
+			public long getAsLong() { return ROUTER_TABLE.size(); }
+		});
+		METRICS.gauge("connections", new LongSupplier() {
+			public long getAsLong() { return CONNECTIONS.size(); }
+		});
+		METRICS.gauge("streams", new LongSupplier() {
+			public long getAsLong() { return STREAMS.size(); }
+		});
+		METRICS.gauge("openers", new LongSupplier() {
+			public long getAsLong() { return OPENER.size(); }
+		});
+		METRICS.gauge("pending_opens", new LongSupplier() {
+			public long getAsLong() { return PENDING_OPENS.size(); }
+		});
+		METRICS.gauge("pending_creates", new LongSupplier() {
+			public long getAsLong() { return PENDING_CREATES.size(); }
+		});
+	}
+
+	/**
+	 * Returns the tracer timing sampled cells through this router, whose sampling rate can be changed while it runs
+	 */
+	public CellTracer getTracer() {
+		return TRACER;
+	}
+
+	/**
+	 * Returns the counters and gauges of this router
+	 */
+	public Metrics getMetrics() {
+		return METRICS;
 	}
 	
 	/**
@@ -54,9 +157,10 @@ public class TorRouter {
 			LISTENING = true;
 			ROUTER = new TorRouterThread(SOCKET);
 			ROUTER.start();
+			METRICS.register("port " + SOCKET.getLocalPort());
 			return true;
 		} else {
-			System.out.println("Tor Router is already listening");
+			LOG.warn("Tor Router is already listening");
 			return false;
 		}
 	}
@@ -66,42 +170,95 @@ public class TorRouter {
 	 * @return true if successfully close the application, and false otherwise
 	 */
 	public boolean quit() {
-    	System.out.println("Tor Router is Terminating. Please note that this operation can take up to 20 seconds");
+    	LOG.info("Tor Router is Terminating. Please note that this operation can take up to 20 seconds");
     	if (ROUTER == null) {
-    		System.out.println("ROUTER was null. Router never started");
+    		LOG.warn("ROUTER was null. Router never started");
     		return false;
     	}
     	if (!LISTENING) {
-    		System.out.println("LISTENING was false. Router never started");
+    		LOG.warn("LISTENING was false. Router never started");
     		return false;
     	}
     	LISTENING = false;
+    	METRICS.unregister();
+    	RESOLVER.quit();
+    	CONNECTOR.quit();
     	
     	try {
-    		System.out.println("Attemping to Join Router...");
+    		LOG.debug("Attemping to Join Router...");
     		ROUTER.join();
-    		System.out.println("Join Router Success!");
+    		LOG.debug("Join Router Success!");
     		return true;
     	} catch (InterruptedException e) {
-    		e.printStackTrace();
-    		System.out.println("Interrupted when trying to quit in Tor Router");
+    		LOG.warn("Interrupted when trying to quit in Tor Router", e);
     		return false;
     	}
     }
 	
 	public void printTables() {
-		System.out.println("ROUTER_TABLE");
-		for (RouterTableKey key: ROUTER_TABLE.keySet()) {
-			System.out.println("\t"+key + " " + ROUTER_TABLE.get(key));
-		}
-		System.out.println("CONNECTIONS");
-		for (Integer i: CONNECTIONS.keySet()) {
-			System.out.println("\t"+i + " " + CONNECTIONS.get(i));
+		System.out.print(getTables());
+	}
+
+	// Stream ids are only unique within a circuit, so a stream is keyed by its connection and both ids
+	private static RouterTableKey streamKey(Socket socket, int cid, int stream_id) {
+		return new RouterTableKey(socket, (cid & 0xFFFF) << 16 | (stream_id & 0xFFFF));
+	}
+
+	// Closes the destinations of the streams on circuit cid of socket, or on every circuit of it if cid is -1.
+	// Closing a destination also stops the thread reading from it, which forgets the stream
+	private void closeStreams(Socket socket, int cid) {
+		for (RouterTableKey key: STREAMS.keySet()) {
+			if (key.socket != socket || (cid != -1 && key.circuit_id >>> 16 != (cid & 0xFFFF)))
+				continue;
+			OutputStream toDestination = STREAMS.remove(key);
+			if (toDestination == null)
+				continue;
+			try {
+				toDestination.close();
+			} catch (IOException e) {
+				LOG.debug("Error when closing destination of stream " + (key.circuit_id & 0xFFFF) + ": " + e.getMessage());
+			}
 		}
-		System.out.println("OPENER");
-		for (Socket s: OPENER.keySet()) {
-			System.out.println("\t"+OPENER.get(s));
+	}
+
+	// Describes a peer as host:port in flight recorder events, without a resolved name
+	static String describe(SocketAddress address) {
+		if (!(address instanceof InetSocketAddress))
+			return String.valueOf(address);
+		InetSocketAddress inet = (InetSocketAddress) address;
+		return inet.getHostString() + ":" + inet.getPort();
+	}
+
+	/**
+	 * Returns ROUTER_TABLE, CONNECTIONS, OPENER and STREAMS, one entry per line.
+	 * Reading the tables never blocks the threads routing cells, so an entry added
+	 * or removed while this runs may or may not be in it
+	 */
+	public String getTables() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("ROUTER_TABLE\n");
+		for (Map.Entry<RouterTableKey,RouterTableValue> e: ROUTER_TABLE.entrySet()) {
+			sb.append('\t').append(e.getKey()).append(' ');
+			sb.append(e.getValue() == END_OF_CIRCUIT ? "end of circuit" : "to Remote: " + e.getValue().getSocket().getPort() + e.getValue());
+			sb.append('\n');
 		}
+		sb.append("CONNECTIONS\n");
+		for (Map.Entry<Integer,Socket> e: CONNECTIONS.entrySet())
+			sb.append('\t').append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		sb.append("OPENER\n");
+		for (Map.Entry<Socket,Opener> e: OPENER.entrySet())
+			sb.append('\t').append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		sb.append("STREAMS\n");
+		for (RouterTableKey key: STREAMS.keySet())
+			sb.append('\t').append("Local: ").append(key.socket.getLocalPort()).append(" Remote: ")
+				.append(key.socket.getPort()).append(" stream: ").append(key.circuit_id).append('\n');
+		return sb.toString();
+	}
+
+	// Returns where to forward cells of the circuit key, or null if the circuit ends here or doesn't exist
+	private RouterTableValue nextHop(RouterTableKey key) {
+		RouterTableValue value = ROUTER_TABLE.get(key);
+		return value == END_OF_CIRCUIT ? null : value;
 	}
 	
 	/**
@@ -127,14 +284,14 @@ public class TorRouter {
 					Socket s = ROUTER_SOCKET.accept();
 					ROUTER_SOCKET.setSoTimeout(0); // Kill the timer
 					
-					System.out.println("Tor Accepted New Connection at: " + s.getLocalPort() + " connected to: "+s.getPort());
+					LOG.debug("Tor Accepted New Connection at: " + s.getLocalPort() + " connected to: "+s.getPort());
 					
 					// Create new thread to handle receiving messages
 					Thread read_thread = new ReadThread(s);
 					read_thread.start();
 					
 				} catch (SocketException e) {
-					System.out.println("SocketException when Tor Router is trying to create a new tcp connection");
+					LOG.error("SocketException when Tor Router is trying to create a new tcp connection");
 					System.exit(1);
 				} catch (IOException e) {
 					// Socket Timeout Exceptions are caught here
@@ -146,7 +303,7 @@ public class TorRouter {
 			try {
 				ROUTER_SOCKET.close();
 			} catch (IOException e) {
-				System.out.println("IOException: Tor Router no longer listening, but failed to close socket");
+				LOG.warn("IOException: Tor Router no longer listening, but failed to close socket");
 			}
 		}
 	}
@@ -162,6 +319,7 @@ public class TorRouter {
 	private class ReadThread extends Thread {
 		
 		private Socket READ_SOCKET;
+		private DataOutputStream OUT;		// Replies to whoever sends us cells on this connection
 		
 		public ReadThread(Socket s) {
 			this.READ_SOCKET = s;
@@ -172,28 +330,34 @@ public class TorRouter {
 			byte[] bytes = new byte[TorCellConverter.CELL_LENGTH];
 			try {
 				in = READ_SOCKET.getInputStream();
+				OUT = new DataOutputStream(CELLS_OUT.wrap(READ_SOCKET.getOutputStream()));
 			} catch (IOException e) {
-				e.printStackTrace();
-				System.out.println("Error when creating new buffered reader in read thread");
+				LOG.warn("Error when creating new buffered reader in read thread", e);
 			}
 			int readid = readers;
 			readers++;
 			while (LISTENING) {
-				System.out.println("Tor " + readid + " Reader waiting for new command at: " + READ_SOCKET.getLocalPort());
 				// Read the next 512 bytes (one tor cell)
 				int total_read = 0;
 				int read = 0;
-				boolean none = false;
-				while (total_read < PACKAGE_SIZE && read != -1 && !none) {
+				while (total_read < PACKAGE_SIZE && read != -1) {
 					try {
-						read = in.read(bytes);
-						System.out.println("Tor " + readid + " Reading");
-						total_read += read;
+						read = in.read(bytes, total_read, PACKAGE_SIZE - total_read);
+						if (read > 0)
+							total_read += read;
+					} catch (SocketTimeoutException e) {
+						continue;
 					} catch (IOException e) {
-						System.out.println("Error when reading from buffered 3");
+						LOG.debug("Error when reading from buffered 3");
+						read = -1;
 					}
 				}
-				System.out.println("Tor " + readid + " Finished Reading");
+				if (read == -1) {
+					LOG.debug("Tor " + readid + " connection closed at: " + READ_SOCKET.getLocalPort());
+					break;
+				}
+				CELLS_IN.count(bytes, 0);
+				long read_at = TRACER.start();
 
 
 				// pass next_cell into TorCellConverter and find out what the command was
@@ -220,86 +384,148 @@ public class TorRouter {
 		        
 				String command = TorCellConverter.getCellType(bytes);
 				int cid = TorCellConverter.getCircuitId(bytes);
-				System.out.println("Tor " + readid + " Received Command: "+command + " cid: " + cid);
+				if (LOG.isEnabled(Log.Level.TRACE))
+					LOG.trace("Tor " + readid + " Received Command: "+command + " cid: " + cid);
 				// Do something depending on the command
 				switch (command) {
 					case "open":
 					case "create":
+						new Thread(new CellHandler(command, READ_SOCKET, OUT, cid, bytes.clone(), readid, read_at)).start();
+						break;
 					case "relay":
-						new WriteThread(command, READ_SOCKET, cid, bytes,readid).start();
+						// Cells of a stream must reach the destination in the order they were sent, so data,
+						// end and anything we only forward are handled right here before reading the next cell.
+						// Begin and extend wait on the network, so they get a thread of their own
+						if (isHandledInOrder(cid, bytes))
+							new CellHandler(command, READ_SOCKET, OUT, cid, bytes, readid, read_at).run();
+						else
+							new Thread(new CellHandler(command, READ_SOCKET, OUT, cid, bytes.clone(), readid, read_at)).start();
 						break;
 					case "opened":
-						int openee_id = TorCellConverter.getOpenee(bytes);
-						OPENER.put(READ_SOCKET,new Opener(AGENT_ID,openee_id));
-						assert(!CONNECTIONS.containsKey(openee_id));
-						System.out.println("Tor " + readid + " Received Valid Opened Command");
-	
-						// Add new entry to CONNECTIONS with null value
-						CONNECTIONS.put(TorCellConverter.getOpenee(bytes), null);
-						printTables();
+					case "open failed":
+						// Answers the open relayExtend sent on this connection
+						CompletableFuture<byte[]> opening = PENDING_OPENS.remove(READ_SOCKET);
+						if (opening != null)
+							opening.complete(bytes.clone());
+						else
+							LOG.warn("Tor " + readid + " Received " + command + " for an open we never sent");
 						break;
-						// Add new entry to ROUTER_TABLE with null value
 					case "created":
-						ROUTER_TABLE.put(new RouterTableKey(READ_SOCKET,cid), null);
-						System.out.println("Tor " + readid + " Received Valid Created Command");
-						printTables();
+					case "create failed":
+						// Answers a create relayExtend sent on this connection
+						CompletableFuture<byte[]> creating = PENDING_CREATES.remove(new RouterTableKey(READ_SOCKET,cid));
+						if (creating != null)
+							creating.complete(bytes.clone());
+						else
+							LOG.warn("Tor " + readid + " Received " + command + " for a create we never sent " + cid);
 						break;
 					case "destroy":
-						destroyConnection(cid);
+						destroyCircuit(cid);
 						break;
 					default:
-						System.out.println("Command Was not recognized");
+						LOG.error("Command Was not recognized");
 						System.exit(1);
 						break;
 				}
 			}
-			System.out.println("Preparing to quit read thread");
-			// Being here means that we are no longer LISTENING, and we want to quit
-			prepareToQuit();
+			// Being here means that either we are no longer LISTENING and want to quit,
+			// or the other end closed this connection
+			if (!LISTENING) {
+				LOG.info("Preparing to quit read thread");
+				prepareToQuit();
+			}
+			
+			// Nobody can reach the other router through this connection any more
+			OPENER.remove(READ_SOCKET);
+			CONNECTIONS.values().remove(READ_SOCKET);
+			CompletableFuture<byte[]> opening = PENDING_OPENS.remove(READ_SOCKET);
+			if (opening != null)
+				opening.completeExceptionally(new IOException("Connection closed before opened"));
+			for (RouterTableKey key: PENDING_CREATES.keySet()) {
+				if (key.socket == READ_SOCKET) {
+					CompletableFuture<byte[]> creating = PENDING_CREATES.remove(key);
+					if (creating != null)
+						creating.completeExceptionally(new IOException("Connection closed before created"));
+				}
+			}
+
+			// Every circuit through this connection is dead, so destroy them on their other side too
+			if (LISTENING) {
+				for (RouterTableKey key: ROUTER_TABLE.keySet()) {
+					if (key.socket == READ_SOCKET)
+						destroyCircuit(key.circuit_id);
+				}
+				closeStreams(READ_SOCKET, -1);
+			}
 			
 			try {
 				READ_SOCKET.close();
 			} catch (IOException e) {
-				System.out.println("IOException: ReadThread no longer listening, but failed to close socket");
+				LOG.warn("IOException: ReadThread no longer listening, but failed to close socket");
 			}
 		}
 		
+		// Returns true if this relay cell has to be handled before the next cell on this connection is read
+		private boolean isHandledInOrder(int cid, byte[] bytes) {
+			if (nextHop(new RouterTableKey(READ_SOCKET, cid)) != null)
+				return true;
+			String relay_type = TorCellConverter.getRelaySubcellType(bytes);
+			return relay_type.equals("data") || relay_type.equals("end");
+		}
+		
 		/**
-		 * Remove this circuit from routing table
+		 * Remove this circuit from routing table, and pass the destroy on if the circuit goes further
+		 * The connection stays open, other circuits may still use it
 		 * @param cid
 		 */
-		private void destroyConnection(int cid) {
+		private void destroyCircuit(int cid) {
 			RouterTableKey key = new RouterTableKey(READ_SOCKET,cid);
-			RouterTableValue value = ROUTER_TABLE.get(key);
+			RouterTableValue value = ROUTER_TABLE.remove(key);
+			if (value == END_OF_CIRCUIT)
+				closeStreams(READ_SOCKET, cid);
+			if (value == null || value == END_OF_CIRCUIT)
+				return;
+			DESTROYS.increment();
+			CircuitEvent event = new CircuitEvent();
+			event.begin();
+			// Forget the way back as well, and tell the router at the other end
+			ROUTER_TABLE.remove(new RouterTableKey(value.getSocket(), value.getCID()));
 			try {
-				value.getStream().close();
+				value.getStream().write(TorCellConverter.getDestroyCell((short) value.getCID()));
+				value.getStream().flush();
+				event.succeeded = true;
 			} catch (IOException e) {
-				System.out.println("Error when trying to close Stream when we received a destroy cell");
+				LOG.warn("Error when passing on destroy cell for circuit " + cid);
 			}
-			ROUTER_TABLE.remove(key);
+			event.action = CircuitEvent.DESTROY;
+			event.circuitId = cid;
+			event.peer = describe(READ_SOCKET.getRemoteSocketAddress());
+			event.nextCircuitId = value.getCID();
+			event.commit();
 		}
 		
 		private void prepareToQuit() {
 			// Send Destroy messages to everyone
-			for (RouterTableKey key: ROUTER_TABLE.keySet()) {
-				OutputStream s = ROUTER_TABLE.get(key).getStream();
+			for (RouterTableKey key: ROUTER_TABLE.keySet().toArray(new RouterTableKey[0])) {
+				RouterTableValue value = ROUTER_TABLE.get(key);
+				OutputStream s = value == null ? null : value.getStream();
 				if (s != null) {
 					try {
-						s.write(TorCellConverter.getDestoryCell((short)key.circuit_id));
+						s.write(TorCellConverter.getDestroyCell((short)value.getCID()));
 						s.flush();
 						s.close();
 					} catch (IOException e) {
-						e.printStackTrace();
+						LOG.warn("Failed to send destroy for circuit " + value.getCID() + " when quitting", e);
 					}
 				}
 			}
 			
 			// Close all sockets
-			for (Integer key: CONNECTIONS.keySet()) {
+			for (Integer key: CONNECTIONS.keySet().toArray(new Integer[0])) {
 				try {
 					CONNECTIONS.get(key).close();
 				} catch (IOException e) {
-					System.out.println("Failed to close socket when preparing to quit read thread");
+					LOG.warn("Failed to close socket when preparing to quit read thread");
 				}
 			}
 		}
@@ -311,8 +537,11 @@ public class TorRouter {
 	 * 
 	 * Writes appropriate messages to a designated Streams
 	 *
+	 * Runs on the read thread for cells that must be handled in order, and on a thread
+	 * of its own for cells that wait on the network
+	 *
 	 */
-	private class WriteThread extends Thread {
+	private class CellHandler implements Runnable {
 		
 		private Socket socket;
 		private DataOutputStream out; // Stream to whoever sent us this command
@@ -325,35 +554,71 @@ public class TorRouter {
 		//private int agent_id;
 		
 		public int readid; // used for debugging
+		private long read_at;			// When the cell was read if it is traced, otherwise 0
+		private long dispatched_at;
+		private long looked_up_at;
+		private long written_at;
+		private boolean forwarded;		// Passed on to the next router, for the cell's JFR event
 
-		public WriteThread(String command, Socket s, int cid, byte[] bytes,int readid) {
+		public CellHandler(String command, Socket s, DataOutputStream out, int cid, byte[] bytes,int readid, long read_at) {
 			this.socket = s;
-			try {
-				out = new DataOutputStream(s.getOutputStream());
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			this.out = out;
 			this.command = command;
 			this.cid = (short)cid;
 			this.stream_id = TorCellConverter.getStreamID(bytes);
 			this.bytes = bytes;
 			this.routing_key = new RouterTableKey(socket, cid);
-			this.stream_key = new RouterTableKey(socket, stream_id);
+			this.stream_key = streamKey(socket, cid, stream_id);
 			/*
 			try {
 				this.agent_id = TorCellConverter.getExtendAgent(bytes);
 			} catch (ArrayIndexOutOfBoundsException e) {
 			}*/
 			this.readid=readid;
+			this.read_at = read_at;
 		}
 		
 		public void run() {
+			CellEvent event = null;
+			if (read_at != 0) {
+				dispatched_at = System.nanoTime();
+				event = new CellEvent();
+				event.begin();
+			}
+			WRITING.increment();
+			try {
+				handle();
+			} finally {
+				WRITING.decrement();
+				if (read_at != 0) {
+					TRACER.record(read_at, dispatched_at, looked_up_at, written_at);
+					commitCellEvent(event);
+				}
+			}
+		}
+
+		// Describes the cell in event and commits it, if JFR is recording cell events
+		private void commitCellEvent(CellEvent event) {
+			if (!event.shouldCommit())
+				return;
+			event.command = command.equals("relay") ? "relay " + TorCellConverter.getRelaySubcellType(bytes) : command;
+			event.circuitId = cid;
+			event.peer = describe(socket.getRemoteSocketAddress());
+			event.forwarded = forwarded;
+			event.bytes = bytes.length;
+			event.dispatchWait = dispatched_at - read_at;
+			event.commit();
+		}
+
+		private void handle() {
 			// If we are not the end of the circuit, forward to the next tor router
-			if (ROUTER_TABLE.containsKey(routing_key) && ROUTER_TABLE.get(routing_key) != null) {
+			RouterTableValue value = nextHop(routing_key);
+			if (read_at != 0)
+				looked_up_at = System.nanoTime();
+			if (value != null) {
 //TODO
-				System.out.println("Yay we're forwarding");
-				System.out.println("Key: " + routing_key);
-				RouterTableValue value = ROUTER_TABLE.get(routing_key);
+				if (LOG.isEnabled(Log.Level.TRACE))
+					LOG.trace("Forwarding " + command + " on " + routing_key);
 				OutputStream next = value.getStream();
 				int nextCID = value.getCID();
 				try {
@@ -364,9 +629,13 @@ public class TorRouter {
 					//System.out.println(TorCellConverter.getRelaySubcellType(bytes));
 					next.write(bs);
 					next.flush();			
+					BYTES_FORWARDED.add(bs.length);
+					forwarded = true;
+					if (read_at != 0)
+						written_at = System.nanoTime();
 
 				} catch (IOException e) {
-					System.out.println("Error when 'forwarding' packets to next router in writethread");
+					LOG.warn("Error when 'forwarding' packets to next router in writethread");
 				}
 			// If we are the end of the circuit
 			} else {
@@ -374,65 +643,66 @@ public class TorRouter {
 					case "open":
 						try {
 							if (TorCellConverter.getOpenee(bytes) == AGENT_ID) {
-								System.out.println("Tor " + readid + " Received Valid Open Command");
+								LOG.debug("Tor " + readid + " Received Valid Open Command");
 								// Add new connection to CONNECTIONS
 								OPENER.put(socket, new Opener(TorCellConverter.getOpener(bytes), AGENT_ID));
 								CONNECTIONS.put(TorCellConverter.getOpener(bytes), socket);
-								System.out.println("Tor " + readid + " Sending Opened Command to: " + socket.getPort());
-								printTables();
+								LOG.debug("Tor " + readid + " Sending Opened Command to: " + socket.getPort());
 								byte[] bs = TorCellConverter.getOpenedCell(bytes);
 								//System.out.println(TorCellConverter.getCellType(bs));
 								out.write(bs);
 								out.flush();
-								System.out.println("Tor " + readid + " Sent Opened Command");
 
 							} else {
-								System.out.println("AGENT_ID DID NOT MATCH IN OPEN COMMAND. OPEN FAILED");
-								System.out.println("Agent: " + TorCellConverter.getOpenee(bytes));
+								LOG.warn("AGENT_ID DID NOT MATCH IN OPEN COMMAND. OPEN FAILED");
+								LOG.warn("Agent: " + TorCellConverter.getOpenee(bytes));
 								out.write(TorCellConverter.getOpenFailCell(bytes));
 							}
 						} catch (IOException e) {
 							try {
-								System.out.println("SOME KIND OF ERROR OCCURED WHEN PROCESSING OPEN COMMAND. OPEN FAILED");
+								LOG.warn("SOME KIND OF ERROR OCCURED WHEN PROCESSING OPEN COMMAND. OPEN FAILED");
 								out.write(TorCellConverter.getOpenFailCell(bytes));
 							} catch (IOException e2) {
-								System.out.println("Error whenn sending open failed reply in write thread");
+								LOG.warn("Error whenn sending open failed reply in write thread");
 							}
-							System.out.println("Error when sending opened reply in write thread");
+							LOG.warn("Error when sending opened reply in write thread");
 						}
 						break;
 					case "create":
+						CircuitEvent created = new CircuitEvent();
+						created.begin();
 						RouterTableKey key = new RouterTableKey(socket,cid);
 						// If this cid is being used, reply with Create Cell Failed
 						if (ROUTER_TABLE.containsKey(key)) {
 							try {
-								System.out.println("Tor " + readid + " Received Invalid Create Command");
+								LOG.debug("Tor " + readid + " Received Invalid Create Command");
 
 								out.write(TorCellConverter.getCreateFailCell((short)cid));
-								System.out.println("Tor " + readid + " Sending Create Failed Command");
+								LOG.debug("Tor " + readid + " Sending Create Failed Command");
 
 							} catch (IOException e) {
-								System.out.println("Error when sending create fail reply in write thread");
+								LOG.warn("Error when sending create fail reply in write thread");
 							}
 						// Proceed to add the circuit to our router table
 						} else {
-							System.out.println("Tor " + readid + " Received Create Command " + cid);
-							System.out.println(TorCellConverter.getCircuitId(bytes));
+							LOG.debug("Tor " + readid + " Received Create Command " + cid);
 
-							// Should add to router table and map to null. this indicates we're at the end of the circuit
+							// Should add to router table and map to END_OF_CIRCUIT. this indicates we're at the end of the circuit
 							// Open should add things to CONNECTIONS
-							ROUTER_TABLE.put(new RouterTableKey(socket,cid),null);
-							printTables();
+							ROUTER_TABLE.put(new RouterTableKey(socket,cid),END_OF_CIRCUIT);
 							try {
 								byte[] bs = TorCellConverter.getCreatedCell((short)cid); 
-								System.out.println(TorCellConverter.getCircuitId(bs));
 								out.write(bs);
-								System.out.println("Tor " + readid + " Sending Created Command to: " + socket.getPort() + " " + cid);
-								System.out.println(TorCellConverter.getCircuitId(bytes));
+								LOG.debug("Tor " + readid + " Sending Created Command to: " + socket.getPort() + " " + cid);
+								created.succeeded = true;
 							} catch (IOException e) {
-								System.out.println("Error when sending created reply in write thread");
+								LOG.warn("Error when sending created reply in write thread");
 							}
 						}
+						created.action = CircuitEvent.CREATE;
+						created.circuitId = cid;
+						created.peer = describe(socket.getRemoteSocketAddress());
+						created.commit();
 						break;
 					case "relay":
 						handleRelayCase();
@@ -446,7 +716,8 @@ public class TorRouter {
 		// Handles the case where we receive a relay tor packet
 		private void handleRelayCase() {
 			String relay_type = TorCellConverter.getRelaySubcellType(bytes);
-			System.out.println("Tor " + readid + " Received Relay " + relay_type);
+			if (LOG.isEnabled(Log.Level.TRACE))
+				LOG.trace("Tor " + readid + " Received Relay " + relay_type);
 
 			switch (relay_type) {
 				case "begin":
@@ -456,11 +727,23 @@ public class TorRouter {
 					relayData();
 					break;
 				case "end":
-					if (STREAMS.containsKey(stream_key))
-						STREAMS.remove(stream_key);
+					// Closing the destination also stops the thread reading from it
+					OutputStream toDestination = STREAMS.remove(stream_key);
+					if (toDestination != null) {
+						try {
+							toDestination.close();
+						} catch (IOException e) {
+							LOG.warn("Error when closing destination of ended stream in write thread");
+						}
+					}
 					break;
 				case "extend":
-					relayExtend();
+					CircuitEvent event = new CircuitEvent();
+					event.begin();
+					event.succeeded = relayExtend(event);
+					event.action = CircuitEvent.EXTEND;
+					event.circuitId = cid;
+					event.commit();
 					break;
 				default:
 					throw new IllegalArgumentException("Invalid Relay Subcase in handleRelayCase: " + relay_type);
@@ -469,87 +752,156 @@ public class TorRouter {
 		
 		// Handles creating a new TCP connection with destination
 		private void relayBegin() {
-			InetSocketAddress address = TorCellConverter.getExtendDestination(bytes);
+			BEGINS.increment();
+			InetSocketAddress destination = TorCellConverter.getBeginDestination(bytes);
+			StreamEvent begin = new StreamEvent();
+			begin.begin();
+			begin.action = StreamEvent.BEGIN;
+			begin.circuitId = cid;
+			begin.streamId = stream_id;
+			begin.peer = describe(destination);
 			Socket toDestination = null;
-			System.out.println("Tor " + readid + " trying to establish connection");
+			LOG.debug("Tor " + readid + " resolving " + destination.getHostString());
+
+			// Lookup runs on the resolver's threads and is shared with any other stream to the same host
+			InetAddress ip = null;
 			try {
-				toDestination = new Socket(address.getAddress(), address.getPort());
-			} catch (IOException e) {
-				List<byte[]> bytes_list = TorCellConverter.getRelayCells("begin failed", cid, stream_id, "");
-				for (byte[] bs: bytes_list) {
-					try {
-						out.write(bs);
-						out.flush();
-					} catch (IOException e1) {
-						e1.printStackTrace();
-						System.out.println("Error when sending 'begin failed' in relayBegin in write thread");
-					}
-				}
+				ip = RESOLVER.resolve(destination.getHostString()).get();
+			} catch (ExecutionException e) {
+				LOG.info("Tor " + readid + " could not resolve " + destination.getHostString());
+				sendBeginFailed();
+				begin.commit();
+				return;
+			} catch (InterruptedException e) {
+				sendBeginFailed();
+				begin.commit();
+				return;
+			}
+			InetSocketAddress address = new InetSocketAddress(ip, destination.getPort());
+
+			LOG.debug("Tor " + readid + " trying to establish connection");
+			try {
+				toDestination = CONNECTOR.connect(address).get();
+			} catch (ExecutionException e) {
+				LOG.info("Tor " + readid + " failed to connect to " + address + ": " + e.getCause().getMessage());
+				sendBeginFailed();
+				begin.commit();
+				return;
+			} catch (InterruptedException e) {
+				sendBeginFailed();
+				begin.commit();
+				return;
 			}
 						
 			// We should only be doing this if we are at the end and there is no previous stream
 			assert(ROUTER_TABLE.containsKey(routing_key));
-			assert(ROUTER_TABLE.get(routing_key) == null);
+			assert(ROUTER_TABLE.get(routing_key) == END_OF_CIRCUIT);
 			assert(!STREAMS.containsKey(stream_key));
 			
+			// Only agree to the options we support, the source will not use anything we leave out
+			int flags = TorCellConverter.getBeginFlags(bytes) & SUPPORTED_BEGIN_FLAGS;
+			boolean compress = (flags & TorCellConverter.BEGIN_FLAG_COMPRESS) != 0;
+			
 			// Insert into stream table source -> destination
+			UnpackOutputStream toDestinationStream = null;
 			try {
-				STREAMS.put(stream_key, new UnpackOutputStream(new DataOutputStream(toDestination.getOutputStream())));
+				toDestinationStream = new UnpackOutputStream(new DataOutputStream(toDestination.getOutputStream()));
+				if (compress)
+					toDestinationStream.enableDecompression();
+				STREAMS.put(stream_key, toDestinationStream);
 			} catch (IOException e) {
-				e.printStackTrace();
-				System.out.println("Error when trying to add destination stream to router table in write thread");
+				LOG.warn("Error when trying to add destination stream to router table in write thread", e);
 			}
 			
-			System.out.println("Tor " + readid + " successfully established connection");
+			LOG.debug("Tor " + readid + " successfully established connection");
 
+			// Insert into router table destination -> source, for as long as the stream lasts
 			RouterTableKey destToSourceKey = new RouterTableKey(toDestination, cid);
-			
-			if (!ROUTER_TABLE.containsKey(destToSourceKey)) {
-				RouterTableValue destToSourceValue = new RouterTableValue(out, cid);
-				
-				// Insert into router table destination -> source
-				ROUTER_TABLE.put(destToSourceKey, destToSourceValue);
-				printTables();
-			}
+			ROUTER_TABLE.putIfAbsent(destToSourceKey, new RouterTableValue(socket, out, cid));
 						
-			System.out.println("Tor " + readid + " sending connected message");
+			LOG.debug("Tor " + readid + " sending connected message");
 
-			// Reply with connected message
-			List<byte[]> bytes_list = TorCellConverter.getRelayCells("connected", cid, stream_id, "");
-			for (byte[] bs: bytes_list) {
-				try {
-					out.write(bs);
-					out.flush();
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.out.println("Error when sending 'connected' message back to source in write thread");
-				}
+			// Reply with connected message, carrying the options we agreed to
+			try {
+				out.write(TorCellConverter.getConnectedCell(cid, stream_id, flags));
+				out.flush();
+			} catch (IOException e) {
+				LOG.warn("Error when sending 'connected' message back to source in write thread", e);
 			}
-			
-			System.out.println("Tor " + readid + " sent connected message");
+			begin.succeeded = true;
+			begin.commit();
+
+			// The end event lasts as long as the stream
+			StreamEvent end = new StreamEvent();
+			end.begin();
 
-			
 			// Since this thread is supposed to terminate anyways, we will instead use it to forever read
 			// from this newly created socket and direct it to the begin source
 			
 			PackOutputStream packStream = new PackOutputStream(out, cid, stream_id);
+			if (compress)
+				packStream.enableCompression();
             try {
-				BufferedReader in = new BufferedReader(new InputStreamReader(toDestination.getInputStream()));
+				// Each read lands directly in the payload of a cell, so we send one cell per read
+				InputStream in = toDestination.getInputStream();
 				while (STREAMS.containsKey(stream_key) && LISTENING) {
-					packStream.write(in.read());
+					if (packStream.writeFrom(in) == -1) {
+						// Destination closed the connection, let the source know the stream is over
+						STREAMS.remove(stream_key);
+						for (byte[] bs: TorCellConverter.getRelayCells("end", cid, stream_id, ""))
+							out.write(bs);
+						out.flush();
+						break;
+					}
 					packStream.flush();
 				}
-				in.close();
 			} catch (IOException e) {
-				e.printStackTrace();
-				System.out.println("Error when packing stream from destination, back to source in write thread");
-			}  
+				// Also how a stream ends when its circuit or connection went away and closed the destination
+				LOG.debug("Stream " + stream_id + " from destination stopped: " + e.getMessage());
+			} finally {
+				// However the stream ended, nothing may be left of it in the tables
+				STREAMS.remove(stream_key, toDestinationStream);
+				ROUTER_TABLE.remove(destToSourceKey);
+				try {
+					toDestination.close();
+				} catch (IOException e) {
+					LOG.warn("Error when closing destination of stream " + stream_id);
+				}
+			}
             
             // Close streams
             try {
 				packStream.close();
 			} catch (IOException e) {
-				System.out.println("Error when trying to close packStream in write thread");
+				LOG.warn("Error when trying to close packStream in write thread");
+			}
+            end.action = StreamEvent.END;
+            end.circuitId = cid;
+            end.streamId = stream_id;
+            end.peer = describe(address);
+            end.bytesSent = packStream.getSentBytes();
+            end.bytesReceived = toDestinationStream == null ? 0 : toDestinationStream.getReceivedBytes();
+            end.succeeded = true;
+            end.commit();
+            if (compress) {
+            	if (LOG.isEnabled(Log.Level.DEBUG))
+            		LOG.debug("Tor " + readid + " stream " + stream_id + " compression to source: " + packStream.getCompressionSummary());
+            	if (LOG.isEnabled(Log.Level.DEBUG))
+            		LOG.debug("Tor " + readid + " stream " + stream_id + " compression from source: " + toDestinationStream.getCompressionSummary());
+            }
+		}
+		
+		// Tells the source that we could not open its stream
+		private void sendBeginFailed() {
+			BEGIN_FAILURES.increment();
+			List<byte[]> bytes_list = TorCellConverter.getRelayCells("begin failed", cid, stream_id, "");
+			for (byte[] bs: bytes_list) {
+				try {
+					out.write(bs);
+					out.flush();
+				} catch (IOException e1) {
+					LOG.warn("Error when sending 'begin failed' in relayBegin in write thread", e1);
+				}
 			}
 		}
 		
@@ -561,264 +913,215 @@ public class TorRouter {
 				try {
 					toDestination.write(bytes);
 					toDestination.flush();
+					if (read_at != 0)
+						written_at = System.nanoTime();
 				} catch (IOException e) {
-					System.out.println("Error when trying to forward packets to destination in write thread");
+					LOG.warn("Error when trying to forward packets to destination in write thread");
 				}
 			} else {
-				throw new IllegalArgumentException("Someone is trying to relay data to a stream that doesn't exist");
+				// The stream may have just ended on our side, so drop the cell instead of killing the reader
+				LOG.debug("Tor " + readid + " dropped data for stream that doesn't exist: " + stream_id);
 			}
 		}
 		
-		// Handles dealing with a relayExtend command
-		private void relayExtend() {
+		// Handles dealing with a relayExtend command, returns true if the circuit was extended.
+		// Fills in the router extended to and the new circuit id in event
+		private boolean relayExtend(CircuitEvent event) {
 			assert(ROUTER_TABLE.containsKey(routing_key));
-			assert(ROUTER_TABLE.get(routing_key) == null);
+			assert(ROUTER_TABLE.get(routing_key) == END_OF_CIRCUIT);
 			InetSocketAddress address = TorCellConverter.getExtendDestination(bytes);
 			int agent_id = TorCellConverter.getExtendAgent(bytes);
+			EXTENDS.increment();
+			event.peer = describe(address);
 
-			printTables();
 
+			// Use our connection to the next router, or open one
 			Socket dest_socket = null;
 			DataOutputStream dest_stream = null;
-			short newCid = -1;
+			try {
+				dest_socket = getConnection(agent_id, address);
+				dest_stream = new DataOutputStream(CELLS_OUT.wrap(dest_socket.getOutputStream()));
+			} catch (IOException e) {
+				LOG.info("Tor " + readid + " could not open connection to " + address + ": " + e.getMessage());
+				SCORER.recordOutcome(address, false);
+				sendExtendFailed();
+				return false;
+			}
 
-			System.out.println("Tor " + readid + " Checking to see if connection exists");
-			// If we already have a tcp connection to destination, use it
-			if (CONNECTIONS.containsKey(agent_id)) {
-				System.out.println("Tor " + readid + " Found Existing connection");
+			// The connection's read thread hands us the created reply for our new cid
+			CompletableFuture<byte[]> creating = new CompletableFuture<byte[]>();
+			short newCid = getNewCid(dest_socket, creating);
+			event.nextCircuitId = newCid;
+			RouterTableKey newKey = new RouterTableKey(dest_socket,newCid);
+			LOG.debug("Tor " + readid + " Sending Create Packet to: " + dest_socket.getPort() + " " + newCid);
 
-				// Retreive existing socket
-				dest_socket = CONNECTIONS.get(agent_id);
-				try {
-					dest_stream = new DataOutputStream(dest_socket.getOutputStream());
-					newCid = getNewCid(dest_socket);
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.out.println("Error when creating new DataOutputStream to an existing socket in relay extend in write thread");
-				}
+			// Send existing tor router a create cell to make extend new circuit
+			byte[] reply = null;
+			try {
+				long create_start = System.nanoTime();
+				dest_stream.write(TorCellConverter.getCreateCell(newCid));
+				dest_stream.flush();
+				reply = creating.get(TIMINGS.getTimeout(BuildTimings.CREATE, address), TimeUnit.MILLISECONDS);
+				if (TorCellConverter.getCellType(reply).equals("created"))
+					TIMINGS.record(BuildTimings.CREATE, address, System.nanoTime() - create_start);
+			} catch (IOException e) {
+				LOG.warn("Error sending a create cell in relayExtend in write thread");
+			} catch (TimeoutException e) {
+				LOG.info("Tor " + readid + " timed out waiting for created cell " + newCid);
+			} catch (InterruptedException e) {
+			} catch (ExecutionException e) {
+			}
+			PENDING_CREATES.remove(newKey, creating);
 
-			// Otherwise, create a new tcp connection and do open protocol
-			} else {
-				System.out.println("Tor " + readid + " did not find existing connection");
-				System.out.println("Tor " + readid + " creating new connection");
+			if (reply == null || !TorCellConverter.getCellType(reply).equals("created")) {
+				LOG.info("Tor " + readid + " did not receive created cell, sending extend failed to " + socket.getPort());
+				SCORER.recordOutcome(address, false);
+				sendExtendFailed();
+				return false;
+			}
+			LOG.debug("Tor " + readid + " received created cell " + newCid);
 
+			RouterTableValue newValueToClient = new RouterTableValue(socket, out,cid);
+			RouterTableValue newValueToDest = new RouterTableValue(dest_socket, dest_stream,newCid);
 
-				// create a new socket
+			// update client -> null to client -> Dest
+			assert(ROUTER_TABLE.get(routing_key) == END_OF_CIRCUIT);
+			
+			ROUTER_TABLE.put(newKey, newValueToClient);
+			ROUTER_TABLE.put(routing_key, newValueToDest);
+			
+			
+			LOG.debug("Sending extended cell to: local: " + socket.getLocalPort() +" remote: "+socket.getPort() + " cid: " + cid);
+			// Send extended cell to client
+			for (byte[] bs: TorCellConverter.getRelayCells("extended", cid, stream_id, "")) {
 				try {
-					dest_socket = new Socket();
-					System.out.println("Tor trying to connect to address: " + address);
-					dest_socket.connect(address);
-					System.out.println("Tor connected to address: " + address + " from: " + dest_socket.getLocalPort());
-
-					dest_stream = new DataOutputStream(dest_socket.getOutputStream());
-					newCid = getNewCid(dest_socket);
+					out.write(bs);
+					out.flush();
 				} catch (IOException e) {
-					e.printStackTrace();
-					List<byte[]> bytes_list = TorCellConverter.getRelayCells("extend failed", cid, stream_id, "");
-					for (byte[] bs: bytes_list) {
-						try {
-							out.write(bs);
-							out.flush();
-						} catch (IOException e1) {
-							e1.printStackTrace();
-							System.out.println("Error when sending 'extend failed' in relayExtend in write thread");
-						}
-					}
+					LOG.warn("Error when sending client extended cell in relayExtend in write thread");
 				}
-				System.out.println("Tor " + readid + " Created new connection");
-				
-				System.out.println("Tor " + readid + " Sending Open Packet To: " + dest_socket.getPort());
+			}
+			return true;
+		}
 
-				// send open packet
+		// Tells the source that we could not extend its circuit
+		private void sendExtendFailed() {
+			EXTEND_FAILURES.increment();
+			for (byte[] bs: TorCellConverter.getRelayCells("extend failed", cid, stream_id, "")) {
 				try {
-					dest_stream.write(TorCellConverter.getOpenCell(newCid, AGENT_ID, agent_id));
+					out.write(bs);
+					out.flush();
 				} catch (IOException e) {
-					try {
-						for (byte[] bs: TorCellConverter.getRelayCells("extend failed", cid, stream_id, ""))
-							out.write(bs);
-					} catch (IOException e1) {
-						System.out.println("Error when sending extend failed because exception in send open cell relay extend in write thread");
-					}
+					LOG.warn("Error when sending 'extend failed' in relayExtend in write thread");
 				}
-				System.out.println("Tor " + readid + " Waiting for opened packet from Another Tor");
-				
-				// wait until we receive a opened packet
-				try {
-					dest_socket.setSoTimeout(5000); // Set timer 5 seconds
+			}
+		}
 
-					InputStream in = null;
-					byte[] bytes = new byte[TorCellConverter.CELL_LENGTH];
-					try {
-						in = dest_socket.getInputStream();
-					} catch (IOException e) {
-						e.printStackTrace();
-						System.out.println("Error when creating new buffered reader in read thread");
-					}
-					int total_read = 0;
-					int read = 0;
-					boolean none = false;
-					while (total_read < PACKAGE_SIZE && read != -1 && !none) {
-						try {
-							read = in.read(bytes);
-							total_read += read;
-						} catch (IOException e) {
-							System.out.println("Error when reading from buffered 1");
-						}
-					}
-					dest_socket.setSoTimeout(0); // Kill timer
-					System.out.println("Tor " + readid + " Read something");
-					
-					if (!TorCellConverter.getCellType(bytes).equals("opened")) {
-						System.out.println("Tor " + readid + " expected opened cell but got something else");
-						System.out.println("Tor " + readid + " sending exted failed to" + socket.getPort());
-						
-						// Send extend failed cell to client
-						for (byte[] bs: TorCellConverter.getRelayCells("extend failed", cid, stream_id, "")) {
-							try {
-								out.write(bs);
-								out.flush();
-							} catch (IOException e) {
-								System.out.println("Error when sending client extend failed cell in relayExtend in write thread");
-							}
-						}
-						return;
-					} else {
-						System.out.println("Tor " + readid + " received opened cell");
-					}
+		// Returns our connection to router agent_id, opening one if there is none.
+		// Extends to a router we are still connecting to wait for that connection instead of opening another
+		private Socket getConnection(int agent_id, InetSocketAddress address) throws IOException {
+			Socket existing = CONNECTIONS.get(agent_id);
+			if (existing != null && !existing.isClosed()) {
+				LOG.debug("Tor " + readid + " Found Existing connection");
+				return existing;
+			}
 
-					// Update connections dest_agent_id -> null to dest_agent_id -> dest_socket
-					CONNECTIONS.put(agent_id,dest_socket);
-					printTables();
-					
-				} catch (SocketException e) {
-					// Failed to receive opened cell
-					try {
-						for (byte[] bs: TorCellConverter.getRelayCells("extend failed", cid, stream_id, ""))
-							out.write(bs);
-					} catch (IOException e1) {
-						System.out.println("Timedout when waiting for opened cell in relay extend in write thread");
-					}
-					return;
+			CompletableFuture<Socket> connecting = new CompletableFuture<Socket>();
+			CompletableFuture<Socket> other = CONNECTING.putIfAbsent(agent_id, connecting);
+			if (other != null) {
+				try {
+					return other.get();
+				} catch (ExecutionException e) {
+					throw new IOException(e.getCause().getMessage());
+				} catch (InterruptedException e) {
+					throw new IOException("Interrupted waiting for connection");
 				}
 			}
-						
-			RouterTableKey newKey = new RouterTableKey(dest_socket,newCid);
-			System.out.println("Tor " + readid + " Sending Create Packet to: " + dest_socket.getPort() + " " + newCid);
 
-			// Send existing tor router a create cell to make extend new circuit
 			try {
-				byte[] bs = TorCellConverter.getCreateCell(newCid);
-				System.out.println(TorCellConverter.getCircuitId(bs));
-				dest_stream.write(bs);
+				// Another extend may have finished connecting since we looked
+				existing = CONNECTIONS.get(agent_id);
+				Socket dest_socket = existing != null && !existing.isClosed() ? existing : openConnection(agent_id, address);
+				connecting.complete(dest_socket);
+				return dest_socket;
 			} catch (IOException e) {
-				System.out.println("Error sending a create cell in relayExtend in write thread");
-				e.printStackTrace();
+				connecting.completeExceptionally(e);
+				throw e;
+			} finally {
+				CONNECTING.remove(agent_id, connecting);
 			}
-			System.out.println("Tor " + readid + " Waiting for Created Packet");
+		}
 
-			// If receive created, new routing table entry: Dest -> null should be added
-			// Wait up to 10 seconds. If we don't get a created key, send create failed
+		// Connects to the router at address and does the open protocol with it
+		private Socket openConnection(int agent_id, InetSocketAddress address) throws IOException {
+			LOG.debug("Tor " + readid + " creating new connection to " + address);
+			long open_start = System.nanoTime();
+			Socket dest_socket = new Socket();
+			CompletableFuture<byte[]> opening = new CompletableFuture<byte[]>();
 			try {
-				dest_socket.setSoTimeout(5000); // Set timer 5 seconds
+				dest_socket.connect(address, (int) TIMINGS.getTimeout(BuildTimings.CONNECT, address));
+				long connected = System.nanoTime();
+				TIMINGS.record(BuildTimings.CONNECT, address, connected - open_start);
+				LOG.debug("Tor connected to address: " + address + " from: " + dest_socket.getLocalPort());
 
-				InputStream in = null;
-				byte[] bytes = new byte[TorCellConverter.CELL_LENGTH];
-				try {
-					in = dest_socket.getInputStream();
-				} catch (IOException e) {
-					e.printStackTrace();
-					System.out.println("Error when creating new buffered reader in read thread");
-				}
-				int total_read = 0;
-				int read = 0;
-				boolean none = false;
-				while (total_read < PACKAGE_SIZE && read != -1 && !none) {
-					try {
-						read = in.read(bytes);
-						total_read += read;
-					} catch (IOException e) {
-						System.out.println("Error when reading from buffered 2");
-					}
-				}
-				System.out.println("Tor " + readid + " read something");
-				System.out.println("Tor " + readid + " checking to see if recevied created cell");
-
-				if (!TorCellConverter.getCellType(bytes).equals("created")) {
-					System.out.println("Tor " + readid + " expected created cell but got something else");
-					System.out.println("Tor " + readid + " sending exted failed to" + socket.getPort());
-					return;
-				} else {
-					System.out.println("Tor " + readid + " received created cell " + TorCellConverter.getCircuitId(bytes));
-				}
-								
-				dest_socket.setSoTimeout(0); // Kill timer
-				System.out.println("newcid: " + newCid);
-				System.out.println("cid: " + cid);
-				System.out.println("created cid: " + TorCellConverter.getCircuitId(bytes));
-				RouterTableValue newValueToClient = new RouterTableValue(out,cid);
-				RouterTableValue newValueToDest = new RouterTableValue(dest_stream,newCid);
-
-				// update client -> null to client -> Dest
-				assert(ROUTER_TABLE.get(routing_key) == null);
-				
-				ROUTER_TABLE.put(newKey, newValueToClient);
-				ROUTER_TABLE.put(routing_key, newValueToDest);
-				
-				printTables();
-				
-				System.out.println("Sending extended cell to: local: " + socket.getLocalPort() +" remote: "+socket.getPort() + " cid: " + cid);
-				System.out.println("cid" + cid);
-				// Send extended cell to client
-				for (byte[] bs: TorCellConverter.getRelayCells("extended", cid, stream_id, "")) {
-					try {
-						out.write(bs);
-						out.flush();
-					} catch (IOException e) {
-						System.out.println("Error when sending client extended cell in relayExtend in write thread");
-					}
-				}
-				System.out.println("Sent extended cell");
+				// Everything the router sends on this connection, starting with opened, is read by its own read thread
+				PENDING_OPENS.put(dest_socket, opening);
+				new ReadThread(dest_socket).start();
 
-			} catch (SocketException e) {
-				// This means we timed out. Return create failed cell
-				try {
-					out.write(TorCellConverter.getCreateFailCell(cid));
-				} catch (IOException e1) {
-					System.out.println("Error when trying to send create failed cell in relayExtend in write thread");
-				}
+				DataOutputStream dest_stream = new DataOutputStream(CELLS_OUT.wrap(dest_socket.getOutputStream()));
+				dest_stream.write(TorCellConverter.getOpenCell((short) 0, AGENT_ID, agent_id));
+				dest_stream.flush();
+
+				byte[] reply = opening.get(TIMINGS.getTimeout(BuildTimings.OPEN, address), TimeUnit.MILLISECONDS);
+				if (!TorCellConverter.getCellType(reply).equals("opened"))
+					throw new IOException("expected opened cell but got " + TorCellConverter.getCellType(reply));
+				TIMINGS.record(BuildTimings.OPEN, address, System.nanoTime() - connected);
+			} catch (TimeoutException e) {
+				dest_socket.close();
+				throw new IOException("timed out waiting for opened cell");
+			} catch (ExecutionException e) {
+				dest_socket.close();
+				throw new IOException(e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				dest_socket.close();
+				throw new IOException("Interrupted waiting for opened cell");
+			} catch (IOException e) {
+				dest_socket.close();
+				throw e;
+			} finally {
+				PENDING_OPENS.remove(dest_socket, opening);
 			}
-			printTables();
-			System.out.println("yay finished extend");
+			LOG.debug("Tor " + readid + " received opened cell");
+			SCORER.recordRoundTrip(address, System.nanoTime() - open_start);
+
+			OPENER.put(dest_socket, new Opener(AGENT_ID, agent_id));
+			CONNECTIONS.put(agent_id, dest_socket);
+			return dest_socket;
 		}
 		
-		// Finds a new cid not used between a specific socket
-		private short getNewCid(Socket dest_socket) {
-			int agent_id = TorCellConverter.getExtendAgent(bytes);
-
+		// Finds a new cid not used on dest_socket, and reserves it for the created reply
+		private short getNewCid(Socket dest_socket, CompletableFuture<byte[]> creating) {
 			// Must choose a new unique CID between existing tor router
 			
 			// If there is no existing connection, we are the opener
 			boolean isOpener = true;
 			// If there is an existing connection, check to see if we were the opener
-			if (OPENER.containsKey(dest_socket))
-				isOpener = OPENER.get(dest_socket).isOpener(agent_id);
+			Opener opener = OPENER.get(dest_socket);
+			if (opener != null)
+				isOpener = opener.isOpener(AGENT_ID);
 			
+			// The opener uses odd cids, and the other side even ones, so the two never pick the same
 			Random r = new Random();
-			short newCid = (short)r.nextInt(Short.MAX_VALUE);
-			if (isOpener && newCid % 2 == 0)
-				newCid++;
-			else if (!isOpener && newCid % 2 == 1)
-				newCid++;
-			RouterTableKey newKey = new RouterTableKey(dest_socket,newCid);
-			while (ROUTER_TABLE.containsKey(newKey)) {
-				newCid = (short)r.nextInt(Short.MAX_VALUE);
+			while (true) {
+				short newCid = (short)r.nextInt(Short.MAX_VALUE);
 				if (isOpener && newCid % 2 == 0)
 					newCid++;
 				else if (!isOpener && newCid % 2 == 1)
 					newCid++;
-				newKey = new RouterTableKey(dest_socket,newCid);
+				RouterTableKey newKey = new RouterTableKey(dest_socket,newCid);
+				if (!ROUTER_TABLE.containsKey(newKey) && PENDING_CREATES.putIfAbsent(newKey, creating) == null)
+					return newCid;
 			}
-			return newCid;
 		}
 	}
 }
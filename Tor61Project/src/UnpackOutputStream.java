@@ -1,7 +1,6 @@
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Arrays;
 
 /**
  * 
@@ -12,6 +11,8 @@ import java.util.Arrays;
 public class UnpackOutputStream extends OutputStream{
 	
 	DataOutputStream stream;
+	private StreamDecompressor decompressor;	// Null unless we agreed to compression
+	private long received_bytes;				// Payload bytes received in data cells
 	
 	public UnpackOutputStream(DataOutputStream stream) {
 		this.stream = stream;
@@ -22,8 +23,53 @@ public class UnpackOutputStream extends OutputStream{
 		stream.writeInt(b);
 	}
 	
+	/**
+	 * Writes only the payload of relay cell b, as long as its body length field says
+	 * @param b relay cell
+	 * @throws IOException
+	 */
 	public void write(byte[] b) throws IOException {
-		byte[] httpReq = Arrays.copyOfRange(b, TorCellConverter.CELL_HEADER_SIZE, TorCellConverter.CELL_LENGTH);
-		stream.write(httpReq);
+		int length = TorCellConverter.getRelayBodyLength(b);
+		received_bytes += length;
+		if (decompressor == null)
+			stream.write(b, TorCellConverter.CELL_HEADER_SIZE, length);
+		else
+			decompressor.decompress(b, TorCellConverter.CELL_HEADER_SIZE, length, stream);
+	}
+	
+	/**
+	 * Decompresses every cell written from now on
+	 */
+	public void enableDecompression() {
+		decompressor = new StreamDecompressor();
+	}
+	
+	/**
+	 * Returns how many payload bytes were received in data cells, before decompression
+	 */
+	public long getReceivedBytes() {
+		return received_bytes;
+	}
+	
+	/**
+	 * Returns how much compression saved on this stream, for reporting
+	 */
+	public String getCompressionSummary() {
+		if (decompressor == null)
+			return "off";
+		long raw = decompressor.getRawBytes();
+		return raw + " bytes received as " + received_bytes + " (ratio " + String.format("%.2f", raw == 0 ? 1.0 : (double) received_bytes / raw) + ")";
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		stream.flush();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (decompressor != null)
+			decompressor.end();
+		stream.close();
 	}
 }